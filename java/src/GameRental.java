@@ -15,6 +15,7 @@ import java.sql.DriverManager;
 import java.sql.Connection;
 import java.sql.Statement;
 import java.sql.ResultSet;
+import java.sql.PreparedStatement;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.io.File;
@@ -22,10 +23,69 @@ import java.io.FileReader;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.io.IOException;
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.sql.Timestamp;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.PriorityQueue;
+import java.util.AbstractMap;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.NavigableSet;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.sql.Types;
+import java.io.FileWriter;
+import java.io.FileInputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.PrintWriter;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.lang.Math;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Set;
+import java.util.HashSet;
+import java.io.StringReader;
+import java.io.PrintStream;
+import java.io.ByteArrayOutputStream;
 
 /**
  * This class defines a simple embedded SQL utility class that is designed to
@@ -37,6 +97,84 @@ public class GameRental {
    // reference to physical database connection.
    private Connection _connection = null;
 
+   // optional read-only connection to a hot standby; null when no replica is configured.
+   private Connection _readConnection = null;
+
+   // set once this session has written to the primary, and cleared again once the
+   // replica has replayed up to _requiredLsn. Until then reads stay on the primary.
+   private boolean _wroteSinceReplicaCheck = false;
+   private String _requiredLsn = null;
+
+   // write-behind audit trail of admin changes, drained by a background thread.
+   private AuditLog _audit = null;
+
+   // background delivery of the customer notifications queued in Outbox.
+   private OutboxDispatcher _dispatcher = null;
+
+   // in-memory shipment counts behind the dashboard; null until first viewed.
+   private ShipmentDashboard _dashboard = null;
+
+   // held shared from before an order or shipment change commits until the
+   // dashboard and the leaderboard have counted it, and exclusively while
+   // either of them reloads its counts from the database.
+   final ReadWriteLock _countsLock = new ReentrantReadWriteLock();
+
+   // most rented games, all-time and per day; null until first needed.
+   private Leaderboard _leaderboard = null;
+
+   // memory-mapped catalog that browsing is served from, the file it is kept in,
+   // and when its version stamp was last compared with the database.
+   private CatalogSnapshot _catalogSnapshot = null;
+   private String _snapshotPath = System.getProperty("gamerental.catalogSnapshot", "catalog.snapshot");
+   private long _snapshotCheckedAt = 0;
+
+   // every shard of a sharded deployment, this one (shard 0) first; null when
+   // all data lives in one database.
+   private List<GameRental> _shards = null;
+
+   // the database whose sequences number new orders and shipments. On a
+   // sharded deployment that is shard 0, so numbers stay unique across shards.
+   private GameRental _idSource = this;
+
+   // where the menu's users, catalog, orders and tracking live: the database
+   // by default, a ShardedStore over several, or an in-process MemoryStore.
+   private UserRepository _users = null;
+   private CatalogRepository _catalog = null;
+   private OrderRepository _orders = null;
+   private TrackingRepository _tracking = null;
+
+   // connection parameters, kept so background and parallel jobs can open
+   // connections of their own.
+   private String _dbname;
+   private String _dbport;
+   private String _user;
+   private String _passwd;
+
+   // number of rows pulled per FETCH when streaming through a cursor.
+   static final int STREAM_BATCH_SIZE = 1000;
+
+   // how often the shipment dashboard is checked against the database.
+   static final long DASHBOARD_RECONCILE_MS = 10 * 60 * 1000;
+
+   // how often the leaderboard is seeded again from the orders of every instance.
+   static final long LEADERBOARD_RESEED_MS = 10 * 60 * 1000;
+
+   // how long a catalog snapshot is served before its version is checked again.
+   static final long SNAPSHOT_CHECK_MS = 5000;
+
+   // number of CatalogStock rows each title's stock is striped over.
+   static final int STOCK_BUCKETS = 8;
+
+   // attempts at placing an order before a deadlock is reported,
+   // and the backoff cap of the first retry, doubled for every further retry.
+   static final int MAX_ORDER_ATTEMPTS = 5;
+   static final long ORDER_RETRY_BASE_MS = 20;
+
+   // order placement metrics for this process, shown in the sales reports.
+   static final AtomicLong ORDERS_PLACED = new AtomicLong();
+   static final AtomicLong ORDER_RETRIES = new AtomicLong();
+   static final AtomicLong ORDERS_ABORTED = new AtomicLong();
+
    // handling the keyboard inputs through a BufferedReader
    // This variable can be global for convenience.
    static BufferedReader in = new BufferedReader(
@@ -52,8 +190,27 @@ public class GameRental {
     * @throws java.sql.SQLException when failed to make a connection.
     */
    public GameRental(String dbname, String dbport, String user, String passwd) throws SQLException {
+      this(dbname, dbport, user, passwd, null);
+   }//end GameRental
+
+   /**
+    * Creates a new instance of GameRental store that sends read-only
+    * operations to a hot-standby replica of the same database.
+    *
+    * @param dbname the name of the database
+    * @param dbport the port of the primary server
+    * @param user the user name used to login to the database
+    * @param passwd the user login password
+    * @param replicaPort the port of the read-only replica, or null for none
+    * @throws java.sql.SQLException when failed to make a connection.
+    */
+   public GameRental(String dbname, String dbport, String user, String passwd, String replicaPort) throws SQLException {
 
       System.out.print("Connecting to database...");
+      this._dbname = dbname;
+      this._dbport = dbport;
+      this._user = user;
+      this._passwd = passwd;
       try{
          // constructs the connection URL
          String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
@@ -67,24 +224,76 @@ public class GameRental {
          System.out.println("Make sure you started postgres on this machine");
          System.exit(-1);
       }//end catch
+
+      JdbcStore store = new JdbcStore(this);
+      this._users = store;
+      this._catalog = store;
+      this._orders = store;
+      this._tracking = store;
+
+      // a snapshot left by an earlier run is served right away and checked against the database later
+      try{
+         this._catalogSnapshot = CatalogSnapshot.open(this._snapshotPath);
+         this._snapshotCheckedAt = System.currentTimeMillis();
+      }catch (IOException e){
+         // none yet, the first catalog view writes it
+      }//end catch
+
+      if (replicaPort != null) {
+         // a missing replica is not fatal, reads simply stay on the primary
+         try{
+            String url = "jdbc:postgresql://localhost:" + replicaPort + "/" + dbname;
+            System.out.println ("Read replica URL: " + url + "\n");
+            this._readConnection = DriverManager.getConnection(url, user, passwd);
+            this._readConnection.setReadOnly(true);
+         }catch (SQLException e){
+            System.err.println("Warning - Unable to Connect to Read Replica: " + e.getMessage() );
+         }//end catch
+      }//end if
    }//end GameRental
 
+   /**
+    * Creates a new instance of GameRental store that keeps all of its data in
+    * this process instead of a database. Only the menu operations that go
+    * through the repositories are available.
+    *
+    * @param store the loaded in-memory store
+    */
+   public GameRental(MemoryStore store) {
+      this._users = store;
+      this._catalog = store;
+      this._orders = store;
+      this._tracking = store;
+   }//end GameRental
+
+   /**
+    * @return true when this instance runs on a MemoryStore, without a database
+    */
+   public boolean isInMemory() {
+      return this._connection == null;
+   }
+
    /**
     * Method to execute an update SQL statement.  Update SQL instructions
     * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
     *
     * @param sql the input SQL string
+    * @return the number of rows affected
     * @throws java.sql.SQLException when update failed
     */
-   public void executeUpdate (String sql) throws SQLException {
+   public int executeUpdate (String sql) throws SQLException {
       // creates a statement object
       Statement stmt = this._connection.createStatement ();
 
       // issues the update instruction
-      stmt.executeUpdate (sql);
+      long start = System.nanoTime ();
+      int rowCount = stmt.executeUpdate (sql);
+      Tracer.record (sql, start, rowCount);
+      this._wroteSinceReplicaCheck = true;
 
       // close the instruction
       stmt.close ();
+      return rowCount;
    }//end executeUpdate
 
    /**
@@ -101,6 +310,7 @@ public class GameRental {
       Statement stmt = this._connection.createStatement ();
 
       // issues the query instruction
+      long start = System.nanoTime ();
       ResultSet rs = stmt.executeQuery (query);
 
       /*
@@ -126,6 +336,7 @@ public class GameRental {
          System.out.println ();
          ++rowCount;
       }//end while
+      Tracer.record (query, start, rowCount);
       stmt.close();
       return rowCount;
    }//end executeQuery
@@ -140,10 +351,65 @@ public class GameRental {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException {
+      return executeQueryAndReturnResult(this._connection, query);
+   }//end executeQueryAndReturnResult
+
+   /**
+    * Method to execute a read-only query (i.e. SELECT) and return the
+    * results as a list of records. The query goes to the read replica when
+    * one is configured, unless this session has written something the
+    * replica has not replayed yet, or a transaction is open on the primary.
+    * Only queries that are safe to answer from slightly stale data may use
+    * this method.
+    *
+    * @param query the input query string
+    * @return the query result as a list of records
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<List<String>> executeReadQueryAndReturnResult (String query) throws SQLException {
+      if (this._readConnection != null && this._connection.getAutoCommit()) {
+         try {
+            if (replicaCaughtUp()) {
+               return executeQueryAndReturnResult(this._readConnection, query);
+            }
+         } catch (SQLException e) {
+            System.err.println("Warning - Read replica failed, using primary: " + e.getMessage());
+            try {
+               this._readConnection.close();
+            } catch (SQLException ignored) {
+               // the replica is dropped either way
+            }
+            this._readConnection = null;
+         }
+      }
+      return executeQueryAndReturnResult(this._connection, query);
+   }//end executeReadQueryAndReturnResult
+
+   // true when the replica has replayed every write this session made; the primary's position is
+   // only looked up on the first read after a write, so writes themselves cost no extra round trip
+   private boolean replicaCaughtUp() throws SQLException {
+      if (this._wroteSinceReplicaCheck) {
+         this._requiredLsn = executeQueryAndReturnResult(this._connection, "SELECT pg_current_wal_lsn();").get(0).get(0);
+         this._wroteSinceReplicaCheck = false;
+      }
+      if (this._requiredLsn == null) {
+         return true;
+      }
+      String replayed = executeQueryAndReturnResult(this._readConnection,
+         "SELECT pg_last_wal_replay_lsn() >= '" + this._requiredLsn + "'::pg_lsn;").get(0).get(0);
+      if (replayed != null && replayed.startsWith("t")) {
+         this._requiredLsn = null;
+         return true;
+      }
+      return false;
+   }
+
+   private static List<List<String>> executeQueryAndReturnResult (Connection conn, String query) throws SQLException {
       // creates a statement object
-      Statement stmt = this._connection.createStatement ();
+      Statement stmt = conn.createStatement ();
 
       // issues the query instruction
+      long start = System.nanoTime ();
       ResultSet rs = stmt.executeQuery (query);
 
       /*
@@ -163,6 +429,7 @@ public class GameRental {
 			record.add(rs.getString (i));
         result.add(record);
       }//end while
+      Tracer.record (query, start, result.size ());
       stmt.close ();
       return result;
    }//end executeQueryAndReturnResult
@@ -180,6 +447,7 @@ public class GameRental {
        Statement stmt = this._connection.createStatement ();
 
        // issues the query instruction
+       long start = System.nanoTime ();
        ResultSet rs = stmt.executeQuery (query);
 
        int rowCount = 0;
@@ -188,6 +456,7 @@ public class GameRental {
        while (rs.next()){
           rowCount++;
        }//end while
+       Tracer.record (query, start, rowCount);
        stmt.close ();
        return rowCount;
    }
@@ -211,976 +480,6122 @@ public class GameRental {
    }
 
    /**
-    * Method to close the physical connection if it is open.
+    * Method to open an additional physical connection to the same database.
+    * Long running jobs use their own connection so that they never hold the
+    * interactive session's connection or interfere with its transactions.
+    *
+    * @return a new connection in auto-commit mode
+    * @throws java.sql.SQLException when failed to make a connection.
     */
-   public void cleanup(){
-      try{
-         if (this._connection != null){
-            this._connection.close ();
-         }//end if
-      }catch (SQLException e){
-         // ignored.
-      }//end try
-   }//end cleanup
+   public Connection openConnection() throws SQLException {
+      String url = "jdbc:postgresql://localhost:" + this._dbport + "/" + this._dbname;
+      return DriverManager.getConnection(url, this._user, this._passwd);
+   }
 
    /**
-    * The main execution method
+    * Callback used by streamQuery, invoked once per row while the cursor is
+    * positioned on it.
+    */
+   public interface RowHandler {
+      void handle(ResultSet rs) throws SQLException, IOException;
+   }
+
+   /**
+    * Method to stream the result of a query through a server side cursor.
+    * Rows are fetched in batches of STREAM_BATCH_SIZE and handed to the
+    * handler one at a time, so at most one batch is ever held in memory no
+    * matter how large the result is.
     *
-    * @param args the command line arguments this inclues the <mysql|pgsql> <login file>
+    * @param conn the connection to run the cursor on
+    * @param query the input query string
+    * @param handler callback invoked for every row
+    * @return the number of rows streamed
+    * @throws java.sql.SQLException when failed to execute the query
+    * @throws java.io.IOException when the handler fails to write a row
     */
-   public static void main (String[] args) {
-      if (args.length != 3) {
-         System.err.println (
-            "Usage: " +
-            "java [-classpath <classpath>] " +
-            GameRental.class.getName () +
-            " <dbname> <port> <user>");
-         return;
-      }//end if
+   public static long streamQuery (Connection conn, String query, RowHandler handler) throws SQLException, IOException {
+      // cursors only live inside a transaction
+      boolean autoCommit = conn.getAutoCommit();
+      conn.setAutoCommit(false);
+      Statement stmt = conn.createStatement ();
+      long rowCount = 0;
+      long start = System.nanoTime ();
+      try {
+         stmt.execute ("DECLARE stream_cursor NO SCROLL CURSOR FOR " + query);
+         int fetched;
+         do {
+            fetched = 0;
+            ResultSet rs = stmt.executeQuery ("FETCH FORWARD " + STREAM_BATCH_SIZE + " FROM stream_cursor");
+            while (rs.next()){
+               handler.handle(rs);
+               ++fetched;
+            }//end while
+            rs.close();
+            rowCount += fetched;
+         } while (fetched == STREAM_BATCH_SIZE);
+         stmt.execute ("CLOSE stream_cursor");
+         conn.commit();
+         // one entry for the whole cursor, its fetches are not repeats worth flagging; the time includes the handler's
+         Tracer.record (query, start, (int) Math.min(rowCount, Integer.MAX_VALUE));
+      } catch (SQLException | IOException e) {
+         conn.rollback();
+         throw e;
+      } finally {
+         stmt.close ();
+         conn.setAutoCommit(autoCommit);
+      }
+      return rowCount;
+   }//end streamQuery
 
-      Greeting();
-      GameRental esql = null;
-      try{
-         // use postgres JDBC driver.
-         Class.forName ("org.postgresql.Driver").newInstance ();
-         // instantiate the GameRental object and creates a physical
-         // connection.
-         String dbname = args[0];
-         String dbport = args[1];
-         String user = args[2];
-         esql = new GameRental (dbname, dbport, user, "");
+   /**
+    * Method to make sure the yearly order partitions for the current and the
+    * next year exist, so new orders never land in the default partition.
+    *
+    * @throws java.sql.SQLException when the partitions could not be created
+    */
+   public void ensureOrderPartitions() throws SQLException {
+      executeQuery("SELECT create_order_partitions(extract(year FROM now())::integer, extract(year FROM now())::integer + 1);");
+   }
 
-         boolean keepon = true;
-         while(keepon) {
-            // These are sample SQL statements
-            System.out.println("MAIN MENU");
-            System.out.println("---------");
-            System.out.println("1. Create user");
-            System.out.println("2. Log in");
-            System.out.println("9. < EXIT");
-            String authorisedUser = null;
-            switch (readChoice()){
-               case 1: CreateUser(esql); break;
-               case 2: authorisedUser = LogIn(esql); break;
-               case 9: keepon = false; break;
-               default : System.out.println("Unrecognized choice!"); break;
-            }//end switch
-            if (authorisedUser != null) {
-              boolean usermenu = true;
-              while(usermenu) {
-                System.out.println("MAIN MENU");
-                System.out.println("---------");
-                System.out.println("1. View Profile");
-                System.out.println("2. Update Profile");
-                System.out.println("3. View Catalog");
-                System.out.println("4. Place Rental Order");
-                System.out.println("5. View Full Rental Order History");
-                System.out.println("6. View Past 5 Rental Orders");
-                System.out.println("7. View Rental Order Information");
-                System.out.println("8. View Tracking Information");
+   /**
+    * Method to get the catalog snapshot that browsing is served from. The
+    * current snapshot is trusted for SNAPSHOT_CHECK_MS; after that its version
+    * stamp is compared with CatalogVersion and the file is rewritten when the
+    * catalog has changed.
+    *
+    * @param force compare the version now rather than after the interval
+    * @return the snapshot, or null when the catalog must be read from the database
+    */
+   public CatalogSnapshot catalogSnapshot(boolean force) {
+      long now = System.currentTimeMillis();
+      if (this._catalogSnapshot != null && !force && now - this._snapshotCheckedAt < SNAPSHOT_CHECK_MS) {
+         return this._catalogSnapshot;
+      }
+      try {
+         long version = Long.parseLong(executeQueryAndReturnResult("SELECT version FROM CatalogVersion;").get(0).get(0));
+         if (this._catalogSnapshot == null || this._catalogSnapshot.version() != version) {
+            // another process may already have written the current version
+            CatalogSnapshot onDisk = null;
+            if (new File(this._snapshotPath).exists()) {
+               onDisk = CatalogSnapshot.open(this._snapshotPath);
+            }
+            if (onDisk == null || onDisk.version() != version) {
+               CatalogSnapshot.export(this, this._snapshotPath);
+               onDisk = CatalogSnapshot.open(this._snapshotPath);
+            }
+            this._catalogSnapshot = onDisk;
+         }
+         this._snapshotCheckedAt = now;
+      } catch (SQLException | IOException e) {
+         System.err.println("Warning - Catalog snapshot unavailable, reading from the database: " + e.getMessage());
+         this._catalogSnapshot = null;
+      }
+      return this._catalogSnapshot;
+   }
 
-                //the following functionalities basically used by employees & managers
-                System.out.println("9. Update Tracking Information");
+   /**
+    * Read-only view of the catalog in a compact binary file, mapped into
+    * memory and queried in place. Rows are stored sorted by price, so both
+    * sort orders are plain scans, and only the rows that pass the filter are
+    * turned into strings. Every process maps the same file and so shares its
+    * pages through the OS page cache.
+    *
+    * Layout (big-endian):
+    *   header  magic int, format int, catalog version long, row count int, string heap offset int
+    *   rows    row count fixed-width records of price in cents (long) followed by
+    *           (offset int, length int) references for gameID, gameName, genre, description
+    *   heap    the UTF-8 bytes of all strings
+    */
+   static class CatalogSnapshot {
+      static final int MAGIC = 0x47524353; // "GRCS"
+      static final int FORMAT = 1;
+      static final int HEADER_SIZE = 24;
+      static final int RECORD_SIZE = 40;
+      // positions of the string references within a record
+      static final int GAME_ID = 8, GAME_NAME = 16, GENRE = 24, DESCRIPTION = 32;
 
-                //the following functionalities basically used by managers
-                System.out.println("10. Update Catalog");
-                System.out.println("11. Update User");
+      private final MappedByteBuffer map;
+      private final long version;
+      private final int count;
 
-                System.out.println(".........................");
-                System.out.println("20. Log out");
-                switch (readChoice()){
-                   case 1: viewProfile(esql, authorisedUser); break;
-                   case 2: authorisedUser = updateProfile(esql, authorisedUser); break;
-                   case 3: viewCatalog(esql); break;
-                   case 4: placeOrder(esql, authorisedUser); break;
-                   case 5: viewAllOrders(esql, authorisedUser); break;
-                   case 6: viewRecentOrders(esql, authorisedUser); break;
-                   case 7: viewOrderInfo(esql, authorisedUser); break;
-                   case 8: viewTrackingInfo(esql, authorisedUser); break;
-                   case 9: updateTrackingInfo(esql, authorisedUser); break;
-                   case 10: updateCatalog(esql, authorisedUser); break;
-                   case 11: updateUser(esql, authorisedUser); break;
-
-
-
-                   case 20: usermenu = false; break;
-                   default : System.out.println("Unrecognized choice!"); break;
-                }
-              }
+      private CatalogSnapshot(MappedByteBuffer map) throws IOException {
+         if (map.capacity() < HEADER_SIZE || map.getInt(0) != MAGIC || map.getInt(4) != FORMAT) {
+            throw new IOException("not a catalog snapshot");
+         }
+         this.map = map;
+         this.version = map.getLong(8);
+         this.count = map.getInt(16);
+      }
+
+      static CatalogSnapshot open(String path) throws IOException {
+         try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            // the mapping stays valid after the channel is closed
+            return new CatalogSnapshot(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+         }
+      }
+
+      /**
+       * Writes the current catalog and its version to path. The file is built
+       * next to the target and renamed over it, so a reader never maps a
+       * half-written snapshot and one that has the old file mapped keeps it.
+       */
+      static void export(GameRental esql, String path) throws SQLException, IOException {
+         // one statement, so the stamp and the rows come from the same snapshot of the database
+         List<List<String>> rows = esql.executeQueryAndReturnResult(
+            "SELECT v.version, c.gameID, c.gameName, c.genre, c.price, coalesce(c.description, '') " +
+            "FROM CatalogVersion v LEFT JOIN Catalog c ON true ORDER BY c.price, c.gameID;");
+         long version = Long.parseLong(rows.get(0).get(0));
+         if (rows.get(0).get(1) == null) {
+            rows = Collections.emptyList();
+         }
+
+         int heapSize = 0;
+         List<byte[][]> encoded = new ArrayList<>(rows.size());
+         for (List<String> row : rows) {
+            byte[][] strings = new byte[4][];
+            for (int i = 0; i < 4; i++) {
+               strings[i] = row.get(i == 3 ? 5 : i + 1).getBytes(StandardCharsets.UTF_8);
+               heapSize += strings[i].length;
             }
-         }//end while
-      }catch(Exception e) {
-         System.err.println (e.getMessage ());
-      }finally{
-         // make sure to cleanup the created table and close the connection.
-         try{
-            if(esql != null) {
-               System.out.print("Disconnecting from database...");
-               esql.cleanup ();
-               System.out.println("Done\n\nBye !");
-            }//end if
-         }catch (Exception e) {
-            // ignored.
-         }//end try
-      }//end try
-   }//end main
+            encoded.add(strings);
+         }
 
-   public static void Greeting(){
-      System.out.println(
-         "\n\n*******************************************************\n" +
-         "              User Interface      	               \n" +
-         "*******************************************************\n");
-   }//end Greeting
+         int heapOffset = HEADER_SIZE + rows.size() * RECORD_SIZE;
+         ByteBuffer buffer = ByteBuffer.allocate(heapOffset + heapSize);
+         buffer.putInt(MAGIC).putInt(FORMAT).putLong(version).putInt(rows.size()).putInt(heapOffset);
+         int heapPosition = heapOffset;
+         for (int r = 0; r < rows.size(); r++) {
+            buffer.putLong(new java.math.BigDecimal(rows.get(r).get(4)).movePointRight(2).longValueExact());
+            for (byte[] string : encoded.get(r)) {
+               buffer.putInt(heapPosition).putInt(string.length);
+               heapPosition += string.length;
+            }
+         }
+         for (byte[][] strings : encoded) {
+            for (byte[] string : strings) {
+               buffer.put(string);
+            }
+         }
+         buffer.flip();
 
-   /*
-    * Reads the users choice given from the keyboard
-    * @int
-    **/
-   public static int readChoice() {
-      int input;
-      // returns only if a correct value is given.
-      do {
-         System.out.print("Please make your choice: ");
-         try { // read the integer, parse it and break.
-            input = Integer.parseInt(in.readLine());
-            break;
-         }catch (Exception e) {
-            System.out.println("Your input is invalid!");
-            continue;
-         }//end try
-      }while (true);
-      return input;
-   }//end readChoice
+         Path target = Paths.get(path).toAbsolutePath();
+         Path temp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+         try {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+               while (buffer.hasRemaining()) {
+                  channel.write(buffer);
+               }
+               channel.force(true);
+            }
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+         } finally {
+            Files.deleteIfExists(temp);
+         }
+      }
 
+      long version() {
+         return version;
+      }
 
-   public static void CreateUser(GameRental esql){
-      String login = ""; 
-      String password = "";
-      String phoneNum = ""; 
-      // prompts user for necessary information
-      try {
-         System.out.print("Enter username: ");
-         login = in.readLine();
-         
-         System.out.print("Enter password: ");
-         password = in.readLine();
-         
-         System.out.print("Enter phone number: ");
-         phoneNum = in.readLine();
-      } catch (IOException e) {
-            System.err.println("Error reading input: " + e.getMessage());
-        }
-      // initialize other default values for a user
-      String role = "customer";  
-      String favGames = ""; 
-      int numOverDueGames = 0;   
+      /**
+       * Same rows and order as the catalog browsing query, read from the mapping.
+       *
+       * @param genre only rows of this genre, or null for all
+       * @param maxPriceCents only rows costing at most this
+       * @param ascending cheapest first when true
+       * @return gameID, name, genre, price and description of each matching row
+       */
+      List<List<String>> query(String genre, long maxPriceCents, boolean ascending) {
+         byte[] wanted = genre == null ? null : genre.getBytes(StandardCharsets.UTF_8);
+         List<List<String>> result = new ArrayList<>();
+         for (int i = 0; i < count; i++) {
+            int record = HEADER_SIZE + (ascending ? i : count - 1 - i) * RECORD_SIZE;
+            long cents = map.getLong(record);
+            if (cents > maxPriceCents) {
+               if (ascending) {
+                  break; // everything after this costs more
+               }
+               continue;
+            }
+            if (wanted != null && !bytesEqual(record + GENRE, wanted)) {
+               continue;
+            }
+            result.add(Arrays.asList(string(record + GAME_ID), string(record + GAME_NAME), string(record + GENRE),
+                                     String.format("%d.%02d", cents / 100, cents % 100), string(record + DESCRIPTION)));
+         }
+         return result;
+      }
 
-      try { 
-         // constructing INSERT query from provided + default information
-         String query = String.format("INSERT INTO Users (login, password, role, favGames, phoneNum, numOverDueGames)" + 
-                                       "VALUES ('%s', '%s', '%s', '%s', '%s', %d);",
-                                       login, password, role, favGames, phoneNum, numOverDueGames);
-         // use provided executeUpdate function to send query to DB 
-         esql.executeUpdate(query);
-      } catch ( SQLException e ) { 
-         // if the message is about primary key, username must already exist! -- prints special error statement
-         if (e.getMessage() != null && e.getMessage().contains("violates unique constraint")) {
-            System.err.println("Username unavailable. Please try again.\n");
+      private boolean bytesEqual(int reference, byte[] wanted) {
+         int offset = map.getInt(reference);
+         if (map.getInt(reference + 4) != wanted.length) {
+            return false;
          }
-         // for other types of errors, default error message printed
-         else { 
-            System.err.println("Error building query: " + e.getMessage());
+         for (int i = 0; i < wanted.length; i++) {
+            if (map.get(offset + i) != wanted[i]) {
+               return false;
+            }
          }
-         return;
+         return true;
+      }
+
+      private String string(int reference) {
+         byte[] bytes = new byte[map.getInt(reference + 4)];
+         ByteBuffer view = map.duplicate();
+         view.position(map.getInt(reference));
+         view.get(bytes);
+         return new String(bytes, StandardCharsets.UTF_8);
       }
-      // if no errors, print a success message
-      System.out.println("User created successfully! Returning to menu...");
    }
 
+   // what the audit trail shows in place of a credential
+   static final String AUDIT_MASK = "********";
 
-   public static String LogIn(GameRental esql){
-      try {
-            // prompt user for username + password
-            System.out.print("Enter username: ");
-            String login = in.readLine();
+   /**
+    * Method to record an admin change in the audit trail. The event is only
+    * queued here; it is written to the database in the background, so this
+    * never adds a round trip to the change itself.
+    *
+    * @param actor login of the user making the change
+    * @param table the table that was changed
+    * @param key the primary key of the changed row
+    * @param field the changed column
+    * @param oldValue the value before the change
+    * @param newValue the value after the change
+    */
+   public void audit(String actor, String table, String key, String field, String oldValue, String newValue) {
+      AuditLog log;
+      synchronized (this) {
+         // modes other than the interactive app start the writer the first time they audit something
+         if (this._audit == null) {
+            this._audit = new AuditLog(this, System.getProperty("gamerental.auditFile", "audit.log"));
+         }
+         log = this._audit;
+      }
+      log.record(actor, table, key, field, oldValue, newValue);
+   }
 
-            System.out.print("Enter password: ");
-            String password = in.readLine();
+   /**
+    * Method to start the audit trail writer and the Outbox dispatcher. Only
+    * the interactive app calls it, on the instance its menus run against,
+    * so a deployment runs one of each however many shards it connects to;
+    * the dispatcher delivers every shard's Outbox.
+    */
+   public synchronized void startBackgroundServices() {
+      if (isInMemory() || this._dispatcher != null) {
+         return;
+      }
+      if (this._audit == null) {
+         this._audit = new AuditLog(this, System.getProperty("gamerental.auditFile", "audit.log"));
+      }
+      this._dispatcher = new OutboxDispatcher(databases(),
+         NotificationSink.forName(System.getProperty("gamerental.notify", "file:notifications.log")));
+   }
 
-            // constructing SELECT query to find user with matching username + password 
-            String query = String.format("SELECT * FROM Users WHERE login = '%s' AND password = '%s';", login, password);
+   /**
+    * Write-behind audit trail. Recording an event only places it in a
+    * bounded lock-free ring buffer; a background thread drains the buffer in
+    * batches into the AuditLog table over a connection of its own. A batch
+    * that cannot be written to the database is appended to a local file
+    * instead, so events are never dropped.
+    */
+   static class AuditLog {
+      // ring size, a power of two, and the most events written per batch
+      static final int CAPACITY = 4096;
+      static final int BATCH_SIZE = 256;
 
-            // use provided executeQuery function to send query to DB 
-	         int rs = esql.executeQuery(query); 
+      private static final String AUDIT_INSERT =
+         "INSERT INTO AuditLog (actor, tableName, rowKey, field, oldValue, newValue, changedAt) VALUES (?, ?, ?, ?, ?, ?, ?)";
 
-            // check if a match was found in the DB
-            if (rs == 1) {
-                // user found, return login
-                System.out.println("\nWelcome, " + login + "!\n");
-                return login;
+      private final GameRental esql;
+      private final String fallbackFile;
+      private final AtomicReferenceArray<String[]> slots = new AtomicReferenceArray<>(CAPACITY);
+      // next sequence number a producer claims, and the next one the writer consumes;
+      // a claimed slot stays null until its producer has published the event into it
+      private final AtomicLong head = new AtomicLong();
+      private final AtomicLong tail = new AtomicLong();
+      private volatile boolean running = true;
+      private final Thread writer;
+      private Connection conn = null;
+      private PreparedStatement insert = null;
+
+      AuditLog(GameRental esql, String fallbackFile) {
+         this.esql = esql;
+         this.fallbackFile = fallbackFile;
+         this.writer = new Thread(this::drain, "audit-writer");
+         this.writer.setDaemon(true);
+         this.writer.start();
+      }
+
+      void record(String actor, String table, String key, String field, String oldValue, String newValue) {
+         if (field.equalsIgnoreCase("password")) {
+            // the trail shows that a password changed, never the password itself
+            oldValue = AUDIT_MASK;
+            newValue = AUDIT_MASK;
+         }
+         String[] event = { actor, table, key, field, oldValue, newValue, new Timestamp(System.currentTimeMillis()).toString() };
+         while (writer.isAlive()) {
+            long seq = head.get();
+            if (seq - tail.get() >= CAPACITY) {
+               // full: wake the writer and wait for room rather than drop the event
+               LockSupport.unpark(writer);
+               LockSupport.parkNanos(1000000L);
+            } else if (head.compareAndSet(seq, seq + 1)) {
+               slots.set((int) (seq & (CAPACITY - 1)), event);
+               return;
+            }
+         }
+         // only after close(): nobody is left to drain the ring
+         appendToFile(Collections.singletonList(event));
+      }
+
+      // stops the writer once everything recorded so far has been written
+      void close() {
+         running = false;
+         LockSupport.unpark(writer);
+         try {
+            writer.join();
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+         }
+      }
+
+      private void drain() {
+         List<String[]> batch = new ArrayList<>(BATCH_SIZE);
+         while (true) {
+            // read before draining, so an event recorded before close() is always picked up
+            boolean stopping = !running;
+            long seq = tail.get();
+            while (batch.size() < BATCH_SIZE && seq < head.get()) {
+               int index = (int) (seq & (CAPACITY - 1));
+               String[] event = slots.get(index);
+               if (event == null) {
+                  break; // claimed but not yet published
+               }
+               slots.set(index, null);
+               batch.add(event);
+               seq++;
+            }
+            tail.set(seq);
+
+            if (!batch.isEmpty()) {
+               flush(batch);
+               batch.clear();
+            } else if (stopping && tail.get() == head.get()) {
+               break;
             } else {
-                // user not found
-                System.out.println("Invalid username or password.");
-                return null;
+               LockSupport.parkNanos(stopping ? 1000000L : 200000000L);
             }
+         }
+         closeConnection();
+      }
 
-        } catch (IOException e) {
-            System.err.println("Error reading input: " + e.getMessage());
-        } catch (SQLException e) {
-            System.err.println("Error executing query: " + e.getMessage());
-        }
-        return null;
-   }
+      private void flush(List<String[]> batch) {
+         if (esql.isInMemory()) {
+            appendToFile(batch); // no AuditLog table to write to
+            return;
+         }
+         Tracer.begin("AuditLog", null);
+         try {
+            if (conn == null) {
+               conn = esql.openConnection();
+               conn.setAutoCommit(false);
+               insert = conn.prepareStatement(AUDIT_INSERT);
+            }
+            for (String[] event : batch) {
+               for (int i = 0; i < 6; i++) {
+                  if (event[i] == null) {
+                     insert.setNull(i + 1, Types.VARCHAR);
+                  } else {
+                     insert.setString(i + 1, event[i]);
+                  }
+               }
+               insert.setTimestamp(7, Timestamp.valueOf(event[6]));
+               insert.addBatch();
+            }
+            long start = System.nanoTime();
+            Tracer.recordBatch(AUDIT_INSERT, start, insert.executeBatch());
+            conn.commit();
+         } catch (SQLException e) {
+            // reconnect on the next batch; this one is kept in the local file
+            closeConnection();
+            appendToFile(batch);
+         } finally {
+            Tracer.end();
+         }
+      }
 
-   public static void viewProfile(GameRental esql, String authorisedUser) {
-      List<List<String>> result = new ArrayList<>();
-      // retrieve entire instance information for the user currently logged in
-      try {
-         String query = String.format("SELECT * FROM Users WHERE login = '%s';", authorisedUser); 
-         result = esql.executeQueryAndReturnResult(query);
-      } catch (SQLException e) {
-            // print the exception message if an SQL error occurs
-            System.err.println("Error executing query: " + e.getMessage());
+      private synchronized void appendToFile(List<String[]> batch) {
+         try {
+            BufferedWriter out = new BufferedWriter(new FileWriter(fallbackFile, true));
+            for (String[] event : batch) {
+               for (int i = 0; i < event.length; i++) {
+                  out.write((i > 0 ? "," : "") + csvField(event[i]));
+               }
+               out.newLine();
+            }
+            out.close();
+         } catch (IOException e) {
+            System.err.println("Error writing audit log: " + e.getMessage());
+         }
       }
-      // output all information, preceded by the type of information (i.e. Username) 
-      System.out.println("\nProfile Information:");
-      List<String> row = result.get(0);
-      List<String> info = Arrays.asList("Username", "Password", "role", "Favorite Games", "Phone Number", "# of Overdue Games");
-      for (int i = 0; i < row.size(); i++) {
-         if ( i != 2 ) {
-            System.out.println(info.get(i) + ": " + row.get(i));
+
+      private void closeConnection() {
+         try {
+            if (conn != null) {
+               conn.close();
+            }
+         } catch (SQLException e) {
+            // ignored.
          }
+         conn = null;
+         insert = null;
       }
-      System.out.println();
    }
 
-   public static String updateProfile(GameRental esql, String authorisedUser) {
-      List<List<String>> result = new ArrayList<>();
-      // retrieve entire instance information for the user currently logged in
-      try {
-         String query = String.format("SELECT * FROM Users WHERE login = '%s';", authorisedUser); 
-         result = esql.executeQueryAndReturnResult(query);
-      } catch (SQLException e) {
-            System.err.println("Error executing query: " + e.getMessage());
+   /**
+    * Round-trip tracing, switched on with -Dgamerental.trace=<file>. Every
+    * menu operation is a span, and each statement the query helpers send
+    * while it runs is recorded in it with its duration and row count,
+    * including those run on other threads for it by gatherAll. Statements
+    * that differ only in their literals share a shape; an operation that
+    * sends one shape N_PLUS_ONE times or more is flagged as a likely N+1
+    * pattern, both on the console and in the trace. Traces are written in
+    * the Chrome trace event format, which chrome://tracing and
+    * ui.perfetto.dev open directly. Spans include the time spent waiting at
+    * prompts; the time spent in the database is in their args.
+    */
+   static final class Tracer {
+      static final int N_PLUS_ONE = 3;
+
+      // null while tracing is off, which keeps the cost per statement to one volatile read
+      private static volatile Tracer active = null;
+
+      private final BufferedWriter out;
+      private final long origin = System.nanoTime();
+      private final ThreadLocal<Span> current = new ThreadLocal<>();
+
+      private static final class Span {
+         final String name, user;
+         final long start = System.nanoTime();
+         final List<String> events = new ArrayList<>();
+         final Map<String, Integer> shapes = new LinkedHashMap<>();
+         long dbNanos = 0;
+
+         Span(String name, String user) {
+            this.name = name;
+            this.user = user;
+         }
       }
-      String role = result.get(0).get(2); 
-      System.out.println("\n1. Change Password");
-      System.out.println("2. Update Phone Number");
-      // more actions if they are a manager
-      if (role.contains("manager")) {
-         System.out.println("3. Change Login (Manager only)");
-         System.out.println("4. Update Role (Manager only)");
-         System.out.println("5. Update Number of Overdue Games (Manager only)");
+
+      private Tracer(String file) throws IOException {
+         this.out = new BufferedWriter(new FileWriter(file));
+         // the closing bracket is optional in this format, so a trace cut short still opens
+         out.write("[{\"name\":\"process_name\",\"ph\":\"M\",\"pid\":1,\"args\":{\"name\":\"GameRental\"}}");
+         out.flush();
       }
 
-      try {
-         System.out.print("Enter your choice: ");
-         int choice = Integer.parseInt(in.readLine()); 
-         String currentPassword = result.get(0).get(1);
-         String oldPassword = ""; 
-         System.out.print("\n");
-         // perform update based on user choice
-         switch (choice) {
-            case 1:
-               System.out.print("Enter your old password: ");
-               oldPassword = in.readLine();
-               if (currentPassword.equals(oldPassword)){ 
-                  System.out.print("Enter your new password: ");
-                  String newPassword = in.readLine();
-                  // updates user's password in the database
-                  String updateQuery = String.format("UPDATE Users SET password = '%s' WHERE login = '%s';", newPassword, authorisedUser);
-                  esql.executeUpdate(updateQuery);
+      static void start(String file) {
+         try {
+            active = new Tracer(file);
+         } catch (IOException e) {
+            System.err.println("Warning - Tracing disabled, cannot write " + file + ": " + e.getMessage());
+         }
+      }
 
-                  System.out.println("Password updated successfully.\n");
-               }
-               else { 
-                  System.out.println("Incorrect password... returning to menu.\n");
-               }
-               break;
-            case 2:
-               System.out.print("Enter your old password: ");
-               oldPassword = in.readLine();
-               if (currentPassword.equals(oldPassword)){ 
-                  System.out.print("Enter your new phone number: ");
-                  String newPhoneNum = in.readLine();
-                  // updates user's phone number in the database
-                  String updateQuery = String.format("UPDATE Users SET phoneNum = '%s' WHERE login = '%s';", newPhoneNum, authorisedUser);
-                  esql.executeUpdate(updateQuery);
+      static void begin(String operation, String user) {
+         Tracer tracer = active;
+         if (tracer != null) {
+            tracer.current.set(new Span(operation, user));
+         }
+      }
 
-                  System.out.println("Phone number updated successfully.\n");
-               }
-               else { 
-                  System.out.println("Incorrect password... returning to menu.\n");
-               }
-               break;
-            case 3: 
-               // makes sure to check manager status in each case as well 
-               if (role.contains("manager")) {
-                  System.out.print("Enter your new login: ");
-                  String newLogin = in.readLine();
-                  // updates user's login in the database
-                  String updateQuery = String.format("UPDATE Users SET login = '%s' WHERE login = '%s';", newLogin, authorisedUser);
-                  esql.executeUpdate(updateQuery);
-                  authorisedUser = newLogin; 
+      /**
+       * Records one statement in the span open on this thread, if any.
+       *
+       * @param sql the statement text
+       * @param startNanos System.nanoTime() taken before it was sent
+       * @param rows rows returned or affected
+       */
+      static void record(String sql, long startNanos, int rows) {
+         record(sql, startNanos, rows, "");
+      }
 
-                  System.out.println("Username updated successfully.\n");
-               } else {
-                     System.out.println("Invalid choice.\n");
+      /**
+       * Records one executeBatch in the span open on this thread, if any,
+       * as a single round trip.
+       *
+       * @param sql the statement text, or the statements joined by newlines
+       * @param startNanos System.nanoTime() taken before it was sent
+       * @param counts the update counts executeBatch returned
+       */
+      static void recordBatch(String sql, long startNanos, int[] counts) {
+         int rows = 0;
+         for (int count : counts) {
+            rows += Math.max(count, 0);
+         }
+         record(sql, startNanos, rows, ",\"batch\":" + counts.length);
+      }
+
+      private static void record(String sql, long startNanos, int rows, String args) {
+         Tracer tracer = active;
+         Span span = tracer == null ? null : tracer.current.get();
+         if (span == null) {
+            return;
+         }
+         long end = System.nanoTime();
+         String shape = shapeOf(sql);
+         synchronized (span) {
+            span.dbNanos += end - startNanos;
+            span.shapes.merge(shape, 1, Integer::sum);
+            span.events.add(tracer.event(shape.length() > 80 ? shape.substring(0, 80) + "..." : shape, "jdbc", "X", startNanos, end,
+                                         "\"sql\":" + json(sql) + ",\"rows\":" + rows + args));
+         }
+      }
+
+      // drops this thread's span unwritten, for background work that turned out to have nothing to do
+      static void discard() {
+         Tracer tracer = active;
+         if (tracer != null) {
+            tracer.current.remove();
+         }
+      }
+
+      // closes this thread's span and writes it with its statements and any N+1 findings
+      static void end() {
+         Tracer tracer = active;
+         Span span = tracer == null ? null : tracer.current.get();
+         if (span == null) {
+            return;
+         }
+         tracer.current.remove();
+         long end = System.nanoTime();
+         synchronized (span) {
+            String repeated = "";
+            for (Map.Entry<String, Integer> shape : span.shapes.entrySet()) {
+               if (shape.getValue() >= N_PLUS_ONE) {
+                  repeated += (repeated.isEmpty() ? "" : ",") + "{\"sql\":" + json(shape.getKey()) + ",\"count\":" + shape.getValue() + "}";
+                  span.events.add(tracer.event("N+1", "nplusone", "i", end, end,
+                                               "\"sql\":" + json(shape.getKey()) + ",\"count\":" + shape.getValue()));
+                  System.err.println("Trace: " + span.name + " sent " + shape.getValue() + " x " + shape.getKey());
                }
-               break;
-            case 4:  
-               if (role.contains("manager")) {
-                  // extra warning since it will remove permissions
-                  System.out.print("WARNING: Changing your role to non-manager is irreversable without another manager's authority!\n");
-                  System.out.print("Enter your new role (manager, employee, customer): ");
-                  String newRole = in.readLine();
-                  if ( newRole.equals("customer") || newRole.equals("employee") || newRole.equals("manager") ) {
-                     // updates user's role in the database
-                     String updateQuery = String.format("UPDATE Users SET role = '%s' WHERE login = '%s';", newRole, authorisedUser);
-                     esql.executeUpdate(updateQuery);
-                     System.out.println("Role updated successfully.\n");
-                  }
-                  else { 
-                     System.out.print("Invalid role type provided.");
-                  }
-               } else {
-                     System.out.println("Invalid choice.\n");
+            }
+            int roundTrips = 0;
+            for (int count : span.shapes.values()) {
+               roundTrips += count;
+            }
+            span.events.add(0, tracer.event(span.name, "operation", "X", span.start, end,
+                                            "\"user\":" + json(span.user) + ",\"roundTrips\":" + roundTrips +
+                                            ",\"dbMillis\":" + (span.dbNanos / 1000000.0) + ",\"nPlusOne\":[" + repeated + "]"));
+            tracer.write(span.events);
+         }
+      }
+
+      /**
+       * @return the call, running inside the span open on the calling thread
+       *         whichever thread it ends up on
+       */
+      static <T> Callable<T> propagate(Callable<T> call) {
+         Tracer tracer = active;
+         Span span = tracer == null ? null : tracer.current.get();
+         if (span == null) {
+            return call;
+         }
+         return () -> {
+            tracer.current.set(span);
+            try {
+               return call.call();
+            } finally {
+               tracer.current.remove();
+            }
+         };
+      }
+
+      static void close() {
+         Tracer tracer = active;
+         active = null;
+         if (tracer != null) {
+            synchronized (tracer.out) {
+               try {
+                  tracer.out.write("\n]\n");
+                  tracer.out.close();
+               } catch (IOException e) {
+                  System.err.println("Error writing trace: " + e.getMessage());
                }
-               break;
-            case 5:  
-               if (role.contains("manager")) {
-                  System.out.print("Enter new # of overdue games (>= 0): ");
-                  int newOverdue = Integer.parseInt(in.readLine()); 
-                  // updates user's overdue games in the database
-                  String updateQuery = String.format("UPDATE Users SET numOverDueGames = '%d' WHERE login = '%s';", newOverdue, authorisedUser);
-                  esql.executeUpdate(updateQuery);
-                  System.out.println("Overdue games updated successfully.\n");
-               } else {
-                     System.out.println("Invalid choice.\n");
+            }
+         }
+      }
+
+      // the statement with its literals and IN lists replaced, so repeats of one query compare equal
+      static String shapeOf(String sql) {
+         return sql.replaceAll("'(?:[^']|'')*'", "?")
+                   .replaceAll("\\b\\d+(?:\\.\\d+)?\\b", "?")
+                   .replaceAll("\\(\\s*\\?(?:\\s*,\\s*\\?)*\\s*\\)", "(?)")
+                   .replaceAll("\\s+", " ").trim();
+      }
+
+      private String event(String name, String category, String phase, long startNanos, long endNanos, String args) {
+         return "{\"name\":" + json(name) + ",\"cat\":\"" + category + "\",\"ph\":\"" + phase + "\"" +
+                ",\"ts\":" + (startNanos - origin) / 1000 + (phase.equals("X") ? ",\"dur\":" + (endNanos - startNanos) / 1000 : ",\"s\":\"t\"") +
+                ",\"pid\":1,\"tid\":" + Thread.currentThread().getId() + ",\"args\":{" + args + "}}";
+      }
+
+      private void write(List<String> events) {
+         synchronized (out) {
+            try {
+               for (String event : events) {
+                  out.write(",\n" + event);
                }
-               break;
-            default:
-               System.out.println("Invalid choice.\n");
-               break;
+               out.flush();
+            } catch (IOException e) {
+               System.err.println("Error writing trace: " + e.getMessage());
+            }
+         }
+      }
+
+      private static String json(String value) {
+         if (value == null) {
+            return "null";
+         }
+         StringBuilder quoted = new StringBuilder("\"");
+         for (char c : value.toCharArray()) {
+            if (c == '"' || c == '\\') {
+               quoted.append('\\').append(c);
+            } else if (c < 0x20) {
+               quoted.append(String.format("\\u%04x", (int) c));
+            } else {
+               quoted.append(c);
+            }
+         }
+         return quoted.append('"').toString();
+      }
+   }
+
+   /**
+    * Storage for user accounts.
+    */
+   interface UserRepository {
+      /**
+       * @return false when the login is already taken
+       */
+      boolean create(String login, String password, String phoneNum) throws SQLException;
+
+      boolean authenticate(String login, String password) throws SQLException;
+
+      /**
+       * @return login, password, role, favGames, phoneNum, numOverDueGames, total orders,
+       *         total spent, games rented and last order date, or null for an unknown login
+       */
+      List<String> profile(String login) throws SQLException;
+
+      /**
+       * @return password, role, favGames, phoneNum, numOverDueGames and version, or null for an unknown login
+       */
+      List<String> account(String login) throws SQLException;
+
+      /**
+       * Changes columns of one user in a single statement.
+       *
+       * @param changes column -> new value
+       * @param version only change the user while it still has this version, or null to change it regardless
+       * @return false when the user does not exist or has another version
+       */
+      boolean updateUser(String login, Map<String, String> changes, String version) throws SQLException;
+
+      /**
+       * Gives a user a new login; their orders and everything else follow.
+       */
+      void renameUser(String login, String newLogin) throws SQLException;
+   }
+
+   /**
+    * Storage for the game catalog.
+    */
+   interface CatalogRepository {
+      /**
+       * @param genre only games of this genre, or null for all
+       * @param maxPrice only games costing at most this
+       * @param ascending cheapest first when true
+       * @return gameID, gameName, genre, price and description of each game, ordered by price
+       */
+      List<List<String>> browse(String genre, double maxPrice, boolean ascending) throws SQLException;
+
+      /**
+       * @return gameID -> (gameName, price) for those of the given games that exist
+       */
+      Map<String, List<String>> lookup(Collection<String> gameIDs) throws SQLException;
+
+      /**
+       * @return gameName, genre, price, description, imageURL and version, or null when it does not exist
+       */
+      List<String> game(String gameID) throws SQLException;
+
+      /**
+       * Changes columns of one game in a single statement.
+       *
+       * @param changes column -> new value
+       * @param version only change the game while it still has this version, or null to change it regardless
+       * @return false when the game does not exist or has another version
+       */
+      boolean updateGame(String gameID, Map<String, String> changes, String version) throws SQLException;
+
+      /**
+       * Adds units to a title's stock, spread evenly over its stock buckets.
+       */
+      void restock(String gameID, int units) throws SQLException;
+   }
+
+   /**
+    * Storage for rental orders and the games in them.
+    */
+   interface OrderRepository {
+      /**
+       * Places an order as one unit of work: stock is taken and the order,
+       * its games and its tracking row are written, or nothing is.
+       *
+       * @return {order number, tracking number}
+       * @throws java.sql.SQLException when the order could not be placed; nothing was written
+       */
+      long[] place(String login, Map<String, Integer> lines, int totalGames, double totalPrice) throws SQLException;
+
+      /**
+       * @param limit the most orders to return, or 0 for all
+       * @return order numbers of the user's orders, newest first
+       */
+      List<Long> recent(String login, int limit) throws SQLException;
+
+      /**
+       * @return orderTimestamp, dueDate, totalPrice and tracking number of the order,
+       *         or null when it does not exist or is not the user's
+       */
+      List<String> find(String login, long orderNo) throws SQLException;
+
+      /**
+       * @return gameID and unitsOrdered of each game in the order
+       */
+      List<List<String>> games(long orderNo) throws SQLException;
+
+      /**
+       * @return gameID and total unitsOrdered of every game ever rented
+       */
+      List<List<String>> unitsRented() throws SQLException;
+
+      /**
+       * @return gameID, order date (YYYY-MM-DD) and unitsOrdered per game and
+       *         day, over the orders of the last days days including today
+       */
+      List<List<String>> unitsRentedSince(int days) throws SQLException;
+
+      /**
+       * Cancels an order that has not shipped yet as one unit of work: its
+       * units go back into stock and the order, its games and its shipment
+       * are deleted.
+       *
+       * @param lines filled with gameID -> unitsOrdered of the order when it is cancelled
+       * @return status, courierName and currentLocation of its shipment and the order date (YYYY-MM-DD);
+       *         the order was only cancelled when the status is Order Processing. Null when it does not
+       *         exist or is not the user's
+       */
+      List<String> cancel(String login, long orderNo, Map<String, Integer> lines) throws SQLException;
+   }
+
+   /**
+    * Storage for shipment tracking.
+    */
+   interface TrackingRepository {
+      /**
+       * @return tracking number, order number, status, currentLocation, courierName, lastUpdateDate
+       *         and additionalComments, or null when it does not exist or is not the user's
+       */
+      List<String> findShipment(String login, long trackingNo) throws SQLException;
+
+      /**
+       * @return whether the shipment exists and has not been archived
+       */
+      boolean hasShipment(long trackingNo) throws SQLException;
+
+      /**
+       * Records a change of one column of a shipment as a new latest event,
+       * notifying the customer of a new status and putting the units back
+       * into stock the first time it is Returned.
+       *
+       * @param column status, currentLocation, courierName or additionalComments
+       * @return the shipment as it was before, in CurrentTracking's column order, or null when it does not exist
+       */
+      List<String> appendEvent(long trackingNo, String column, String value, String actor) throws SQLException;
+
+      /**
+       * @return eventTime, status, currentLocation, courierName, additionalComments and changedBy of every
+       *         change of the shipment, oldest first
+       */
+      List<List<String>> history(long trackingNo) throws SQLException;
+
+      /**
+       * @return status, courierName, currentLocation and the number of current shipments, per combination of the three
+       */
+      List<List<String>> shipmentCounts() throws SQLException;
+   }
+
+   /**
+    * The repositories on top of the Postgres schema, sending the same
+    * statements the menu used to send itself.
+    */
+   static class JdbcStore implements UserRepository, CatalogRepository, OrderRepository, TrackingRepository {
+      private final GameRental esql;
+
+      JdbcStore(GameRental esql) {
+         this.esql = esql;
+      }
+
+      public boolean create(String login, String password, String phoneNum) throws SQLException {
+         String query = String.format("INSERT INTO Users (login, password, role, favGames, phoneNum, numOverDueGames)" + 
+                                      "VALUES ('%s', '%s', '%s', '%s', '%s', %d);",
+                                      login, password, "customer", "", phoneNum, 0);
+         try {
+            esql.executeUpdate(query);
+            return true;
+         } catch (SQLException e) {
+            // a primary key violation means the username already exists
+            if (e.getMessage() != null && e.getMessage().contains("violates unique constraint")) {
+               return false;
+            }
+            throw e;
+         }
+      }
+
+      public boolean authenticate(String login, String password) throws SQLException {
+         String query = String.format("SELECT * FROM Users WHERE login = '%s' AND password = '%s';", login, password);
+         return esql.executeQuery(query) == 1;
+      }
+
+      public List<String> profile(String login) throws SQLException {
+         // rental statistics come from the per-user summary row, so this stays two key lookups however many orders there are
+         String query = String.format("SELECT u.login, u.password, u.role, u.favGames, u.phoneNum, u.numOverDueGames, " +
+                                      "coalesce(s.totalOrders, 0), coalesce(s.totalSpend, 0), coalesce(s.gamesRented, 0), " +
+                                      "coalesce(to_char(s.lastOrder, 'YYYY-MM-DD HH24:MI'), 'never') " +
+                                      "FROM Users u LEFT JOIN UserStats s ON s.login = u.login WHERE u.login = '%s';", login);
+         List<List<String>> result = esql.executeQueryAndReturnResult(query);
+         return result.isEmpty() ? null : result.get(0);
+      }
+
+      public List<List<String>> browse(String genre, double maxPrice, boolean ascending) throws SQLException {
+         // served from the mapped snapshot when there is one, without a round trip to the database
+         CatalogSnapshot snapshot = esql.catalogSnapshot(false);
+         if (snapshot != null) {
+            return snapshot.query(genre, Math.round(maxPrice * 100), ascending);
+         }
+         String query = "SELECT * FROM Catalog";
+         if (genre != null) {
+            query += String.format(" WHERE genre = '%s'", genre.replace("'", "''"));
+         } else if (maxPrice != Double.POSITIVE_INFINITY) {
+            query += String.format(" WHERE price <= %.2f", maxPrice);
+         }
+         query += " ORDER BY price " + (ascending ? "ASC" : "DESC") + ";";
+         return esql.executeReadQueryAndReturnResult(query);
+      }
+
+      public Map<String, List<String>> lookup(Collection<String> gameIDs) throws SQLException {
+         // one statement text for any number of games; the IDs travel as a single array parameter
+         String ids = "";
+         for (String gameID : gameIDs) {
+            ids += (ids.isEmpty() ? "" : ",") + "\"" + gameID.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+         }
+         String query = "SELECT gameID, gameName, price FROM Catalog WHERE gameID = ANY(?::varchar[])";
+         PreparedStatement stmt = esql._connection.prepareStatement(query);
+         stmt.setString(1, "{" + ids + "}");
+         long start = System.nanoTime();
+         ResultSet rs = stmt.executeQuery();
+         Map<String, List<String>> games = new HashMap<>();
+         while (rs.next()) {
+            games.put(rs.getString(1), Arrays.asList(rs.getString(2), rs.getString(3)));
+         }
+         Tracer.record(query, start, games.size());
+         stmt.close();
+         return games;
+      }
+
+      public long[] place(String login, Map<String, Integer> lines, int totalGames, double totalPrice) throws SQLException {
+         Connection conn = esql._connection;
+         try {
+            // read committed: stock is guarded by the bucket row locks reserveStock takes, which also see the latest
+            // committed counts. Serializable would track its reads of CatalogStock and fail orders that took
+            // different buckets of the same title
+            conn.setAutoCommit(false);
+            long[] ids = insertOrder(esql, login, lines, totalGames, totalPrice);
+            // commiting transaction as a whole
+            conn.commit();
+            return ids;
+         } catch (SQLException e) {
+            // rollback the transaction if any statement fails in the commit
+            conn.rollback();
+            throw e;
+         } finally {
+            // reset auto-commit mode to true
+            conn.setAutoCommit(true);
+         }
+      }
+
+      public List<Long> recent(String login, int limit) throws SQLException {
+         List<List<String>> orderNos;
+         if (limit <= 0) {
+            orderNos = esql.executeReadQueryAndReturnResult(
+               "SELECT orderNo FROM AllRentalOrders WHERE login = '" + login + "' ORDER BY orderTimeStamp DESC;");
+         } else {
+            orderNos = esql.executeReadQueryAndReturnResult(
+               "SELECT orderNo FROM RentalOrder WHERE login = '" + login + "' ORDER BY orderTimeStamp DESC LIMIT " + limit + ";");
+            // only reach into the archive when the recent partitions don't hold enough orders
+            if (orderNos.size() < limit) {
+               orderNos.addAll(esql.executeReadQueryAndReturnResult(
+                  "SELECT orderNo FROM RentalOrderArchive WHERE login = '" + login + "' " +
+                  "ORDER BY orderTimeStamp DESC LIMIT " + (limit - orderNos.size()) + ";"));
+            }
+         }
+         List<Long> ids = new ArrayList<>();
+         for (List<String> row : orderNos) {
+            ids.add(Long.parseLong(row.get(0)));
+         }
+         return ids;
+      }
+
+      public List<String> find(String login, long orderNo) throws SQLException {
+         String query = "SELECT r.orderTimeStamp, r.dueDate, r.totalPrice, t.trackingNo " +
+                        "FROM AllRentalOrders r LEFT JOIN AllTrackingInfo t ON t.orderNo = r.orderNo " +
+                        "WHERE r.login = '" + login + "' AND r.orderNo = " + orderNo + ";";
+         List<List<String>> result = esql.executeReadQueryAndReturnResult(query);
+         return result.isEmpty() ? null : result.get(0);
+      }
+
+      public List<List<String>> games(long orderNo) throws SQLException {
+         return esql.executeReadQueryAndReturnResult(
+            "SELECT gameID, unitsOrdered FROM AllGamesInOrder WHERE orderNo = " + orderNo + ";");
+      }
+
+      public List<List<String>> unitsRented() throws SQLException {
+         return esql.executeReadQueryAndReturnResult("SELECT gameID, sum(unitsOrdered) FROM AllGamesInOrder GROUP BY gameID;");
+      }
+
+      public List<List<String>> unitsRentedSince(int days) throws SQLException {
+         // the lines carry their order's timestamp, so only the newest partition is scanned
+         return esql.executeReadQueryAndReturnResult(
+            "SELECT gameID, to_char(orderTimestamp, 'YYYY-MM-DD'), sum(unitsOrdered) FROM GamesInOrder " +
+            "WHERE orderTimestamp >= current_date - " + (days - 1) + " GROUP BY 1, 2;");
+      }
+
+      public List<String> findShipment(String login, long trackingNo) throws SQLException {
+         String query = "SELECT t.trackingNo, t.orderNo, t.status, t.currentLocation, t.couriername, t.lastupdatedate, t.additionalcomments " +
+                        "FROM AllTrackingInfo t JOIN AllRentalOrders r ON t.orderNo = r.orderNo " +
+                        "WHERE t.trackingNo = " + trackingNo + " AND r.login = '" + login + "';";
+         List<List<String>> result = esql.executeReadQueryAndReturnResult(query);
+         return result.isEmpty() ? null : result.get(0);
+      }
+
+      public List<String> account(String login) throws SQLException {
+         List<List<String>> result = esql.executeQueryAndReturnResult(
+            "SELECT password, role, favGames, phoneNum, numOverDueGames, version FROM Users WHERE login = '" + login.replace("'", "''") + "';");
+         return result.isEmpty() ? null : result.get(0);
+      }
+
+      public boolean updateUser(String login, Map<String, String> changes, String version) throws SQLException {
+         return esql.executeUpdate(compareAndSet("Users", "login", login, changes, version)) == 1;
+      }
+
+      public void renameUser(String login, String newLogin) throws SQLException {
+         esql.executeUpdate(String.format("UPDATE Users SET login = '%s', version = version + 1 WHERE login = '%s';",
+                                          newLogin.replace("'", "''"), login.replace("'", "''")));
+      }
+
+      public List<String> game(String gameID) throws SQLException {
+         List<List<String>> result = esql.executeQueryAndReturnResult(
+            "SELECT gameName, genre, price, description, imageURL, version FROM Catalog WHERE gameID = '" + gameID.replace("'", "''") + "';");
+         return result.isEmpty() ? null : result.get(0);
+      }
+
+      public boolean updateGame(String gameID, Map<String, String> changes, String version) throws SQLException {
+         return esql.executeUpdate(compareAndSet("Catalog", "gameID", gameID, changes, version)) == 1;
+      }
+
+      public void restock(String gameID, int units) throws SQLException {
+         // bucket b gets units / STOCK_BUCKETS, and one more while b is below the remainder
+         esql.executeUpdate(String.format("UPDATE CatalogStock SET available = available + %d / %d + CASE WHEN bucket < %d %% %d THEN 1 ELSE 0 END " +
+                                          "WHERE gameID = '%s';", units, STOCK_BUCKETS, units, STOCK_BUCKETS, gameID.replace("'", "''")));
+      }
+
+      public List<String> cancel(String login, long orderNo, Map<String, Integer> lines) throws SQLException {
+         Connection conn = esql._connection;
+         try {
+            conn.setAutoCommit(false);
+            // lock the shipment so it can't be sent out while the order is being cancelled, then read its
+            // latest state, which a statement started after the lock sees as committed by the previous holder
+            List<List<String>> shipment = esql.executeQueryAndReturnResult(
+               "SELECT t.trackingNo FROM TrackingInfo t JOIN RentalOrder r ON r.orderNo = t.orderNo " +
+               "WHERE r.orderNo = " + orderNo + " AND r.login = '" + login.replace("'", "''") + "' FOR UPDATE OF t;");
+            if (shipment.isEmpty()) {
+               conn.commit();
+               return null;
+            }
+            List<String> status = esql.executeQueryAndReturnResult(
+               "SELECT status, courierName, currentLocation, to_char(orderTimestamp, 'YYYY-MM-DD') FROM CurrentTracking " +
+               "WHERE trackingNo = " + shipment.get(0).get(0) + ";").get(0);
+            if (status.get(0).equals("Order Processing")) {
+               releaseStock(esql, orderNo);
+               for (List<String> line : esql.executeQueryAndReturnResult(
+                       "SELECT gameID, unitsOrdered FROM GamesInOrder WHERE orderNo = " + orderNo + ";")) {
+                  lines.put(line.get(0), Integer.parseInt(line.get(1)));
+               }
+               esql.executeUpdate("DELETE FROM GamesInOrder WHERE orderNo = " + orderNo + ";");
+               // the tracking row goes with the order through its foreign key
+               esql.executeUpdate("DELETE FROM RentalOrder WHERE orderNo = " + orderNo + ";");
+            }
+            conn.commit();
+            return status;
+         } catch (SQLException e) {
+            conn.rollback();
+            throw e;
+         } finally {
+            conn.setAutoCommit(true);
+         }
+      }
+
+      public boolean hasShipment(long trackingNo) throws SQLException {
+         return esql.executeQuery("SELECT trackingNo FROM TrackingInfo WHERE trackingNo = " + trackingNo + ";") > 0;
+      }
+
+      public List<String> appendEvent(long trackingNo, String column, String value, String actor) throws SQLException {
+         return appendTrackingEvent(esql, trackingNo, column, value, actor);
+      }
+
+      public List<List<String>> history(long trackingNo) throws SQLException {
+         return esql.executeQueryAndReturnResult(
+            "SELECT eventTime, status, currentLocation, courierName, additionalComments, changedBy " +
+            "FROM AllTrackingEvents WHERE trackingNo = " + trackingNo + " ORDER BY eventID;");
+      }
+
+      public List<List<String>> shipmentCounts() throws SQLException {
+         // the dashboard reconciles from a background thread, so this runs on a connection of its own
+         Connection conn = esql.openConnection();
+         try {
+            return executeQueryAndReturnResult(conn,
+               "SELECT status, courierName, currentLocation, count(*) FROM CurrentTracking GROUP BY 1, 2, 3;");
+         } finally {
+            conn.close();
+         }
+      }
+   }
+
+   /**
+    * The repositories held entirely in this process, for running the menu,
+    * tests and benchmarks without a database. Each table is a hash map on its
+    * primary key, with the secondary indexes of create_indexes.sql kept
+    * beside it: catalog by price and by genre then price, orders by login
+    * then newest first, and tracking by order. All access is serialized on
+    * the store, which makes placing an order all-or-nothing like the
+    * database transaction.
+    */
+   static class MemoryStore implements UserRepository, CatalogRepository, OrderRepository, TrackingRepository {
+      static final class Game {
+         final String id, name, genre, price, description, imageURL;
+         final long cents;
+         final int version;
+
+         Game(String id, String name, String genre, String price, String description, String imageURL, int version) {
+            this.id = id;
+            this.name = name;
+            this.genre = genre;
+            this.price = price;
+            this.description = description;
+            this.imageURL = imageURL;
+            this.version = version;
+            this.cents = new java.math.BigDecimal(price).movePointRight(2).longValueExact();
+         }
+      }
+
+      static final class Order {
+         final long id;
+         final String login, timestamp, dueDate;
+         final int noOfGames;
+         final java.math.BigDecimal totalPrice;
+
+         Order(long id, String login, int noOfGames, java.math.BigDecimal totalPrice, String timestamp, String dueDate) {
+            this.id = id;
+            this.login = login;
+            this.noOfGames = noOfGames;
+            this.totalPrice = totalPrice;
+            this.timestamp = timestamp;
+            this.dueDate = dueDate;
+         }
+      }
+
+      static final Comparator<Game> BY_PRICE =
+         Comparator.comparingLong((Game g) -> g.cents).thenComparing(g -> g.id);
+      static final Comparator<Order> NEWEST_FIRST =
+         Comparator.comparing((Order o) -> o.timestamp).reversed().thenComparingLong(o -> o.id);
+
+      // Users: login, password, role, favGames, phoneNum, numOverDueGames, version
+      static final List<String> USER_COLUMNS = Arrays.asList("login", "password", "role", "favGames", "phoneNum", "numOverDueGames");
+      private final Map<String, List<String>> users = new HashMap<>();
+      private final Map<String, Game> games = new HashMap<>();
+      private final TreeSet<Game> gamesByPrice = new TreeSet<>(BY_PRICE);
+      private final Map<String, TreeSet<Game>> gamesByGenre = new HashMap<>();
+      // units left per title, the sum of its stock buckets
+      private final Map<String, Integer> stock = new HashMap<>();
+      private final Map<Long, Order> orders = new HashMap<>();
+      private final Map<String, TreeSet<Order>> ordersByLogin = new HashMap<>();
+      // GamesInOrder: orderNo -> gameID -> unitsOrdered
+      private final Map<Long, Map<String, Integer>> gamesInOrder = new HashMap<>();
+      // TrackingInfo: trackingNo -> the row, and orderNo -> trackingNo
+      private final Map<Long, List<String>> tracking = new HashMap<>();
+      private final Map<Long, Long> trackingByOrder = new HashMap<>();
+      // TrackingEvent: trackingNo -> eventTime, status, currentLocation, courierName, additionalComments, changedBy
+      private final Map<Long, List<List<String>>> trackingEvents = new HashMap<>();
+      // shipments whose units already went back into stock when they were Returned
+      private final Set<Long> stockReleased = new HashSet<>();
+      private long orderSeq = 0;
+      private long trackingSeq = 0;
+
+      /**
+       * Loads the CSV files of the data directory, the same ones load_data.sql
+       * copies into Postgres.
+       */
+      static MemoryStore load(String dataDir) throws IOException {
+         MemoryStore store = new MemoryStore();
+         for (List<String> row : readCsv(dataDir, "users.csv")) {
+            List<String> user = new ArrayList<>(row.subList(0, 6));
+            user.add("0");
+            store.users.put(row.get(0), user);
+         }
+         for (List<String> row : readCsv(dataDir, "catalog.csv")) {
+            store.addGame(new Game(row.get(0), row.get(1), row.get(2), row.get(3), row.get(4), row.get(5), 0));
+            store.stock.put(row.get(0), 10 * STOCK_BUCKETS);
+         }
+         // the files carry the display form of the keys, e.g. gamerentalorder1000
+         for (List<String> row : readCsv(dataDir, "rentalorder.csv")) {
+            long orderNo = keyOf(row.get(0));
+            store.addOrder(new Order(orderNo, row.get(1), Integer.parseInt(row.get(2)),
+                                     new java.math.BigDecimal(row.get(3)), row.get(4), row.get(5)));
+            store.orderSeq = Math.max(store.orderSeq, orderNo);
+         }
+         for (List<String> row : readCsv(dataDir, "gamesinorder.csv")) {
+            store.gamesInOrder.computeIfAbsent(keyOf(row.get(0)), id -> new LinkedHashMap<>()).put(row.get(1), Integer.parseInt(row.get(2)));
+         }
+         for (List<String> row : readCsv(dataDir, "trackinginfo.csv")) {
+            long trackingNo = keyOf(row.get(0));
+            List<String> shipment = new ArrayList<>(row.subList(0, 7));
+            shipment.set(0, Long.toString(trackingNo));
+            shipment.set(1, Long.toString(keyOf(row.get(1))));
+            store.tracking.put(trackingNo, shipment);
+            store.trackingByOrder.put(keyOf(row.get(1)), trackingNo);
+            // the file only has the current state, which becomes the shipment's one event
+            store.addEvent(trackingNo, shipment, null);
+            if (shipment.get(2).startsWith("Returned")) {
+               store.stockReleased.add(trackingNo);
+            }
+            store.trackingSeq = Math.max(store.trackingSeq, trackingNo);
+         }
+         return store;
+      }
+
+      private static List<List<String>> readCsv(String dataDir, String name) throws IOException {
+         List<List<String>> rows = new ArrayList<>();
+         BufferedReader file = new BufferedReader(new FileReader(new File(dataDir, name)));
+         file.readLine(); // header
+         String line;
+         while ((line = file.readLine()) != null) {
+            if (!line.trim().isEmpty()) {
+               rows.add(parseCsvLine(line));
+            }
+         }
+         file.close();
+         return rows;
+      }
+
+      private void addGame(Game game) {
+         games.put(game.id, game);
+         gamesByPrice.add(game);
+         gamesByGenre.computeIfAbsent(game.genre, genre -> new TreeSet<>(BY_PRICE)).add(game);
+      }
+
+      private void addOrder(Order order) {
+         orders.put(order.id, order);
+         ordersByLogin.computeIfAbsent(order.login, login -> new TreeSet<>(NEWEST_FIRST)).add(order);
+      }
+
+      private void removeGame(Game game) {
+         games.remove(game.id);
+         gamesByPrice.remove(game);
+         gamesByGenre.get(game.genre).remove(game);
+      }
+
+      // a shipment's state, in CurrentTracking's column order, recorded as its latest event
+      private void addEvent(long trackingNo, List<String> shipment, String actor) {
+         trackingEvents.computeIfAbsent(trackingNo, id -> new ArrayList<>())
+            .add(Arrays.asList(shipment.get(5), shipment.get(2), shipment.get(3), shipment.get(4), shipment.get(6), actor));
+      }
+
+      private void releaseStock(long orderNo) {
+         for (Map.Entry<String, Integer> line : gamesInOrder.getOrDefault(orderNo, Collections.emptyMap()).entrySet()) {
+            stock.merge(line.getKey(), line.getValue(), Integer::sum);
+         }
+      }
+
+      public synchronized boolean create(String login, String password, String phoneNum) {
+         if (users.containsKey(login)) {
+            return false;
+         }
+         users.put(login, new ArrayList<>(Arrays.asList(login, password, "customer", "", phoneNum, "0", "0")));
+         return true;
+      }
+
+      public synchronized boolean authenticate(String login, String password) {
+         List<String> user = users.get(login);
+         return user != null && user.get(1).equals(password);
+      }
+
+      public synchronized List<String> profile(String login) {
+         List<String> user = users.get(login);
+         if (user == null) {
+            return null;
+         }
+         Collection<Order> history = ordersByLogin.getOrDefault(login, new TreeSet<>(NEWEST_FIRST));
+         java.math.BigDecimal spent = java.math.BigDecimal.ZERO;
+         int rented = 0;
+         for (Order order : history) {
+            spent = spent.add(order.totalPrice);
+            rented += order.noOfGames;
+         }
+         List<String> profile = new ArrayList<>(user.subList(0, 6));
+         profile.add(Integer.toString(history.size()));
+         profile.add(spent.toPlainString());
+         profile.add(Integer.toString(rented));
+         profile.add(history.isEmpty() ? "never" : ((TreeSet<Order>) history).first().timestamp.substring(0, 16));
+         return profile;
+      }
+
+      public synchronized List<List<String>> browse(String genre, double maxPrice, boolean ascending) {
+         TreeSet<Game> index = genre == null ? gamesByPrice : gamesByGenre.getOrDefault(genre, new TreeSet<>(BY_PRICE));
+         // everything up to the price bound, walked in either direction
+         NavigableSet<Game> range = index;
+         if (maxPrice != Double.POSITIVE_INFINITY) {
+            String bound = java.math.BigDecimal.valueOf(Math.round(maxPrice * 100), 2).toPlainString();
+            range = index.headSet(new Game("\uffff", "", "", bound, "", "", 0), true);
+         }
+         List<List<String>> result = new ArrayList<>();
+         for (Game game : ascending ? range : range.descendingSet()) {
+            result.add(Arrays.asList(game.id, game.name, game.genre, game.price, game.description));
+         }
+         return result;
+      }
+
+      public synchronized Map<String, List<String>> lookup(Collection<String> gameIDs) {
+         Map<String, List<String>> found = new HashMap<>();
+         for (String gameID : gameIDs) {
+            Game game = games.get(gameID);
+            if (game != null) {
+               found.put(gameID, Arrays.asList(game.name, game.price));
+            }
+         }
+         return found;
+      }
+
+      public synchronized long[] place(String login, Map<String, Integer> lines, int totalGames, double totalPrice) throws SQLException {
+         // every check comes before the first change, so a failed order leaves nothing behind
+         for (Map.Entry<String, Integer> line : lines.entrySet()) {
+            if (!games.containsKey(line.getKey())) {
+               throw new SQLException("No game " + line.getKey() + " in the catalog.");
+            }
+            if (stock.getOrDefault(line.getKey(), 0) < line.getValue()) {
+               throw new SQLException("Not enough copies of " + line.getKey() + " in stock.");
+            }
+         }
+         for (Map.Entry<String, Integer> line : lines.entrySet()) {
+            stock.merge(line.getKey(), -line.getValue(), Integer::sum);
+         }
+
+         long orderNo = ++orderSeq;
+         long trackingNo = ++trackingSeq;
+         long now = System.currentTimeMillis();
+         String timestamp = new Timestamp(now).toString();
+         String dueDate = new Timestamp(now + 7L * 24 * 60 * 60 * 1000).toString();
+
+         addOrder(new Order(orderNo, login, totalGames, java.math.BigDecimal.valueOf(totalPrice).setScale(2, java.math.RoundingMode.HALF_UP),
+                            timestamp, dueDate));
+         gamesInOrder.put(orderNo, new LinkedHashMap<>(lines));
+         tracking.put(trackingNo, Arrays.asList(Long.toString(trackingNo), Long.toString(orderNo), "Order Processing", "Riverside, CA", "TBD", timestamp, ""));
+         trackingByOrder.put(orderNo, trackingNo);
+         addEvent(trackingNo, tracking.get(trackingNo), login);
+         return new long[] { orderNo, trackingNo };
+      }
+
+      public synchronized List<Long> recent(String login, int limit) {
+         List<Long> ids = new ArrayList<>();
+         for (Order order : ordersByLogin.getOrDefault(login, new TreeSet<>(NEWEST_FIRST))) {
+            if (limit > 0 && ids.size() == limit) {
+               break;
+            }
+            ids.add(order.id);
+         }
+         return ids;
+      }
+
+      public synchronized List<String> find(String login, long orderNo) {
+         Order order = orders.get(orderNo);
+         if (order == null || !order.login.equals(login)) {
+            return null;
+         }
+         Long trackingNo = trackingByOrder.get(orderNo);
+         return Arrays.asList(order.timestamp, order.dueDate, order.totalPrice.toPlainString(), trackingNo == null ? null : trackingNo.toString());
+      }
+
+      public synchronized List<List<String>> games(long orderNo) {
+         List<List<String>> result = new ArrayList<>();
+         for (Map.Entry<String, Integer> line : gamesInOrder.getOrDefault(orderNo, Collections.emptyMap()).entrySet()) {
+            result.add(Arrays.asList(line.getKey(), Integer.toString(line.getValue())));
+         }
+         return result;
+      }
+
+      public synchronized List<List<String>> unitsRented() {
+         Map<String, Long> units = new HashMap<>();
+         for (Map<String, Integer> lines : gamesInOrder.values()) {
+            for (Map.Entry<String, Integer> line : lines.entrySet()) {
+               units.merge(line.getKey(), (long) line.getValue(), Long::sum);
+            }
+         }
+         List<List<String>> result = new ArrayList<>();
+         for (Map.Entry<String, Long> game : units.entrySet()) {
+            result.add(Arrays.asList(game.getKey(), Long.toString(game.getValue())));
+         }
+         return result;
+      }
+
+      public synchronized List<List<String>> unitsRentedSince(int days) {
+         String since = LocalDate.now().minusDays(days - 1).toString();
+         Map<List<String>, Long> units = new HashMap<>();
+         for (Order order : orders.values()) {
+            String day = order.timestamp.substring(0, 10);
+            if (day.compareTo(since) >= 0) {
+               for (Map.Entry<String, Integer> line : gamesInOrder.getOrDefault(order.id, Collections.emptyMap()).entrySet()) {
+                  units.merge(Arrays.asList(line.getKey(), day), (long) line.getValue(), Long::sum);
+               }
+            }
+         }
+         List<List<String>> result = new ArrayList<>();
+         for (Map.Entry<List<String>, Long> game : units.entrySet()) {
+            result.add(Arrays.asList(game.getKey().get(0), game.getKey().get(1), Long.toString(game.getValue())));
+         }
+         return result;
+      }
+
+      public synchronized List<String> findShipment(String login, long trackingNo) {
+         List<String> row = tracking.get(trackingNo);
+         if (row == null) {
+            return null;
+         }
+         Order order = orders.get(Long.parseLong(row.get(1)));
+         return order != null && order.login.equals(login) ? row : null;
+      }
+
+      public synchronized List<String> account(String login) {
+         List<String> user = users.get(login);
+         return user == null ? null : new ArrayList<>(user.subList(1, 7));
+      }
+
+      public synchronized boolean updateUser(String login, Map<String, String> changes, String version) throws SQLException {
+         List<String> user = users.get(login);
+         if (user == null || version != null && !version.equals(user.get(6))) {
+            return false;
+         }
+         // checked up front, so a bad value changes nothing, like the failed UPDATE
+         List<String> updated = new ArrayList<>(user);
+         for (Map.Entry<String, String> change : changes.entrySet()) {
+            int column = columnOf(USER_COLUMNS, change.getKey());
+            if (column <= 0) {
+               throw new SQLException("No column " + change.getKey() + " to update in Users.");
+            }
+            if (column == 5) {
+               parseNumber(change.getValue());
+            }
+            updated.set(column, change.getValue());
+         }
+         updated.set(6, Integer.toString(Integer.parseInt(user.get(6)) + 1));
+         users.put(login, updated);
+         return true;
+      }
+
+      public synchronized void renameUser(String login, String newLogin) throws SQLException {
+         List<String> user = users.get(login);
+         if (user == null) {
+            return;
+         }
+         if (users.containsKey(newLogin)) {
+            throw new SQLException("The login " + newLogin + " is already taken.");
+         }
+         users.remove(login);
+         List<String> renamed = new ArrayList<>(user);
+         renamed.set(0, newLogin);
+         renamed.set(6, Integer.toString(Integer.parseInt(user.get(6)) + 1));
+         users.put(newLogin, renamed);
+         // the orders reference the login, so they follow it like ON UPDATE CASCADE
+         TreeSet<Order> history = ordersByLogin.remove(login);
+         if (history != null) {
+            for (Order order : history) {
+               addOrder(new Order(order.id, newLogin, order.noOfGames, order.totalPrice, order.timestamp, order.dueDate));
+            }
+         }
+      }
+
+      public synchronized List<String> game(String gameID) {
+         Game game = games.get(gameID);
+         return game == null ? null : Arrays.asList(game.name, game.genre, game.price, game.description, game.imageURL,
+                                                    Integer.toString(game.version));
+      }
+
+      public synchronized boolean updateGame(String gameID, Map<String, String> changes, String version) throws SQLException {
+         Game game = games.get(gameID);
+         if (game == null || version != null && !version.equals(Integer.toString(game.version))) {
+            return false;
+         }
+         Map<String, String> row = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+         row.put("gameName", game.name);
+         row.put("genre", game.genre);
+         row.put("price", game.price);
+         row.put("description", game.description);
+         row.put("imageURL", game.imageURL);
+         for (Map.Entry<String, String> change : changes.entrySet()) {
+            if (!row.containsKey(change.getKey())) {
+               throw new SQLException("No column " + change.getKey() + " to update in Catalog.");
+            }
+            row.put(change.getKey(), change.getValue());
+         }
+         Game updated;
+         try {
+            // numeric(10,2), as the price column stores it
+            String price = new java.math.BigDecimal(row.get("price")).setScale(2, java.math.RoundingMode.HALF_UP).toPlainString();
+            updated = new Game(gameID, row.get("gameName"), row.get("genre"), price, row.get("description"), row.get("imageURL"),
+                               game.version + 1);
+         } catch (NumberFormatException e) {
+            throw new SQLException("Invalid price: " + row.get("price"));
+         }
+         // the price and genre indexes are keyed on the old values, so the game is indexed again
+         removeGame(game);
+         addGame(updated);
+         return true;
+      }
+
+      public synchronized void restock(String gameID, int units) {
+         if (games.containsKey(gameID)) {
+            stock.merge(gameID, units, Integer::sum);
+         }
+      }
+
+      public synchronized List<String> cancel(String login, long orderNo, Map<String, Integer> lines) {
+         Order order = orders.get(orderNo);
+         Long trackingNo = trackingByOrder.get(orderNo);
+         if (order == null || !order.login.equals(login) || trackingNo == null) {
+            return null;
+         }
+         List<String> shipment = tracking.get(trackingNo);
+         List<String> status = Arrays.asList(shipment.get(2), shipment.get(4), shipment.get(3), order.timestamp.substring(0, 10));
+         if (status.get(0).equals("Order Processing")) {
+            releaseStock(orderNo);
+            lines.putAll(gamesInOrder.getOrDefault(orderNo, Collections.emptyMap()));
+            orders.remove(orderNo);
+            ordersByLogin.get(login).remove(order);
+            gamesInOrder.remove(orderNo);
+            tracking.remove(trackingNo);
+            trackingByOrder.remove(orderNo);
+            trackingEvents.remove(trackingNo);
+            stockReleased.remove(trackingNo);
+         }
+         return status;
+      }
+
+      public synchronized boolean hasShipment(long trackingNo) {
+         return tracking.containsKey(trackingNo);
+      }
+
+      public synchronized List<String> appendEvent(long trackingNo, String column, String value, String actor) throws SQLException {
+         List<String> before = tracking.get(trackingNo);
+         if (before == null) {
+            return null;
+         }
+         int index = Arrays.asList("trackingNo", "orderNo", "status", "currentLocation", "courierName", "lastUpdateDate",
+                                   "additionalComments").indexOf(column);
+         if (index < 2 || index == 5) {
+            throw new SQLException("No tracking column " + column + ".");
+         }
+         List<String> after = new ArrayList<>(before);
+         after.set(index, value);
+         after.set(5, new Timestamp(System.currentTimeMillis()).toString());
+         tracking.put(trackingNo, after);
+         addEvent(trackingNo, after, actor);
+         // there is no Outbox to notify the customer through; only the stock follows a return
+         long orderNo = Long.parseLong(before.get(1));
+         if (column.equals("status") && !value.equals(before.get(2)) && value.startsWith("Returned") && stockReleased.add(trackingNo)) {
+            releaseStock(orderNo);
+         }
+         return before;
+      }
+
+      public synchronized List<List<String>> history(long trackingNo) {
+         return new ArrayList<>(trackingEvents.getOrDefault(trackingNo, Collections.emptyList()));
+      }
+
+      public synchronized List<List<String>> shipmentCounts() {
+         Map<List<String>, Long> counts = new HashMap<>();
+         for (List<String> shipment : tracking.values()) {
+            counts.merge(Arrays.asList(shipment.get(2), shipment.get(4), shipment.get(3)), 1L, Long::sum);
+         }
+         List<List<String>> result = new ArrayList<>();
+         for (Map.Entry<List<String>, Long> count : counts.entrySet()) {
+            List<String> row = new ArrayList<>(count.getKey());
+            row.add(Long.toString(count.getValue()));
+            result.add(row);
+         }
+         return result;
+      }
+
+      // position of a column in a row, matched case-insensitively like in SQL, or -1
+      private static int columnOf(List<String> columns, String column) {
+         for (int i = 0; i < columns.size(); i++) {
+            if (columns.get(i).equalsIgnoreCase(column)) {
+               return i;
+            }
+         }
+         return -1;
+      }
+
+      private static void parseNumber(String value) throws SQLException {
+         try {
+            Integer.parseInt(value.trim());
+         } catch (NumberFormatException e) {
+            throw new SQLException("Invalid number: " + value);
+         }
+      }
+   }
+
+   /**
+    * Where customer notifications are delivered to.
+    */
+   interface NotificationSink {
+      /**
+       * Delivers a batch of messages, each a messageID, login, topic, payload
+       * and createdAt row. The batch only counts as delivered when this
+       * returns; on an exception all of it is offered again later, so a sink
+       * may see a message more than once.
+       */
+      void deliver(List<List<String>> messages) throws IOException;
+
+      /**
+       * @param spec "file:<path>" to append to a local file, or "stub" to keep messages in memory
+       */
+      static NotificationSink forName(String spec) {
+         if (spec.equals("stub")) {
+            return new StubSink();
+         }
+         return new FileSink(spec.startsWith("file:") ? spec.substring("file:".length()) : spec);
+      }
+   }
+
+   /**
+    * Appends every message as a CSV line to a local file, synced to disk
+    * before the batch is acknowledged.
+    */
+   static class FileSink implements NotificationSink {
+      private final String path;
+
+      FileSink(String path) {
+         this.path = path;
+      }
+
+      public void deliver(List<List<String>> messages) throws IOException {
+         FileOutputStream file = new FileOutputStream(path, true);
+         try {
+            BufferedWriter out = new BufferedWriter(new OutputStreamWriter(file, StandardCharsets.UTF_8));
+            for (List<String> message : messages) {
+               String line = "";
+               for (String field : message) {
+                  line += (line.isEmpty() ? "" : ",") + csvField(field);
+               }
+               out.write(line);
+               out.newLine();
+            }
+            out.flush();
+            file.getFD().sync();
+         } finally {
+            file.close();
+         }
+      }
+   }
+
+   /**
+    * Keeps delivered messages in memory, for tests.
+    */
+   static class StubSink implements NotificationSink {
+      final List<List<String>> delivered = Collections.synchronizedList(new ArrayList<>());
+
+      public void deliver(List<List<String>> messages) {
+         delivered.addAll(messages);
+      }
+   }
+
+   /**
+    * Background thread delivering the Outbox. It claims a batch of the oldest
+    * rows with FOR UPDATE SKIP LOCKED, hands it to the sink and deletes the
+    * rows in the same transaction, so a batch is acknowledged as a whole and
+    * several processes can dispatch side by side without taking each
+    * other's rows. A failed delivery rolls back and the batch is retried
+    * after a pause: delivery is at least once. It takes the databases in
+    * turn, each over a connection of its own, and never touches the order
+    * or tracking tables.
+    */
+   static class OutboxDispatcher {
+      static final int BATCH_SIZE = 100;
+      static final long IDLE_WAIT_MS = 1000;
+      static final long FAILURE_WAIT_MS = 5000;
+
+      private final List<GameRental> sources;
+      private final NotificationSink sink;
+      private final Thread thread;
+      private volatile boolean running = true;
+
+      OutboxDispatcher(List<GameRental> sources, NotificationSink sink) {
+         this.sources = sources;
+         this.sink = sink;
+         this.thread = new Thread(this::run, "outbox-dispatcher");
+         this.thread.setDaemon(true);
+         this.thread.start();
+      }
+
+      void close() {
+         running = false;
+         thread.interrupt();
+         try {
+            thread.join();
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+         }
+      }
+
+      private void run() {
+         Connection[] conns = new Connection[sources.size()];
+         while (running) {
+            // waits once every database is drained, or after any of them failed
+            long wait = IDLE_WAIT_MS;
+            for (int i = 0; i < conns.length && running; i++) {
+               try {
+                  if (conns[i] == null) {
+                     conns[i] = sources.get(i).openConnection();
+                     conns[i].setAutoCommit(false);
+                  }
+                  Tracer.begin("OutboxDispatch", null);
+                  int dispatched = dispatchBatch(conns[i]);
+                  if (dispatched == 0) {
+                     // an idle poll every second would bury the operations in the trace
+                     Tracer.discard();
+                  } else {
+                     Tracer.end();
+                  }
+                  if (dispatched == BATCH_SIZE && wait == IDLE_WAIT_MS) {
+                     wait = 0;
+                  }
+               } catch (SQLException | IOException e) {
+                  Tracer.end();
+                  if (conns[i] != null) {
+                     try {
+                        conns[i].rollback();
+                        conns[i].close();
+                     } catch (SQLException ignored) {
+                        // the connection is replaced either way
+                     }
+                     conns[i] = null;
+                  }
+                  wait = FAILURE_WAIT_MS;
+               }
+            }
+            if (wait > 0) {
+               try {
+                  Thread.sleep(wait);
+               } catch (InterruptedException e) {
+                  // woken up by close()
+               }
+            }
+         }
+         for (Connection conn : conns) {
+            if (conn != null) {
+               try {
+                  conn.close();
+               } catch (SQLException e) {
+                  // ignored.
+               }
+            }
+         }
+      }
+
+      // claims, delivers and acknowledges one batch; returns how many messages it held
+      private int dispatchBatch(Connection conn) throws SQLException, IOException {
+         List<List<String>> batch = executeQueryAndReturnResult(conn,
+            "SELECT messageID, login, topic, payload, createdAt FROM Outbox " +
+            "ORDER BY messageID LIMIT " + BATCH_SIZE + " FOR UPDATE SKIP LOCKED;");
+         if (batch.isEmpty()) {
+            conn.commit();
+            return 0;
+         }
+         sink.deliver(batch);
+         String ids = "";
+         for (List<String> message : batch) {
+            ids += (ids.isEmpty() ? "" : ", ") + message.get(0);
+         }
+         String delete = "DELETE FROM Outbox WHERE messageID IN (" + ids + ");";
+         Statement stmt = conn.createStatement();
+         long start = System.nanoTime();
+         Tracer.record(delete, start, stmt.executeUpdate(delete));
+         stmt.close();
+         conn.commit();
+         return batch.size();
+      }
+   }
+
+   /**
+    * Method to spread users and their orders over several databases. Each
+    * user lives on the shard picked by ShardedStore.shardOf; the catalog is
+    * mastered here, on shard 0, and copied to the others by catalogChanged().
+    *
+    * @param shards every shard, this one first
+    */
+   public void enableSharding(List<GameRental> shards) {
+      List<JdbcStore> stores = new ArrayList<>();
+      for (GameRental shard : shards) {
+         shard._idSource = this;
+         stores.add(new JdbcStore(shard));
+      }
+      ShardedStore store = new ShardedStore(stores);
+      this._shards = shards;
+      this._users = store;
+      this._catalog = store;
+      this._orders = store;
+      this._tracking = store;
+   }
+
+   /**
+    * @return whether a main-menu entry can run on this deployment. The
+    *         in-memory store has no SQL behind it, so the exports, sales
+    *         reports, archiving and bulk catalog updates, which are written
+    *         as SQL, are left out there.
+    */
+   public boolean supportsMenuChoice(int choice) {
+      if (isInMemory()) {
+         return choice < 12 || choice == 15 || choice > 16;
+      }
+      return true;
+   }
+
+   /**
+    * @return every database of this deployment: the shards, shard 0 first, or only this one
+    */
+   public List<GameRental> databases() {
+      return this._shards == null ? Collections.singletonList(this) : this._shards;
+   }
+
+   /**
+    * Method to run a read-only query on every shard at once, each over a
+    * connection of its own, and return all of their rows. Aggregates come
+    * back as one partial row per shard for the caller to combine. Without
+    * sharding it simply runs the query on a new connection.
+    *
+    * @param query the input query string
+    * @return the rows of every shard
+    * @throws java.sql.SQLException when the query failed on any shard
+    */
+   public List<List<String>> scatterQuery(String query) throws SQLException {
+      List<Callable<List<List<String>>>> calls = new ArrayList<>();
+      for (GameRental shard : databases()) {
+         calls.add(() -> {
+            Connection conn = shard.openConnection();
+            try {
+               return executeQueryAndReturnResult(conn, query);
+            } finally {
+               conn.close();
+            }
+         });
+      }
+      return gatherAll(calls);
+   }
+
+   // runs the calls in parallel and concatenates their rows in call order
+   private static List<List<String>> gatherAll(List<Callable<List<List<String>>>> calls) throws SQLException {
+      if (calls.size() == 1) {
+         try {
+            return calls.get(0).call();
+         } catch (SQLException e) {
+            throw e;
+         } catch (Exception e) {
+            throw new SQLException(e.getMessage());
+         }
+      }
+      ExecutorService pool = Executors.newFixedThreadPool(calls.size());
+      try {
+         List<Future<List<List<String>>>> parts = new ArrayList<>();
+         for (Callable<List<List<String>>> call : calls) {
+            parts.add(pool.submit(Tracer.propagate(call)));
+         }
+         List<List<String>> rows = new ArrayList<>();
+         for (Future<List<List<String>>> part : parts) {
+            rows.addAll(part.get());
+         }
+         return rows;
+      } catch (ExecutionException e) {
+         if (e.getCause() instanceof SQLException) {
+            throw (SQLException) e.getCause();
+         }
+         throw new SQLException(String.valueOf(e.getCause()));
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new SQLException("interrupted");
+      } finally {
+         pool.shutdownNow();
+      }
+   }
+
+   /**
+    * Method to run after the catalog was changed through this instance: the
+    * other shards get a copy of it and the local snapshot is refreshed.
+    */
+   public void catalogChanged() {
+      if (isInMemory()) {
+         return; // browsing reads the store's own indexes, there is no snapshot to refresh
+      }
+      if (this._shards != null) {
+         try {
+            replicateCatalog();
+         } catch (SQLException e) {
+            System.err.println("Warning - Catalog not copied to every shard, run the update again: " + e.getMessage());
+         }
+      }
+      catalogSnapshot(true);
+   }
+
+   // makes every other shard's Catalog equal to this one's; only rows that differ are written
+   private void replicateCatalog() throws SQLException {
+      String columns = "gameID, gameName, genre, price, description, imageURL, version";
+      List<List<String>> master = executeQueryAndReturnResult("SELECT " + columns + " FROM Catalog;");
+      String ids = "";
+      for (List<String> game : master) {
+         ids += (ids.isEmpty() ? "" : ",") + "\"" + game.get(0).replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+      }
+      String upsertSql =
+         "INSERT INTO Catalog (" + columns + ") VALUES (?, ?, ?, ?::numeric, ?, ?, ?::integer) " +
+         "ON CONFLICT (gameID) DO UPDATE SET gameName = EXCLUDED.gameName, genre = EXCLUDED.genre, price = EXCLUDED.price, " +
+         "description = EXCLUDED.description, imageURL = EXCLUDED.imageURL, version = EXCLUDED.version " +
+         "WHERE (Catalog.gameName, Catalog.genre, Catalog.price, Catalog.description, Catalog.imageURL) " +
+         "IS DISTINCT FROM (EXCLUDED.gameName, EXCLUDED.genre, EXCLUDED.price, EXCLUDED.description, EXCLUDED.imageURL)";
+      String removedSql = "DELETE FROM Catalog WHERE gameID <> ALL(?::varchar[])";
+      String stockSql = "INSERT INTO CatalogStock (gameID, bucket, available) " +
+                        "SELECT gameID, bucket, 0 FROM Catalog, generate_series(0, " + (STOCK_BUCKETS - 1) + ") AS bucket " +
+                        "ON CONFLICT (gameID, bucket) DO NOTHING";
+      for (GameRental shard : this._shards) {
+         if (shard == this) {
+            continue;
+         }
+         Connection conn = shard._connection;
+         try {
+            conn.setAutoCommit(false);
+            PreparedStatement upsert = conn.prepareStatement(upsertSql);
+            for (List<String> game : master) {
+               for (int i = 0; i < game.size(); i++) {
+                  upsert.setString(i + 1, game.get(i));
+               }
+               upsert.addBatch();
+            }
+            long start = System.nanoTime();
+            Tracer.recordBatch(upsertSql, start, upsert.executeBatch());
+            upsert.close();
+            PreparedStatement removed = conn.prepareStatement(removedSql);
+            removed.setString(1, "{" + ids + "}");
+            start = System.nanoTime();
+            Tracer.record(removedSql, start, removed.executeUpdate());
+            removed.close();
+            // a game new to this shard has no stock here until a restock gives the shard its share
+            Statement buckets = conn.createStatement();
+            start = System.nanoTime();
+            Tracer.record(stockSql, start, buckets.executeUpdate(stockSql));
+            buckets.close();
+            conn.commit();
+         } catch (SQLException e) {
+            conn.rollback();
+            throw e;
+         } finally {
+            conn.setAutoCommit(true);
+         }
+      }
+   }
+
+   /**
+    * The repositories over several databases. A user and everything hanging
+    * off them (orders, their games, tracking) live together on the shard
+    * their login hashes to, so every customer operation, order placement
+    * included, is a single-database transaction on that shard. Every shard
+    * holds a full copy of the catalog, so browsing reads shard 0 and order
+    * placement can check prices and stock locally. Each shard keeps its own
+    * share of the stock. Lookups without a login are sent to every shard
+    * and their rows merged.
+    */
+   static class ShardedStore implements UserRepository, CatalogRepository, OrderRepository, TrackingRepository {
+      private final List<JdbcStore> shards;
+
+      ShardedStore(List<JdbcStore> shards) {
+         this.shards = shards;
+      }
+
+      /**
+       * @return the shard a login lives on: CRC32 of its UTF-8 bytes modulo the shard count
+       */
+      static int shardOf(String login, int shardCount) {
+         CRC32 crc = new CRC32();
+         crc.update(login.getBytes(StandardCharsets.UTF_8));
+         return (int) (crc.getValue() % shardCount);
+      }
+
+      private JdbcStore shard(String login) {
+         return shards.get(shardOf(login, shards.size()));
+      }
+
+      private interface ShardCall {
+         List<List<String>> call(JdbcStore shard) throws SQLException;
+      }
+
+      private List<List<String>> everyShard(ShardCall call) throws SQLException {
+         List<Callable<List<List<String>>>> calls = new ArrayList<>();
+         for (JdbcStore shard : shards) {
+            calls.add(() -> call.call(shard));
+         }
+         return gatherAll(calls);
+      }
+
+      public boolean create(String login, String password, String phoneNum) throws SQLException {
+         return shard(login).create(login, password, phoneNum);
+      }
+
+      public boolean authenticate(String login, String password) throws SQLException {
+         return shard(login).authenticate(login, password);
+      }
+
+      public List<String> profile(String login) throws SQLException {
+         return shard(login).profile(login);
+      }
+
+      public List<List<String>> browse(String genre, double maxPrice, boolean ascending) throws SQLException {
+         return shards.get(0).browse(genre, maxPrice, ascending);
+      }
+
+      public Map<String, List<String>> lookup(Collection<String> gameIDs) throws SQLException {
+         return shards.get(0).lookup(gameIDs);
+      }
+
+      public long[] place(String login, Map<String, Integer> lines, int totalGames, double totalPrice) throws SQLException {
+         return shard(login).place(login, lines, totalGames, totalPrice);
+      }
+
+      public List<Long> recent(String login, int limit) throws SQLException {
+         return shard(login).recent(login, limit);
+      }
+
+      public List<String> find(String login, long orderNo) throws SQLException {
+         return shard(login).find(login, orderNo);
+      }
+
+      public List<List<String>> games(long orderNo) throws SQLException {
+         return everyShard(shard -> shard.games(orderNo));
+      }
+
+      public List<List<String>> unitsRented() throws SQLException {
+         // a game rented on several shards shows up once per shard; the caller adds them up
+         return everyShard(JdbcStore::unitsRented);
+      }
+
+      public List<List<String>> unitsRentedSince(int days) throws SQLException {
+         return everyShard(shard -> shard.unitsRentedSince(days));
+      }
+
+      public List<String> findShipment(String login, long trackingNo) throws SQLException {
+         return shard(login).findShipment(login, trackingNo);
+      }
+
+      public List<String> account(String login) throws SQLException {
+         return shard(login).account(login);
+      }
+
+      public boolean updateUser(String login, Map<String, String> changes, String version) throws SQLException {
+         return shard(login).updateUser(login, changes, version);
+      }
+
+      public void renameUser(String login, String newLogin) throws SQLException {
+         JdbcStore from = shard(login);
+         JdbcStore to = shard(newLogin);
+         from.renameUser(login, newLogin);
+         if (from == to) {
+            return;
+         }
+         // the new login hashes to another shard, so the user and everything of theirs moves there
+         try {
+            moveUser(from.esql._connection, to.esql._connection, newLogin);
+         } catch (SQLException e) {
+            // the copy commits as a whole; when it did not, the old login keeps the user reachable where they are
+            if (to.account(newLogin) == null) {
+               from.renameUser(newLogin, login);
+            }
+            throw e;
+         }
+      }
+
+      public List<String> game(String gameID) throws SQLException {
+         return shards.get(0).game(gameID);
+      }
+
+      public boolean updateGame(String gameID, Map<String, String> changes, String version) throws SQLException {
+         // on the master copy; catalogChanged() passes it on to the other shards
+         return shards.get(0).updateGame(gameID, changes, version);
+      }
+
+      public void restock(String gameID, int units) throws SQLException {
+         // orders only take stock from their own shard, so each gets a share the way a shard's buckets do:
+         // shard i gets units / n, and one more while i is below the remainder
+         int added = 0;
+         for (int i = 0; i < shards.size(); i++) {
+            int share = units / shards.size() + (i < units % shards.size() ? 1 : 0);
+            try {
+               shards.get(i).restock(gameID, share);
+            } catch (SQLException e) {
+               throw new SQLException(added + " of " + units + " units were added before shard " + i + " failed: " + e.getMessage());
+            }
+            added += share;
+         }
+      }
+
+      public List<String> cancel(String login, long orderNo, Map<String, Integer> lines) throws SQLException {
+         return shard(login).cancel(login, orderNo, lines);
+      }
+
+      public boolean hasShipment(long trackingNo) throws SQLException {
+         return !everyShard(shard -> shard.hasShipment(trackingNo) ? Collections.singletonList(Collections.emptyList())
+                                                                  : Collections.emptyList()).isEmpty();
+      }
+
+      public List<String> appendEvent(long trackingNo, String column, String value, String actor) throws SQLException {
+         // tracking numbers come from shard 0's sequence, so at most one shard holds the shipment
+         for (JdbcStore shard : shards) {
+            List<String> before = shard.appendEvent(trackingNo, column, value, actor);
+            if (before != null) {
+               return before;
+            }
+         }
+         return null;
+      }
+
+      public List<List<String>> history(long trackingNo) throws SQLException {
+         return everyShard(shard -> shard.history(trackingNo));
+      }
+
+      public List<List<String>> shipmentCounts() throws SQLException {
+         // one partial count per shard; the caller adds them up
+         return everyShard(JdbcStore::shipmentCounts);
+      }
+   }
+
+   /**
+    * Moves every user whose shard differs between two shard lists, together
+    * with their orders, order games, tracking rows, tracking history and
+    * pending notifications. Each user is copied to the new shard in one
+    * transaction and then deleted from the old one in another. A user already
+    * present on the new shard is taken to be copied by an interrupted earlier
+    * run, so running the tool again finishes the job. Run it while the
+    * application is stopped, then start it with the new list.
+    *
+    * @param user the database user on every shard
+    * @param oldShards the current list, each entry port/dbname
+    * @param newShards the new list, each entry port/dbname
+    */
+   public static void reshard(String user, String[] oldShards, String[] newShards) throws SQLException {
+      Map<String, Connection> connections = new HashMap<>();
+      try {
+         for (String shard : oldShards) {
+            connections.putIfAbsent(shard, connectShard(shard, user));
+         }
+         for (String shard : newShards) {
+            connections.putIfAbsent(shard, connectShard(shard, user));
+         }
+         long moved = 0;
+         for (String from : oldShards) {
+            for (List<String> row : executeQueryAndReturnResult(connections.get(from), "SELECT login FROM Users;")) {
+               String login = row.get(0);
+               String to = newShards[ShardedStore.shardOf(login, newShards.length)];
+               if (!to.equals(from)) {
+                  moveUser(connections.get(from), connections.get(to), login);
+                  moved++;
+               }
+            }
+            System.out.println("Done with " + from + ", " + moved + " user(s) moved so far.");
+         }
+         System.out.println(moved + " user(s) moved.");
+      } finally {
+         for (Connection conn : connections.values()) {
+            conn.close();
+         }
+      }
+   }
+
+   /**
+    * Connects to every shard of a list and puts a sharded deployment on top,
+    * shard 0 first. The returned instance serves them all.
+    *
+    * @param shardList port/dbname,port/dbname,...
+    */
+   private static GameRental openShards(String user, String shardList) throws SQLException {
+      // shard 0 also holds the master copy of the catalog and the ID sequences
+      List<GameRental> shards = new ArrayList<>();
+      for (String shard : shardList.split(",")) {
+         String[] portAndName = shard.split("/", 2);
+         GameRental connection = new GameRental (portAndName[1], portAndName[0], user, "");
+         try {
+            connection.ensureOrderPartitions();
+         } catch (SQLException e) {
+            System.err.println("Warning - Unable to create order partitions on " + shard + ": " + e.getMessage());
+         }
+         shards.add(connection);
+      }
+      GameRental esql = shards.get(0);
+      esql.enableSharding(shards);
+      return esql;
+   }
+
+   /**
+    * Runs the repositories of a sharded deployment against the real shards:
+    * for a test user on each shard it reads and changes the account, checks
+    * that a stale version is turned away, places an order, tracks it and
+    * cancels it, restocks a title and checks every shard got its share, and
+    * moves a user to another shard by renaming them. The test users and
+    * their messages are deleted and the stock put back afterwards.
+    *
+    * @return the number of checks that failed
+    */
+   public static int shardTest(String user, String shardList) throws SQLException {
+      GameRental esql = openShards(user, shardList);
+      List<GameRental> databases = esql.databases();
+      int n = databases.size();
+      List<String> logins = new ArrayList<>();
+      int[] failed = { 0 };
+      Check check = (what, ok) -> {
+         System.out.println((ok ? "PASS " : "FAIL ") + what);
+         if (!ok) {
+            failed[0]++;
+         }
+      };
+
+      List<List<String>> titles = esql._catalog.browse(null, Double.MAX_VALUE, true);
+      if (titles.isEmpty()) {
+         throw new SQLException("The catalog is empty.");
+      }
+      String gameID = titles.get(0).get(0);
+      double price = Double.parseDouble(titles.get(0).get(3));
+      String stockQuery = "SELECT bucket, available FROM CatalogStock WHERE gameID = '" + gameID.replace("'", "''") + "' ORDER BY bucket;";
+      List<List<List<String>>> stockBefore = new ArrayList<>();
+      for (GameRental database : databases) {
+         stockBefore.add(database.executeQueryAndReturnResult(stockQuery));
+      }
+
+      try {
+         // one user per shard, found by trying names until one hashes there
+         for (int i = 0, k = 0; logins.size() < n; k++) {
+            String login = "shardtest_" + k;
+            if (ShardedStore.shardOf(login, n) == i) {
+               check.check("create user " + login + " on shard " + i, esql._users.create(login, "shardtest", "000-000-0000"));
+               logins.add(login);
+               i++;
+            }
+         }
+
+         for (String login : logins) {
+            List<String> account = esql._users.account(login);
+            check.check("read account of " + login, account != null);
+            String version = account.get(5);
+            check.check("update " + login, esql._users.updateUser(login, Collections.singletonMap("favGames", "shard test"), version));
+            check.check("stale update of " + login + " refused",
+                        !esql._users.updateUser(login, Collections.singletonMap("favGames", "stale"), version));
+            check.check("update of " + login + " stored", "shard test".equals(esql._users.account(login).get(2)));
+         }
+
+         // two units per shard, so every shard can take an order below
+         esql._catalog.restock(gameID, 2 * n + 1);
+         for (int i = 0; i < n; i++) {
+            int added = 0;
+            List<List<String>> after = databases.get(i).executeQueryAndReturnResult(stockQuery);
+            for (int b = 0; b < after.size(); b++) {
+               added += Integer.parseInt(after.get(b).get(1)) - Integer.parseInt(stockBefore.get(i).get(b).get(1));
+            }
+            check.check("shard " + i + " got its share of the restock", added == 2 + (i < 1 ? 1 : 0));
+         }
+
+         for (String login : logins) {
+            long[] placed = esql._orders.place(login, Collections.singletonMap(gameID, 1), 1, price);
+            long orderNo = placed[0];
+            long trackingNo = placed[1];
+            check.check("order " + orderNo + " of " + login + " found", esql._orders.find(login, orderNo) != null);
+            check.check("shipment " + trackingNo + " found", esql._tracking.hasShipment(trackingNo));
+            check.check("event appended to shipment " + trackingNo,
+                        esql._tracking.appendEvent(trackingNo, "additionalComments", "shard test", "shardtest") != null);
+            List<List<String>> history = esql._tracking.history(trackingNo);
+            check.check("event in history of shipment " + trackingNo,
+                        !history.isEmpty() && "shard test".equals(history.get(history.size() - 1).get(4)));
+            Map<String, Integer> lines = new HashMap<>();
+            List<String> cancelled = esql._orders.cancel(login, orderNo, lines);
+            check.check("order " + orderNo + " cancelled", cancelled != null && cancelled.get(0).equals("Order Processing")
+                                                           && Integer.valueOf(1).equals(lines.get(gameID)));
+            check.check("shipment " + trackingNo + " gone", !esql._tracking.hasShipment(trackingNo));
+         }
+
+         if (n > 1) {
+            // a name that hashes to the next shard, so the user and their order have to move
+            String login = logins.get(0);
+            long orderNo = esql._orders.place(login, Collections.singletonMap(gameID, 1), 1, price)[0];
+            String newLogin = null;
+            for (int k = 0; newLogin == null; k++) {
+               if (ShardedStore.shardOf("shardtest_moved_" + k, n) == 1) {
+                  newLogin = "shardtest_moved_" + k;
+               }
+            }
+            esql._users.renameUser(login, newLogin);
+            logins.set(0, newLogin);
+            check.check(login + " renamed to " + newLogin + " on shard 1", esql._users.account(newLogin) != null
+                        && databases.get(1).executeQueryAndReturnResult("SELECT 1 FROM Users WHERE login = '" + newLogin + "';").size() == 1);
+            check.check(login + " gone from shard 0",
+                        databases.get(0).executeQueryAndReturnResult("SELECT 1 FROM Users WHERE login = '" + login + "';").isEmpty());
+            check.check("order " + orderNo + " moved with its user", esql._orders.recent(newLogin, 0).size() == 1);
+            List<String> cancelled = esql._orders.cancel(newLogin, orderNo, new HashMap<>());
+            check.check("moved order " + orderNo + " cancelled", cancelled != null && cancelled.get(0).equals("Order Processing"));
+         }
+      } finally {
+         for (int i = 0; i < n; i++) {
+            GameRental database = databases.get(i);
+            String users = "";
+            for (String login : logins) {
+               users += (users.isEmpty() ? "" : ", ") + "'" + login + "'";
+            }
+            if (!users.isEmpty()) {
+               database.executeUpdate("DELETE FROM Outbox WHERE login IN (" + users + ");");
+               database.executeUpdate("DELETE FROM RentalOrderArchive WHERE login IN (" + users + ");");
+               database.executeUpdate("DELETE FROM Users WHERE login IN (" + users + ");");
+            }
+            for (List<String> bucket : stockBefore.get(i)) {
+               database.executeUpdate("UPDATE CatalogStock SET available = " + bucket.get(1) + " WHERE gameID = '" +
+                                      gameID.replace("'", "''") + "' AND bucket = " + bucket.get(0) + ";");
+            }
+         }
+         esql.cleanup();
+      }
+      return failed[0];
+   }
+
+   private interface Check {
+      void check(String what, boolean ok);
+   }
+
+   private interface StoreCall {
+      void call() throws SQLException;
+   }
+
+   // whether the call was turned away with an SQLException
+   private static boolean fails(StoreCall call) {
+      try {
+         call.call();
+         return false;
+      } catch (SQLException e) {
+         return true;
+      }
+   }
+
+   // runs a menu operation with the given lines as its input and returns what it printed
+   private static String runMenu(String input, Runnable operation) {
+      BufferedReader stdin = in;
+      PrintStream stdout = System.out;
+      ByteArrayOutputStream printed = new ByteArrayOutputStream();
+      in = new BufferedReader(new StringReader(input));
+      System.setOut(new PrintStream(printed, true));
+      try {
+         operation.run();
+      } finally {
+         in = stdin;
+         System.setOut(stdout);
+      }
+      return printed.toString();
+   }
+
+   /**
+    * Runs the repositories, and the menu operations on top of them, against a
+    * MemoryStore loaded from the CSV files: account and game edits with their
+    * version checks, orders that fail without leaving anything behind,
+    * concurrent orders that never oversell, tracking changes, returns,
+    * cancellations, renames and the shipment dashboard. The menu operations
+    * read scripted input and their output is checked where it tells the
+    * outcome.
+    *
+    * @return the number of checks that failed
+    */
+   public static int selfTest(String dataDir) throws IOException, SQLException, InterruptedException {
+      File auditFile = File.createTempFile("selftest-audit", ".log");
+      auditFile.deleteOnExit();
+      System.setProperty("gamerental.auditFile", auditFile.getPath());
+      MemoryStore store = MemoryStore.load(dataDir);
+      GameRental esql = new GameRental(store);
+      int[] failed = { 0 };
+      Check check = (what, ok) -> {
+         System.out.println((ok ? "PASS " : "FAIL ") + what);
+         if (!ok) {
+            failed[0]++;
+         }
+      };
+
+      check.check("create a user", store.create("selftest", "secret", "000-000-0000"));
+      check.check("refuse a login that is taken", !store.create("selftest", "other", "000-000-0000"));
+      check.check("authenticate", store.authenticate("selftest", "secret") && !store.authenticate("selftest", "other"));
+      String version = store.account("selftest").get(5);
+      check.check("update an account", store.updateUser("selftest", Collections.singletonMap("role", "manager"), version));
+      check.check("refuse an account update from a stale version",
+                  !store.updateUser("selftest", Collections.singletonMap("role", "customer"), version));
+      check.check("keep the account update", store.account("selftest").get(1).equals("manager")
+                                            && store.profile("selftest").get(2).equals("manager"));
+      check.check("refuse a number of overdue games that is not a number",
+                  fails(() -> store.updateUser("selftest", Collections.singletonMap("numOverDueGames", "many"), null)));
+
+      List<List<String>> titles = store.browse(null, Double.POSITIVE_INFINITY, true);
+      String gameID = titles.get(0).get(0);
+      String contested = titles.get(1).get(0);
+      List<String> game = store.game(gameID);
+      check.check("reprice a game", store.updateGame(gameID, Collections.singletonMap("price", "1000"), game.get(5)));
+      List<List<String>> priciest = store.browse(null, Double.POSITIVE_INFINITY, false);
+      check.check("browse a repriced game at its new price", priciest.get(0).get(0).equals(gameID) && priciest.get(0).get(3).equals("1000.00"));
+      check.check("refuse a game update from a stale version",
+                  !store.updateGame(gameID, Collections.singletonMap("price", "1"), game.get(5)));
+
+      // every title starts with 10 units per stock bucket
+      int units = 10 * STOCK_BUCKETS + 5;
+      store.restock(gameID, 5);
+      long[] first = store.place("selftest", Collections.singletonMap(gameID, units), units, 1000.0 * units);
+      check.check("refuse an order when the stock is gone, leaving nothing behind",
+                  fails(() -> store.place("selftest", Collections.singletonMap(gameID, 1), 1, 1000)) && store.recent("selftest", 0).size() == 1);
+      check.check("refuse an order of a game that does not exist",
+                  fails(() -> store.place("selftest", Collections.singletonMap("nosuchgame", 1), 1, 1)));
+
+      long trackingNo = first[1];
+      check.check("find a new shipment", store.hasShipment(trackingNo) && !store.hasShipment(-1));
+      List<String> before = store.appendEvent(trackingNo, "currentLocation", "Ontario, CA", "selftest");
+      check.check("move a shipment", before != null && before.get(3).equals("Riverside, CA")
+                                      && store.findShipment("selftest", trackingNo).get(3).equals("Ontario, CA"));
+      check.check("keep every change in the history", store.history(trackingNo).size() == 2
+                                                     && store.history(trackingNo).get(1).get(2).equals("Ontario, CA"));
+      store.appendEvent(trackingNo, "status", "Delivered", "selftest");
+      check.check("refuse to cancel an order that has shipped",
+                  store.cancel("selftest", first[0], new HashMap<>()).get(0).equals("Delivered") && store.hasShipment(trackingNo));
+      check.check("refuse to cancel another user's order", store.cancel("nobody", first[0], new HashMap<>()) == null);
+      store.appendEvent(trackingNo, "status", "Returned", "selftest");
+      store.appendEvent(trackingNo, "status", "Returned (damaged)", "selftest");
+      check.check("put a return back into stock only once",
+                  fails(() -> store.place("selftest", Collections.singletonMap(gameID, units + 1), units + 1, 0)));
+
+      long[] second = store.place("selftest", Collections.singletonMap(gameID, units), units, 1000.0 * units);
+      Map<String, Integer> lines = new HashMap<>();
+      List<String> status = store.cancel("selftest", second[0], lines);
+      check.check("cancel an order that has not shipped", status.get(0).equals("Order Processing")
+                                                         && Integer.valueOf(units).equals(lines.get(gameID))
+                                                         && store.find("selftest", second[0]) == null && !store.hasShipment(second[1]));
+      check.check("put a cancelled order back into stock",
+                  !fails(() -> store.cancel("selftest", store.place("selftest", Collections.singletonMap(gameID, units), units, 0)[0],
+                                            new HashMap<>())));
+
+      // orders of one unit from several threads at once take exactly the stock there is
+      AtomicLong placed = new AtomicLong();
+      List<Callable<Void>> buyers = new ArrayList<>();
+      for (int i = 0; i < 8; i++) {
+         buyers.add(() -> {
+            for (int j = 0; j < 20; j++) {
+               try {
+                  store.place("selftest", Collections.singletonMap(contested, 1), 1, 1);
+                  placed.incrementAndGet();
+               } catch (SQLException e) {
+                  // sold out
+               }
+            }
+            return null;
+         });
+      }
+      ExecutorService pool = Executors.newFixedThreadPool(buyers.size());
+      pool.invokeAll(buyers);
+      pool.shutdown();
+      check.check("never sell more than the stock under concurrent orders", placed.get() == 10 * STOCK_BUCKETS);
+
+      int orderCount = store.recent("selftest", 0).size();
+      store.renameUser("selftest", "selftest2");
+      check.check("rename a user together with their orders", store.account("selftest") == null
+                                                             && store.recent("selftest2", 0).size() == orderCount
+                                                             && store.find("selftest2", first[0]) != null);
+      store.create("selftest3", "secret", "000-000-0000");
+      check.check("refuse to rename a user to a login that is taken", fails(() -> store.renameUser("selftest2", "selftest3")));
+
+      // the menu operations themselves, which the store makes available without a database
+      for (int choice : new int[] { 2, 9, 10, 11, 15, 17 }) {
+         check.check("offer menu entry " + choice + " without a database", esql.supportsMenuChoice(choice));
+      }
+      store.restock(contested, 1);
+      long[] third = store.place("selftest2", Collections.singletonMap(contested, 1), 1, 1);
+      ShipmentDashboard dashboard = esql.shipmentDashboard();
+      Leaderboard leaderboard = esql.leaderboard();
+      runMenu(gameID.substring("game".length()) + "\n3\n12.5\n", () -> updateCatalog(esql, "selftest2"));
+      check.check("menu: update a game's price", store.game(gameID).get(2).equals("12.50"));
+      runMenu("selftest3\n3\nTetris\n", () -> updateUser(esql, "selftest2"));
+      check.check("menu: update another user", store.account("selftest3").get(2).equals("Tetris"));
+      runMenu(third[1] + "\n3\nUPS\n", () -> updateTrackingInfo(esql, "selftest2"));
+      check.check("menu: update a shipment", store.findShipment("selftest2", third[1]).get(4).equals("UPS"));
+      check.check("menu: cancel an order", runMenu(third[0] + "\n", () -> cancelOrder(esql, "selftest2")).contains("Order cancelled."));
+      check.check("menu: change one's own login", runMenu("3\nselftest4\n", () -> updateProfile(esql, "selftest2")).contains("updated")
+                                                   && store.account("selftest4") != null);
+      check.check("menu: show the shipment dashboard", runMenu("1\n", () -> shipmentDashboard(esql, "selftest4")).contains("Last reconciled"));
+      check.check("dashboard counts follow the menu's changes", dashboard.reconcile() == 0);
+      List<Map.Entry<String, Long>> allTime = leaderboard.top(10, 0);
+      List<Map.Entry<String, Long>> lastWeek = leaderboard.top(10, 7);
+      leaderboard.reseed();
+      check.check("leaderboard counts follow the menu's changes", leaderboard.top(10, 0).equals(allTime)
+                                                                 && leaderboard.top(10, 7).equals(lastWeek));
+
+      esql.cleanup();
+      return failed[0];
+   }
+
+   /**
+    * Times the repository calls behind the menu on a MemoryStore loaded from
+    * the CSV files and, when a database is given, on the same data loaded
+    * into Postgres, so the time an operation spends in the application can be
+    * told apart from the time it spends in the database. Both run the same
+    * seeded sequence of calls. Orders are placed by a login of the
+    * benchmark's own, BENCHMARK_USER, and cancelled right away. Afterwards
+    * that user is deleted from the database together with the notifications
+    * its orders queued in Outbox, which leaves the data as it was apart from
+    * the used order numbers.
+    *
+    * @param user the database user, or null to time the MemoryStore only
+    * @param database port/dbname of a database loaded from the same files
+    */
+   public static void benchmark(String dataDir, String user, String database) throws IOException, SQLException {
+      MemoryStore store = MemoryStore.load(dataDir);
+      List<String> logins = new ArrayList<>(store.users.keySet());
+      Collections.sort(logins);
+      List<List<String>> titles = store.browse(null, Double.POSITIVE_INFINITY, true);
+      List<String> operations = Arrays.asList("Profile", "Browse a genre", "Look up 5 games", "Recent orders",
+                                              "Place and cancel an order", "Shipment counts");
+      store.create(BENCHMARK_USER, "benchmark", "000-000-0000");
+
+      // a short run first, so the timed one runs compiled code
+      benchmarkRun(store, logins, titles, BENCHMARK_ROUNDS / 10);
+      long[] memory = benchmarkRun(store, logins, titles, BENCHMARK_ROUNDS);
+      long[] postgres = null;
+      if (user != null) {
+         String[] portAndName = database.split("/", 2);
+         GameRental esql = new GameRental (portAndName[1], portAndName[0], user, "");
+         try {
+            JdbcStore jdbc = new JdbcStore(esql);
+            // left over if an earlier run stopped part way, and taken along below either way
+            jdbc.create(BENCHMARK_USER, "benchmark", "000-000-0000");
+            try {
+               benchmarkRun(jdbc, logins, titles, BENCHMARK_ROUNDS / 10);
+               postgres = benchmarkRun(jdbc, logins, titles, BENCHMARK_ROUNDS);
+            } finally {
+               // the cancelled orders went already; their order_placed notifications are still queued
+               esql.executeUpdate("DELETE FROM Outbox WHERE login = '" + BENCHMARK_USER + "';");
+               esql.executeUpdate("DELETE FROM Users WHERE login = '" + BENCHMARK_USER + "';");
+            }
+         } finally {
+            esql.cleanup();
+         }
+      }
+
+      List<List<String>> rows = new ArrayList<>();
+      for (int i = 0; i < operations.size(); i++) {
+         List<String> row = new ArrayList<>();
+         row.add(operations.get(i));
+         row.add(String.format("%.1f", memory[i] / 1000.0 / BENCHMARK_ROUNDS));
+         if (postgres != null) {
+            row.add(String.format("%.1f", postgres[i] / 1000.0 / BENCHMARK_ROUNDS));
+            row.add(String.format("%.1f%%", 100.0 * memory[i] / postgres[i]));
+         }
+         rows.add(row);
+      }
+      System.out.println(BENCHMARK_ROUNDS + " calls of each operation, mean microseconds per call:");
+      printReport(postgres == null ? Arrays.asList("Operation", "In memory")
+                                   : Arrays.asList("Operation", "In memory", "Postgres", "Application share"), rows);
+   }
+
+   // calls of each operation the benchmark times
+   private static final int BENCHMARK_ROUNDS = 2000;
+
+   // the login that places the benchmark's orders, so none are queued as notifications for a real customer
+   private static final String BENCHMARK_USER = "benchmark_orders";
+
+   // nanoseconds spent in each of the benchmark's operations over the given number of rounds
+   private static <S extends UserRepository & CatalogRepository & OrderRepository & TrackingRepository> long[] benchmarkRun(
+         S store, List<String> logins, List<List<String>> titles, int rounds) throws SQLException {
+      // the same seed gives every store the same calls
+      java.util.Random random = new java.util.Random(rounds);
+      long[] nanos = new long[6];
+      for (int round = 0; round < rounds; round++) {
+         String login = logins.get(random.nextInt(logins.size()));
+         List<String> title = titles.get(random.nextInt(titles.size()));
+         List<String> gameIDs = new ArrayList<>();
+         for (int i = 0; i < 5; i++) {
+            gameIDs.add(titles.get(random.nextInt(titles.size())).get(0));
+         }
+
+         long start = System.nanoTime();
+         store.profile(login);
+         nanos[0] += System.nanoTime() - start;
+
+         start = System.nanoTime();
+         store.browse(title.get(2), 50, true);
+         nanos[1] += System.nanoTime() - start;
+
+         start = System.nanoTime();
+         store.lookup(gameIDs);
+         nanos[2] += System.nanoTime() - start;
+
+         start = System.nanoTime();
+         store.recent(login, 5);
+         nanos[3] += System.nanoTime() - start;
+
+         start = System.nanoTime();
+         long[] order = store.place(BENCHMARK_USER, Collections.singletonMap(title.get(0), 1), 1, Double.parseDouble(title.get(3)));
+         store.cancel(BENCHMARK_USER, order[0], new HashMap<>());
+         nanos[4] += System.nanoTime() - start;
+
+         start = System.nanoTime();
+         store.shipmentCounts();
+         nanos[5] += System.nanoTime() - start;
+      }
+      return nanos;
+   }
+
+   private static Connection connectShard(String shard, String user) throws SQLException {
+      String[] portAndName = shard.split("/", 2);
+      return DriverManager.getConnection("jdbc:postgresql://localhost:" + portAndName[0] + "/" + portAndName[1], user, "");
+   }
+
+   // sends the statements in one round trip and traces them as one
+   private static void executeBatch(Statement stmt, List<String> batch) throws SQLException {
+      for (String sql : batch) {
+         stmt.addBatch(sql);
+      }
+      long start = System.nanoTime();
+      Tracer.recordBatch(String.join("\n", batch), start, stmt.executeBatch());
+   }
+
+   private static void moveUser(Connection from, Connection to, String login) throws SQLException {
+      String user = "'" + login.replace("'", "''") + "'";
+      String orders = "(SELECT orderNo FROM AllRentalOrders WHERE login = " + user + ")";
+      String orderColumns = "orderNo, login, noOfGames, totalPrice, orderTimestamp, dueDate";
+      String trackingColumns = "trackingNo, orderNo, orderTimestamp, stockReleased";
+      String lineColumns = "orderNo, gameID, unitsOrdered, orderTimestamp, unitPrice";
+      String eventColumns = "trackingNo, orderNo, status, currentLocation, courierName, additionalComments, changedBy, eventTime, orderTimestamp";
+      // parents before children, each read from its hot and its archive table; serial keys are left for the
+      // new shard to assign. Columns are named so neither shard's column order matters
+      String[][] tables = {
+         { "Users", "login, password, role, favGames, phoneNum, numOverDueGames, version", "login = " + user, null },
+         { "RentalOrder", orderColumns, "login = " + user, "RentalOrderArchive" },
+         { "GamesInOrder", lineColumns, "orderNo IN " + orders, "GamesInOrderArchive" },
+         { "TrackingInfo", trackingColumns, "orderNo IN " + orders, "TrackingInfoArchive" },
+         // in their original order, as the new event IDs decide which is a shipment's latest
+         { "TrackingEvent", eventColumns, "orderNo IN " + orders + " ORDER BY eventID", "TrackingEventArchive" },
+         { "Outbox", "login, topic, payload, createdAt", "login = " + user, null }
+      };
+
+      try {
+         to.setAutoCommit(false);
+         if (executeQueryAndReturnResult(to, "SELECT 1 FROM Users WHERE login = " + user + ";").isEmpty()) {
+            // the years the new shard has archived; the archive tables have partitions for those only, so a row
+            // of any other year goes to the hot table, whose yearly or default partition takes it
+            Set<Integer> archivedYears = new HashSet<>();
+            for (List<String> row : executeQueryAndReturnResult(to, "SELECT substring(c.relname FROM 14) FROM pg_inherits i " +
+                    "JOIN pg_class c ON c.oid = i.inhrelid WHERE i.inhparent = 'rentalorderarchive'::regclass " +
+                    "AND c.relname ~ '^rentalorder_y[0-9]{4}$';")) {
+               archivedYears.add(Integer.parseInt(row.get(0)));
+            }
+            Statement stmt = to.createStatement();
+            List<String> batch = new ArrayList<>();
+            // only the hot tables feed SalesDelta, on both shards, so a line or shipment that moves between hot
+            // and archive is evened out here: put back when the old shard's delete took it off the summaries,
+            // taken out again when the new shard's insert adds it. A shipment counts for its latest courier
+            Map<String, String> crossedShipments = new LinkedHashMap<>();
+            for (String[] table : tables) {
+               int stamp = Arrays.asList(table[1].split(", ")).indexOf("orderTimestamp");
+               for (String source : table[3] == null ? Arrays.asList(table[0]) : Arrays.asList(table[0], table[3])) {
+                  for (List<String> row : executeQueryAndReturnResult(from, "SELECT " + table[1] + " FROM " + source + " WHERE " + table[2] + ";")) {
+                     String target = stamp >= 0 && archivedYears.contains(Integer.parseInt(row.get(stamp).substring(0, 4))) ? table[3] : table[0];
+                     String values = "";
+                     for (String value : row) {
+                        values += (values.isEmpty() ? "" : ", ") + (value == null ? "NULL" : "'" + value.replace("'", "''") + "'");
+                     }
+                     batch.add("INSERT INTO " + target + " (" + table[1] + ") VALUES (" + values + ");");
+                     int sign = target.equals(table[0]) ? -1 : 1;
+                     if (!target.equals(source) && table[0].equals("GamesInOrder")) {
+                        batch.add(String.format("INSERT INTO SalesDelta (genre, month, gameID, units, revenue) " +
+                           "SELECT genre, date_trunc('month', timestamp '%s')::date, gameID, %d * %s, %d * %s * %s FROM Catalog WHERE gameID = '%s';",
+                           row.get(3), sign, row.get(2), sign, row.get(2), row.get(4), row.get(1).replace("'", "''")));
+                     } else if (!target.equals(source) && table[0].equals("TrackingEvent")) {
+                        crossedShipments.put(row.get(0), sign + "|" + row.get(4));
+                     }
+                  }
+               }
+            }
+            for (String crossed : crossedShipments.values()) {
+               String[] signAndCourier = crossed.split("\\|", 2);
+               batch.add("INSERT INTO SalesDelta (courierName, orders) VALUES ('" + signAndCourier[1].replace("'", "''") + "', " + signAndCourier[0] + ");");
+            }
+            // archived orders don't pass the stats trigger, so the user's row is recounted
+            batch.add("DELETE FROM UserStats WHERE login = " + user + ";");
+            batch.add("INSERT INTO UserStats (login, totalOrders, totalSpend, gamesRented, lastOrder) " +
+                      USER_STATS_FROM_ORDERS.replace("GROUP BY", "WHERE login = " + user + " GROUP BY") + ";");
+            executeBatch(stmt, batch);
+            stmt.close();
+         }
+         to.commit();
+      } catch (SQLException e) {
+         to.rollback();
+         throw e;
+      } finally {
+         to.setAutoCommit(true);
+      }
+
+      try {
+         from.setAutoCommit(false);
+         Statement stmt = from.createStatement();
+         executeBatch(stmt, Arrays.asList(
+            "DELETE FROM Outbox WHERE login = " + user + ";",
+            // archived orders take their lines, shipments and events along through their foreign keys
+            "DELETE FROM RentalOrderArchive WHERE login = " + user + ";",
+            // and so do the hot ones, which go with the user together with the stats row
+            "DELETE FROM Users WHERE login = " + user + ";"));
+         stmt.close();
+         from.commit();
+      } catch (SQLException e) {
+         from.rollback();
+         throw e;
+      } finally {
+         from.setAutoCommit(true);
+      }
+   }
+
+   // rows copied per statement by the upgrade, and the pause after each so other sessions get the row locks
+   private static final int MIGRATION_BATCH = 5000;
+   private static final long MIGRATION_PAUSE_MS = 50;
+
+   /**
+    * Step 2 of upgrading a database created with string order and tracking
+    * keys (see sql/src/upgrade.sql), run while the previous version of the
+    * app keeps serving, after sql/src/upgrade_stage.sql has created the new
+    * tables and the triggers that repeat the app's changes on them. Copies
+    * the rows that were already there, MIGRATION_BATCH rows per statement
+    * in key order. Each batch share-locks the old rows it reads, so the app
+    * cannot change one between its read and its copy, and skips rows the
+    * triggers have copied already. A finished table is recorded in
+    * UpgradeCopied, so an interrupted run is simply started again.
+    * Afterwards stop the app, run sql/src/upgrade.sql and start the new
+    * version. On a sharded deployment, run it on every shard.
+    *
+    * @param user the database user
+    * @param shard the database, as port/dbname
+    */
+   public static void migrateKeys(String user, String shard) throws SQLException, InterruptedException {
+      Connection conn = connectShard(shard, user);
+      try {
+         if (executeQueryAndReturnResult(conn, "SELECT to_regclass('rentalorder_next');").get(0).get(0) == null) {
+            throw new SQLException("Run sql/src/upgrade_stage.sql first.");
+         }
+         copyRows(conn, "RentalOrder", "rentalOrderID",
+            "WITH batch AS (SELECT * FROM RentalOrder WHERE {range} FOR SHARE) " +
+            "INSERT INTO RentalOrder_next " +
+            "SELECT substring(rentalOrderID FROM '[0-9]+')::bigint, login, noOfGames, totalPrice, orderTimestamp, dueDate FROM batch " +
+            "ON CONFLICT DO NOTHING;");
+         // lines and shipments take their order's timestamp from the old order, and lines today's price
+         copyRows(conn, "GamesInOrder", "rentalOrderID",
+            "WITH batch AS (SELECT * FROM GamesInOrder WHERE {range} FOR SHARE) " +
+            "INSERT INTO GamesInOrder_next " +
+            "SELECT substring(b.rentalOrderID FROM '[0-9]+')::bigint, b.gameID, b.unitsOrdered, r.orderTimestamp, c.price " +
+            "FROM batch b JOIN RentalOrder r ON r.rentalOrderID = b.rentalOrderID JOIN Catalog c ON c.gameID = b.gameID " +
+            "ON CONFLICT DO NOTHING;");
+         // a shipment's current state becomes its first event, for the shipments this batch actually copied
+         copyRows(conn, "TrackingInfo", "trackingID",
+            "WITH batch AS (SELECT * FROM TrackingInfo WHERE {range} FOR SHARE), " +
+            "copied AS (INSERT INTO TrackingInfo_next " +
+            "           SELECT substring(b.trackingID FROM '[0-9]+')::bigint, substring(b.rentalOrderID FROM '[0-9]+')::bigint, " +
+            "                  r.orderTimestamp, b.status LIKE 'Returned%' " +
+            "           FROM batch b JOIN RentalOrder r ON r.rentalOrderID = b.rentalOrderID " +
+            "           ON CONFLICT DO NOTHING RETURNING trackingNo, orderNo, orderTimestamp) " +
+            "INSERT INTO TrackingEvent (trackingNo, orderNo, status, currentLocation, courierName, additionalComments, eventTime, orderTimestamp) " +
+            "SELECT c.trackingNo, c.orderNo, b.status, b.currentLocation, b.courierName, b.additionalComments, b.lastUpdateDate, c.orderTimestamp " +
+            "FROM copied c JOIN batch b ON substring(b.trackingID FROM '[0-9]+')::bigint = c.trackingNo;");
+         System.out.println("Done. Stop the app, run sql/src/upgrade.sql and start the new version.");
+      } finally {
+         conn.close();
+      }
+   }
+
+   // walks the old table in key order, one committed batch at a time; {range} in the statement selects the batch
+   private static void copyRows(Connection conn, String table, String key, String copy) throws SQLException, InterruptedException {
+      if (!executeQueryAndReturnResult(conn, "SELECT 1 FROM UpgradeCopied WHERE tableName = '" + table + "';").isEmpty()) {
+         System.out.println(table + ": already copied.");
+         return;
+      }
+      Statement stmt = conn.createStatement();
+      String last = null;
+      long copied = 0;
+      while (true) {
+         String after = last == null ? "true" : key + " > '" + last.replace("'", "''") + "'";
+         // the batch ends at the MIGRATION_BATCH-th key from here, found through the primary key
+         String upTo = executeQueryAndReturnResult(conn, "SELECT max(" + key + ") FROM (SELECT " + key + " FROM " + table +
+                                                   " WHERE " + after + " ORDER BY " + key + " LIMIT " + MIGRATION_BATCH + ") batch;").get(0).get(0);
+         if (upTo == null) {
+            break;
+         }
+         copied += stmt.executeUpdate(copy.replace("{range}", after + " AND " + key + " <= '" + upTo.replace("'", "''") + "'"));
+         last = upTo;
+         Thread.sleep(MIGRATION_PAUSE_MS);
+      }
+      stmt.executeUpdate("INSERT INTO UpgradeCopied VALUES ('" + table + "');");
+      stmt.close();
+      System.out.println(table + ": " + copied + " row(s) copied.");
+   }
+
+   private static final long INTEGRITY_CHUNK = 50000;
+
+   // the orders of one key range whose counts, totals or shipments disagree with their lines; everything is
+   // compared on the server, so only the rows in need of repair come back. Zero lines show as null units
+   private static final String ORDER_MISMATCHES =
+      "SELECT r.orderNo, r.noOfGames, r.totalPrice, g.units, g.price, coalesce(t.shipments, 0) FROM AllRentalOrders r " +
+      "LEFT JOIN (SELECT l.orderNo, sum(l.unitsOrdered) AS units, sum(l.unitsOrdered * l.unitPrice) AS price " +
+      "           FROM AllGamesInOrder l " +
+      "           WHERE l.orderNo >= %1$d AND l.orderNo < %2$d GROUP BY l.orderNo) g ON g.orderNo = r.orderNo " +
+      "LEFT JOIN (SELECT orderNo, count(*) AS shipments FROM (SELECT orderNo FROM TrackingInfo UNION ALL SELECT orderNo FROM TrackingInfoArchive) s " +
+      "           WHERE orderNo >= %1$d AND orderNo < %2$d GROUP BY orderNo) t ON t.orderNo = r.orderNo " +
+      "WHERE r.orderNo >= %1$d AND r.orderNo < %2$d " +
+      "AND (g.units IS DISTINCT FROM r.noOfGames OR g.price IS DISTINCT FROM r.totalPrice OR t.shipments IS DISTINCT FROM 1) " +
+      "ORDER BY r.orderNo;";
+
+   // game lines left behind by an order that no longer exists, from before the lines had a foreign key to it
+   private static final String ORPHAN_LINES =
+      "SELECT l.orderNo, count(*) FROM AllGamesInOrder l WHERE l.orderNo >= %1$d AND l.orderNo < %2$d " +
+      "AND NOT EXISTS (SELECT 1 FROM AllRentalOrders r WHERE r.orderNo = l.orderNo) GROUP BY l.orderNo ORDER BY l.orderNo;";
+
+   /**
+    * Checks every order of one database against its game lines and
+    * shipments and writes the statements that would fix what disagrees to
+    * a repair script, for someone to read before running it with psql. The
+    * order numbers are split into ranges of INTEGRITY_CHUNK that one worker
+    * per core, each on its own connection, takes in turn. A range is
+    * compared in a single statement, so it sees its orders as of one
+    * moment and only the mismatches cross the wire; the script is written
+    * as they arrive. Memory use therefore stays the same however long the
+    * history. Totals are compared with the prices the lines were ordered
+    * at, so a total that disagrees is fixed like a game count.
+    */
+   public static void checkOrders(String user, String shard, String repairFile) throws Exception {
+      Connection conn = connectShard(shard, user);
+      List<String> bounds;
+      try {
+         // min and max come off the ends of the key indexes
+         bounds = executeQueryAndReturnResult(conn, "SELECT least(o.lo, l.lo), greatest(o.hi, l.hi) FROM " +
+            "(SELECT min(orderNo) AS lo, max(orderNo) AS hi FROM AllRentalOrders) o, " +
+            "(SELECT min(orderNo) AS lo, max(orderNo) AS hi FROM AllGamesInOrder) l;").get(0);
+      } finally {
+         conn.close();
+      }
+      if (bounds.get(0) == null) {
+         System.out.println("There are no orders to check.");
+         return;
+      }
+      final long first = Long.parseLong(bounds.get(0));
+      final long last = Long.parseLong(bounds.get(1));
+      final long chunks = (last - first) / INTEGRITY_CHUNK + 1;
+      final AtomicLong nextChunk = new AtomicLong();
+      final AtomicLong chunksDone = new AtomicLong();
+      // counts: orders with a wrong game count, a wrong total, no games, no shipment, several shipments; orphaned lines
+      final AtomicLong[] found = new AtomicLong[6];
+      for (int i = 0; i < found.length; i++) {
+         found[i] = new AtomicLong();
+      }
+
+      final PrintWriter script = new PrintWriter(new BufferedWriter(new FileWriter(repairFile)));
+      script.println("-- Repairs found by GameRental --check-orders on " + shard + " at " + LocalDateTime.now());
+      script.println("-- Each order is fixed in whichever of RentalOrder and RentalOrderArchive holds it.");
+      script.println("BEGIN;");
+
+      int workers = Math.max(1, Math.min(8, Runtime.getRuntime().availableProcessors()));
+      ExecutorService pool = Executors.newFixedThreadPool(workers);
+      List<Future<Void>> results = new ArrayList<>();
+      for (int w = 0; w < workers; w++) {
+         results.add(pool.submit(new Callable<Void>() {
+            public Void call() throws Exception {
+               Connection conn = connectShard(shard, user);
+               try {
+                  for (long chunk = nextChunk.getAndIncrement(); chunk < chunks; chunk = nextChunk.getAndIncrement()) {
+                     long lo = first + chunk * INTEGRITY_CHUNK;
+                     long hi = lo + INTEGRITY_CHUNK;
+                     StringBuilder repairs = new StringBuilder();
+                     for (List<String> row : executeQueryAndReturnResult(conn, String.format(ORDER_MISMATCHES, lo, hi))) {
+                        repairs.append(orderRepairs(row, found));
+                     }
+                     for (List<String> row : executeQueryAndReturnResult(conn, String.format(ORPHAN_LINES, lo, hi))) {
+                        found[5].incrementAndGet();
+                        repairs.append("-- order #" + row.get(0) + " does not exist but has " + row.get(1) + " game line(s)\n")
+                               .append("DELETE FROM GamesInOrder WHERE orderNo = " + row.get(0) + ";\n")
+                               .append("DELETE FROM GamesInOrderArchive WHERE orderNo = " + row.get(0) + ";\n");
+                     }
+                     // one range's repairs go into the script together
+                     synchronized (script) {
+                        script.print(repairs);
+                     }
+                     long done = chunksDone.incrementAndGet();
+                     if (done % Math.max(1, chunks / 20) == 0 || done == chunks) {
+                        System.out.println("Checked " + done + " of " + chunks + " range(s)...");
+                     }
+                  }
+               } finally {
+                  conn.close();
+               }
+               return null;
+            }
+         }));
+      }
+      pool.shutdown();
+      boolean complete = false;
+      try {
+         for (Future<Void> result : results) {
+            result.get();
+         }
+         complete = true;
+      } finally {
+         pool.shutdownNow();
+         // a script from a check that stopped part way must not apply half its repairs
+         if (complete) {
+            script.println("COMMIT;");
+         } else {
+            script.println("-- CHECK INCOMPLETE: the check failed before every range was read, rerun it for a full script.");
+            script.println("ROLLBACK;");
+         }
+         script.close();
+      }
+
+      String summary = found[0] + " wrong game count(s), " + found[1] + " wrong total(s), " + found[2] + " order(s) without games, " +
+                       found[3] + " order(s) without a shipment, " + found[4] + " order(s) with several shipments, " +
+                       found[5] + " order(s) of orphaned game lines";
+      System.out.println("Orders " + first + " to " + last + " checked: " + summary + ".");
+      System.out.println("Repairs written to " + repairFile + "; read it before running it with psql.");
+   }
+
+   // the repair statements for one row of ORDER_MISMATCHES, counting what was wrong
+   private static String orderRepairs(List<String> row, AtomicLong[] found) {
+      String orderNo = row.get(0);
+      String fix = "";
+      if (row.get(3) == null) {
+         // an order without games can only be removed; its shipment goes with it
+         found[2].incrementAndGet();
+         fix += "-- order #" + orderNo + " has no games\n" +
+                "-- DELETE FROM RentalOrder WHERE orderNo = " + orderNo + ";\n" +
+                "-- DELETE FROM RentalOrderArchive WHERE orderNo = " + orderNo + ";\n";
+      } else {
+         if (!row.get(3).equals(row.get(1))) {
+            found[0].incrementAndGet();
+            fix += "-- order #" + orderNo + " says " + row.get(1) + " game(s), its lines add up to " + row.get(3) + "\n";
+            for (String table : Arrays.asList("RentalOrder", "RentalOrderArchive")) {
+               fix += "UPDATE " + table + " SET noOfGames = " + row.get(3) + " WHERE orderNo = " + orderNo + ";\n";
+            }
+         }
+         if (new java.math.BigDecimal(row.get(4)).compareTo(new java.math.BigDecimal(row.get(2))) != 0) {
+            found[1].incrementAndGet();
+            fix += "-- order #" + orderNo + " cost " + row.get(2) + ", its lines add up to " + row.get(4) + "\n";
+            for (String table : Arrays.asList("RentalOrder", "RentalOrderArchive")) {
+               fix += "UPDATE " + table + " SET totalPrice = " + row.get(4) + " WHERE orderNo = " + orderNo + ";\n";
+            }
+         }
+      }
+      long shipments = Long.parseLong(row.get(5));
+      if (shipments == 0 && row.get(3) != null) {
+         found[3].incrementAndGet();
+         fix += "-- order #" + orderNo + " has no shipment\n";
+         String[][] tables = { { "TrackingInfo", "TrackingEvent", "RentalOrder" },
+                               { "TrackingInfoArchive", "TrackingEventArchive", "RentalOrderArchive" } };
+         for (String[] table : tables) {
+            fix += "WITH t AS (INSERT INTO " + table[0] + " (trackingNo, orderNo, orderTimestamp) SELECT nextval('trackinginfo_seq'), " +
+                   "orderNo, orderTimestamp FROM " + table[2] + " WHERE orderNo = " + orderNo + " RETURNING *) " +
+                   "INSERT INTO " + table[1] + " (trackingNo, orderNo, status, currentLocation, courierName, additionalComments, " +
+                   "changedBy, orderTimestamp) SELECT trackingNo, orderNo, 'Order Processing', 'Riverside, CA', 'TBD', " +
+                   "'recreated by the integrity check', 'check-orders', orderTimestamp FROM t;\n";
+         }
+      } else if (shipments > 1) {
+         found[4].incrementAndGet();
+         fix += "-- order #" + orderNo + " has " + shipments + " shipments; keeping the first would be\n";
+         for (String table : Arrays.asList("TrackingInfo", "TrackingInfoArchive")) {
+            fix += "-- DELETE FROM " + table + " WHERE orderNo = " + orderNo + " AND trackingNo > " +
+                   "(SELECT min(trackingNo) FROM AllTrackingInfo WHERE orderNo = " + orderNo + ");\n";
+         }
+      }
+      return fix;
+   }
+
+   private static final int SNAPSHOT_MAGIC = 0x47525353; // "GRSS"
+   private static final int SNAPSHOT_FORMAT = 1;
+   private static final int RESTORE_BATCH = 1000;
+
+   // every table of the store, in waves whose foreign keys only point at earlier waves
+   private static final String[][] SNAPSHOT_WAVES = {
+      { "Users", "Catalog", "CatalogVersion", "GenreMonthRevenue", "CourierOrders", "SalesDelta", "AuditLog", "Outbox",
+        "OrderNumbers" },
+      { "CatalogStock", "TitleUnits", "UserStats", "RentalOrder", "RentalOrderArchive" },
+      { "GamesInOrder", "GamesInOrderArchive", "TrackingInfo", "TrackingInfoArchive" },
+      { "TrackingEvent", "TrackingEventArchive" }
+   };
+
+   /**
+    * Copies every table of one database into a directory, all as of the same
+    * moment, while the app keeps running. One transaction exports its
+    * snapshot and a worker per core reads one partition at a time under it,
+    * the largest first. The driver has no COPY, so each partition goes to its
+    * own file in a length-prefixed binary form:
+    *
+    *   header  magic int, format int, table UTF, partition UTF, column count short, column names UTF
+    *   rows    byte 1, then per column its UTF-8 text as length int and bytes, or length -1 for null
+    *   trailer byte 0, row count long, CRC32 of everything before it int
+    *
+    * The manifest listing the files, their row counts and checksums is
+    * written last, so a directory without one holds no usable snapshot.
+    */
+   public static void snapshot(String user, String shard, String directory) throws Exception {
+      long start = System.currentTimeMillis();
+      Files.createDirectories(Paths.get(directory));
+      Connection conn = connectShard(shard, user);
+      List<String[]> written = new ArrayList<>();
+      try {
+         conn.setAutoCommit(false);
+         Statement stmt = conn.createStatement();
+         stmt.execute("SET TRANSACTION ISOLATION LEVEL REPEATABLE READ;");
+         stmt.close();
+         // stays importable for as long as this transaction is open
+         String snapshotId = executeQueryAndReturnResult(conn, "SELECT pg_export_snapshot();").get(0).get(0);
+
+         // table, partition, its bounds and storage options for a restore to create it, size
+         List<String[]> leaves = new ArrayList<>();
+         for (String[] wave : SNAPSHOT_WAVES) {
+            for (String table : wave) {
+               for (List<String> row : executeQueryAndReturnResult(conn,
+                       "SELECT p.relid::regclass::text, coalesce(pg_get_expr(c.relpartbound, c.oid), ''), " +
+                       "coalesce(' WITH (' || array_to_string(c.reloptions, ', ') || ')', ''), pg_relation_size(p.relid) " +
+                       "FROM pg_partition_tree('" + table + "') p JOIN pg_class c ON c.oid = p.relid WHERE p.isleaf;")) {
+                  leaves.add(new String[] { table, row.get(0), row.get(1) + row.get(2), row.get(3) });
+               }
+            }
+         }
+         leaves.sort((a, b) -> Long.compare(Long.parseLong(b[3]), Long.parseLong(a[3])));
+
+         ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(8, Runtime.getRuntime().availableProcessors())));
+         List<Future<String[]>> results = new ArrayList<>();
+         for (String[] leaf : leaves) {
+            results.add(pool.submit(() -> snapshotLeaf(user, shard, snapshotId, directory, leaf)));
+         }
+         pool.shutdown();
+         try {
+            for (Future<String[]> result : results) {
+               written.add(result.get());
+            }
+         } finally {
+            pool.shutdownNow();
+         }
+         conn.commit();
+      } finally {
+         conn.close();
+      }
+
+      long rows = 0;
+      PrintWriter manifest = new PrintWriter(new BufferedWriter(new FileWriter(new File(directory, "manifest"))));
+      manifest.println("# GameRental snapshot of " + shard + " taken " + LocalDateTime.now());
+      manifest.println("# file\ttable\tpartition\tbounds\trows\tcrc32");
+      for (String[] file : written) {
+         manifest.println(String.join("\t", file));
+         rows += Long.parseLong(file[4]);
+      }
+      manifest.close();
+      System.out.println("Snapshot of " + rows + " rows in " + written.size() + " file(s) written to " + directory + " in "
+                         + (System.currentTimeMillis() - start) + " ms.");
+   }
+
+   // writes one partition under the exported snapshot and returns its manifest line
+   private static String[] snapshotLeaf(String user, String shard, String snapshotId, String directory, String[] leaf)
+         throws SQLException, IOException {
+      String file = leaf[1] + ".snap";
+      CRC32 crc = new CRC32();
+      DataOutputStream out = new DataOutputStream(new CheckedOutputStream(
+         new BufferedOutputStream(new FileOutputStream(new File(directory, file)), 1 << 16), crc));
+      Connection conn = connectShard(shard, user);
+      try {
+         conn.setAutoCommit(false);
+         Statement stmt = conn.createStatement();
+         stmt.execute("SET TRANSACTION ISOLATION LEVEL REPEATABLE READ;");
+         stmt.execute("SET TRANSACTION SNAPSHOT '" + snapshotId + "';");
+         stmt.close();
+
+         List<String> columns = new ArrayList<>();
+         for (List<String> row : executeQueryAndReturnResult(conn, "SELECT '\"' || attname || '\"' FROM pg_attribute WHERE attrelid = '" +
+                                                             leaf[1] + "'::regclass AND attnum > 0 AND NOT attisdropped ORDER BY attnum;")) {
+            columns.add(row.get(0));
+         }
+         out.writeInt(SNAPSHOT_MAGIC);
+         out.writeInt(SNAPSHOT_FORMAT);
+         out.writeUTF(leaf[0]);
+         out.writeUTF(leaf[1]);
+         out.writeShort(columns.size());
+         for (String column : columns) {
+            out.writeUTF(column);
+         }
+         // ends the imported transaction once the last row is read
+         long rows = streamQuery(conn, "SELECT " + String.join(", ", columns) + " FROM " + leaf[1], rs -> {
+            out.writeByte(1);
+            for (int i = 1; i <= columns.size(); i++) {
+               String value = rs.getString(i);
+               if (value == null) {
+                  out.writeInt(-1);
+               } else {
+                  byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                  out.writeInt(bytes.length);
+                  out.write(bytes);
+               }
+            }
+         });
+         out.writeByte(0);
+         out.writeLong(rows);
+         out.flush();
+         long checksum = crc.getValue();
+         out.writeInt((int) checksum);
+         return new String[] { file, leaf[0], leaf[1], leaf[2], Long.toString(rows), Long.toHexString(checksum) };
+      } finally {
+         out.close();
+         conn.close();
+      }
+   }
+
+   /**
+    * Loads a snapshot into a database freshly created with create_tables.sql
+    * and create_partitions.sql. Partitions the snapshot has and the database
+    * lacks are created first. Triggers are switched off, as the counters they
+    * keep are restored with everything else, and the secondary indexes are
+    * dropped. The files are then loaded by a worker per core, one wave of
+    * tables at a time so foreign keys always find their rows, each file in
+    * its own transaction that only commits when its checksum matches. Last
+    * the indexes are rebuilt in parallel and the sequences moved past the
+    * restored keys. A partition create_partitions.sql put under another
+    * parent than the snapshot's, e.g. a year archived since, is moved over
+    * while still empty, and if the restore fails part way the dropped
+    * indexes are still rebuilt, or listed when that fails too.
+    */
+   public static void restore(String user, String shard, String directory) throws Exception {
+      long start = System.currentTimeMillis();
+      List<String[]> files = new ArrayList<>();
+      BufferedReader manifest = new BufferedReader(new FileReader(new File(directory, "manifest")));
+      try {
+         for (String line = manifest.readLine(); line != null; line = manifest.readLine()) {
+            if (!line.startsWith("#") && !line.isEmpty()) {
+               files.add(line.split("\t", -1));
+            }
+         }
+      } finally {
+         manifest.close();
+      }
+      files.sort((a, b) -> Long.compare(Long.parseLong(b[4]), Long.parseLong(a[4])));
+
+      List<String> tables = new ArrayList<>();
+      for (String[] wave : SNAPSHOT_WAVES) {
+         tables.addAll(Arrays.asList(wave));
+      }
+      Connection conn = connectShard(shard, user);
+      Statement stmt = conn.createStatement();
+      try {
+         if (!executeQueryAndReturnResult(conn, "SELECT 1 FROM Users LIMIT 1;").isEmpty()
+             || !executeQueryAndReturnResult(conn, "SELECT 1 FROM AllRentalOrders LIMIT 1;").isEmpty()) {
+            throw new SQLException("the database already holds data, restore into a newly created one");
+         }
+         // also clears the row create_tables.sql starts CatalogVersion with
+         stmt.execute("TRUNCATE " + String.join(", ", tables) + ";");
+         for (String[] file : files) {
+            if (file[3].isEmpty()) {
+               continue;
+            }
+            if (executeQueryAndReturnResult(conn, "SELECT to_regclass('" + file[2] + "');").get(0).get(0) == null) {
+               stmt.execute("CREATE TABLE " + file[2] + " PARTITION OF " + file[1] + " " + file[3] + ";");
+               continue;
+            }
+            // the tables were just emptied, so a leaf under the wrong parent can be moved as it is
+            List<List<String>> parent = executeQueryAndReturnResult(conn,
+               "SELECT inhparent::regclass::text FROM pg_inherits WHERE inhrelid = '" + file[2] + "'::regclass;");
+            if (parent.isEmpty() || !parent.get(0).get(0).equalsIgnoreCase(file[1])) {
+               if (!parent.isEmpty()) {
+                  stmt.execute("ALTER TABLE " + parent.get(0).get(0) + " DETACH PARTITION " + file[2] + ";");
+               }
+               stmt.execute("ALTER TABLE " + file[1] + " ATTACH PARTITION " + file[2] + " " + file[3] + ";");
+               System.out.println("Moved " + file[2] + " under " + file[1] + ".");
+            }
+         }
+
+         String names = "";
+         for (String table : tables) {
+            names += (names.isEmpty() ? "'" : ", '") + table.toLowerCase() + "'";
+         }
+         // indexes of partitioned tables are dropped and rebuilt through their parent, which the definition
+         // names ON ONLY; indexes behind constraints stay
+         List<List<String>> indexes = executeQueryAndReturnResult(conn,
+            "SELECT i.indexrelid::regclass::text, replace(pg_get_indexdef(i.indexrelid), ' ON ONLY ', ' ON ') FROM pg_index i JOIN pg_class t ON t.oid = i.indrelid " +
+            "WHERE t.relname IN (" + names + ") AND t.relnamespace = current_schema()::regnamespace " +
+            "AND NOT EXISTS (SELECT 1 FROM pg_constraint k WHERE k.conindid = i.indexrelid) " +
+            "AND NOT EXISTS (SELECT 1 FROM pg_inherits h WHERE h.inhrelid = i.indexrelid);");
+         for (List<String> index : indexes) {
+            stmt.execute("DROP INDEX " + index.get(0) + ";");
+         }
+         setUserTriggers(conn, tables, false);
+
+         ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(8, Runtime.getRuntime().availableProcessors())));
+         long rows = 0;
+         boolean indexed = false;
+         try {
+            for (String[] wave : SNAPSHOT_WAVES) {
+               List<Future<Long>> loads = new ArrayList<>();
+               for (String[] file : files) {
+                  if (Arrays.asList(wave).contains(file[1])) {
+                     loads.add(pool.submit(() -> restoreFile(user, shard, directory, file)));
+                  }
+               }
+               for (Future<Long> load : loads) {
+                  rows += load.get();
+               }
+               System.out.println("Restored " + String.join(", ", wave) + ".");
+            }
+
+            System.out.println("Rebuilding " + indexes.size() + " index(es)...");
+            List<Future<Void>> builds = new ArrayList<>();
+            for (List<String> index : indexes) {
+               builds.add(pool.submit(() -> {
+                  Connection build = connectShard(shard, user);
+                  try {
+                     Statement create = build.createStatement();
+                     create.execute(index.get(1) + ";");
+                     create.close();
+                  } finally {
+                     build.close();
+                  }
+                  return null;
+               }));
+            }
+            for (Future<Void> build : builds) {
+               build.get();
+            }
+            indexed = true;
+         } finally {
+            pool.shutdownNow();
+            if (!indexed) {
+               // lets the statements in flight finish so they are not raced
+               pool.awaitTermination(1, TimeUnit.HOURS);
+               rebuildMissingIndexes(conn, indexes);
+            }
+         }
+
+         stmt.execute("SELECT setval('rentalorder_seq', coalesce((SELECT max(orderNo) FROM AllRentalOrders), 0) + 1, false);");
+         stmt.execute("SELECT setval('trackinginfo_seq', coalesce(greatest((SELECT max(trackingNo) FROM TrackingInfo), " +
+                      "(SELECT max(trackingNo) FROM TrackingInfoArchive)), 0) + 1, false);");
+         // table owning the sequence, its column, and where the values in use are; the archived events share TrackingEvent's
+         String[][] serials = { { "TrackingEvent", "eventID", "AllTrackingEvents" }, { "AuditLog", "auditID", "AuditLog" },
+                                { "Outbox", "messageID", "Outbox" }, { "SalesDelta", "deltaID", "SalesDelta" } };
+         for (String[] serial : serials) {
+            stmt.execute("SELECT setval(pg_get_serial_sequence('" + serial[0].toLowerCase() + "', '" + serial[1].toLowerCase() + "'), " +
+                         "coalesce(max(" + serial[1] + "), 0) + 1, false) FROM " + serial[2] + ";");
+         }
+         // a catalog snapshot file left from another database may carry the restored version
+         stmt.execute("UPDATE CatalogVersion SET version = version + 1;");
+         for (String table : tables) {
+            stmt.execute("ANALYZE " + table + ";");
+         }
+         System.out.println("Restored " + rows + " rows into " + shard + " in " + (System.currentTimeMillis() - start) + " ms.");
+      } finally {
+         try {
+            setUserTriggers(conn, tables, true);
+         } finally {
+            stmt.close();
+            conn.close();
+         }
+      }
+   }
+
+   // recreates whichever of the indexes a failed restore left dropped, listing those it cannot so they can be run by hand
+   private static void rebuildMissingIndexes(Connection conn, List<List<String>> indexes) {
+      List<String> missing = new ArrayList<>();
+      for (List<String> index : indexes) {
+         try {
+            if (executeQueryAndReturnResult(conn, "SELECT to_regclass('" + index.get(0) + "');").get(0).get(0) == null) {
+               Statement create = conn.createStatement();
+               try {
+                  create.execute(index.get(1) + ";");
+               } finally {
+                  create.close();
+               }
+            }
+         } catch (SQLException e) {
+            missing.add(index.get(1) + ";");
+         }
+      }
+      if (!missing.isEmpty()) {
+         System.err.println("Restore failed and left " + missing.size() + " index(es) missing, recreate them with:");
+         for (String definition : missing) {
+            System.err.println("   " + definition);
+         }
+      }
+   }
+
+   // switches the app's own triggers, not those enforcing foreign keys, on every partition of the tables
+   private static void setUserTriggers(Connection conn, List<String> tables, boolean enabled) throws SQLException {
+      Statement stmt = conn.createStatement();
+      for (String table : tables) {
+         for (List<String> row : executeQueryAndReturnResult(conn, "SELECT relid::regclass::text FROM pg_partition_tree('" + table + "');")) {
+            stmt.execute("ALTER TABLE " + row.get(0) + (enabled ? " ENABLE" : " DISABLE") + " TRIGGER USER;");
+         }
+      }
+      stmt.close();
+   }
+
+   // loads one snapshot file through its table, so rows land in whichever partition holds them here
+   private static long restoreFile(String user, String shard, String directory, String[] file) throws SQLException, IOException {
+      CRC32 crc = new CRC32();
+      DataInputStream in = new DataInputStream(new CheckedInputStream(
+         new BufferedInputStream(new FileInputStream(new File(directory, file[0])), 1 << 16), crc));
+      Connection conn = connectShard(shard, user);
+      try {
+         if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != SNAPSHOT_FORMAT) {
+            throw new IOException(file[0] + " is not a snapshot file");
+         }
+         String table = in.readUTF();
+         in.readUTF();
+         String[] columns = new String[in.readShort()];
+         for (int i = 0; i < columns.length; i++) {
+            columns[i] = in.readUTF();
+         }
+         String insert = "INSERT INTO " + table + " (" + String.join(", ", columns) + ") VALUES ";
+
+         // closing the connection without a commit rolls everything back
+         conn.setAutoCommit(false);
+         Statement stmt = conn.createStatement();
+         StringBuilder values = new StringBuilder();
+         int batched = 0;
+         long rows = 0;
+         while (in.readByte() == 1) {
+            values.append(batched == 0 ? "(" : ", (");
+            for (int i = 0; i < columns.length; i++) {
+               int length = in.readInt();
+               if (i > 0) {
+                  values.append(", ");
+               }
+               if (length < 0) {
+                  values.append("NULL");
+               } else {
+                  byte[] bytes = new byte[length];
+                  in.readFully(bytes);
+                  values.append('\'').append(new String(bytes, StandardCharsets.UTF_8).replace("'", "''")).append('\'');
+               }
+            }
+            values.append(')');
+            rows++;
+            if (++batched == RESTORE_BATCH) {
+               stmt.executeUpdate(insert + values + ";");
+               values.setLength(0);
+               batched = 0;
+            }
+         }
+         if (batched > 0) {
+            stmt.executeUpdate(insert + values + ";");
+         }
+         long count = in.readLong();
+         long checksum = crc.getValue();
+         if (in.readInt() != (int) checksum || !Long.toHexString(checksum).equals(file[5])
+             || count != rows || !Long.toString(rows).equals(file[4])) {
+            throw new IOException(file[0] + " is damaged, its checksum or row count does not match");
+         }
+         stmt.close();
+         conn.commit();
+         return rows;
+      } finally {
+         in.close();
+         conn.close();
+      }
+   }
+
+   /**
+    * Method to get the most-rented leaderboard, seeding it from the orders
+    * the first time and every LEADERBOARD_RESEED_MS after.
+    *
+    * @return the leaderboard
+    * @throws java.sql.SQLException when the counts could not be seeded
+    */
+   public Leaderboard leaderboard() throws SQLException {
+      if (this._leaderboard == null) {
+         this._leaderboard = new Leaderboard(this._orders, this._countsLock);
+      }
+      return this._leaderboard;
+   }
+
+   /**
+    * Method to count the games of a committed order in or out of the
+    * leaderboard. Does nothing until the leaderboard has been seeded.
+    *
+    * @param lines gameID -> units of the order
+    * @param day the order's date
+    * @param sign 1 for a placed order, -1 for a cancelled one
+    */
+   public void countRentals(Map<String, Integer> lines, LocalDate day, int sign) {
+      if (this._leaderboard != null) {
+         for (Map.Entry<String, Integer> line : lines.entrySet()) {
+            this._leaderboard.add(line.getKey(), sign * line.getValue(), day.toEpochDay());
+         }
+      }
+   }
+
+   /**
+    * Units rented per game, kept in memory from one seeding query and then
+    * moved by every order placed or cancelled in this process. A background
+    * job seeds it again every LEADERBOARD_RESEED_MS, which brings in the
+    * orders of other instances and shards, and swaps the new counts in
+    * whole. Like the dashboard's reconcile, it holds the app's counts lock
+    * exclusively from before its queries until the swap. All-time totals
+    * are also held in a tree ordered most rented first, so a top-N read
+    * walks N entries; it does so under the monitor, so it never sees a title
+    * between its old and its new total. The last WINDOW_DAYS days are kept
+    * as one bucket of per-game units per day; a 7- or 30-day top-N sums the
+    * buckets in range and keeps the best N in a bounded min-heap.
+    */
+   static class Leaderboard {
+      static final int WINDOW_DAYS = 30;
+      // most units first, ties by gameID
+      static final Comparator<Map.Entry<String, Long>> MOST_RENTED =
+         Comparator.comparing((Map.Entry<String, Long> e) -> e.getValue()).reversed().thenComparing(Map.Entry::getKey);
+
+      private final OrderRepository orders;
+      private final ReadWriteLock lock;
+      private final ScheduledExecutorService reseeder;
+      // all four are replaced together by reseed(), under the monitor
+      private Map<String, Long> allTime;
+      private TreeSet<Map.Entry<String, Long>> ranking;
+      // slot day % WINDOW_DAYS holds the per-game units of day bucketDay[slot]
+      private long[] bucketDay;
+      private List<Map<String, Long>> buckets;
+
+      Leaderboard(OrderRepository orders, ReadWriteLock lock) throws SQLException {
+         this.orders = orders;
+         this.lock = lock;
+         reseed();
+         this.reseeder = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "leaderboard-reseeder");
+            thread.setDaemon(true);
+            return thread;
+         });
+         this.reseeder.scheduleWithFixedDelay(this::reseedInBackground,
+            LEADERBOARD_RESEED_MS, LEADERBOARD_RESEED_MS, TimeUnit.MILLISECONDS);
+      }
+
+      /**
+       * Replaces every count with the orders' own. A sharded store sums
+       * every shard's.
+       */
+      void reseed() throws SQLException {
+         lock.writeLock().lock();
+         try {
+            Map<String, Long> newAllTime = new HashMap<>();
+            TreeSet<Map.Entry<String, Long>> newRanking = new TreeSet<>(MOST_RENTED);
+            for (List<String> row : orders.unitsRented()) {
+               newAllTime.merge(row.get(0), Long.parseLong(row.get(1)), Long::sum);
+            }
+            for (Map.Entry<String, Long> game : newAllTime.entrySet()) {
+               newRanking.add(new AbstractMap.SimpleImmutableEntry<>(game.getKey(), game.getValue()));
+            }
+            long[] newBucketDay = new long[WINDOW_DAYS];
+            Arrays.fill(newBucketDay, Long.MIN_VALUE);
+            List<Map<String, Long>> newBuckets = new ArrayList<>();
+            for (int i = 0; i < WINDOW_DAYS; i++) {
+               newBuckets.add(new HashMap<>());
+            }
+            List<List<String>> recent = orders.unitsRentedSince(WINDOW_DAYS);
+            synchronized (this) {
+               allTime = newAllTime;
+               ranking = newRanking;
+               bucketDay = newBucketDay;
+               buckets = newBuckets;
+               for (List<String> row : recent) {
+                  addToDay(row.get(0), Long.parseLong(row.get(2)), LocalDate.parse(row.get(1)).toEpochDay());
+               }
+            }
+         } finally {
+            lock.writeLock().unlock();
+         }
+      }
+
+      private void reseedInBackground() {
+         try {
+            reseed();
+         } catch (SQLException e) {
+            // the counts keep moving with local orders; the next run tries again
+         }
+      }
+
+      synchronized void add(String gameID, long units, long day) {
+         addAllTime(gameID, units);
+         addToDay(gameID, units, day);
+      }
+
+      private synchronized void addAllTime(String gameID, long units) {
+         Long old = allTime.get(gameID);
+         long total = (old == null ? 0 : old) + units;
+         allTime.put(gameID, total);
+         if (old != null) {
+            ranking.remove(new AbstractMap.SimpleImmutableEntry<>(gameID, old));
+         }
+         ranking.add(new AbstractMap.SimpleImmutableEntry<>(gameID, total));
+      }
+
+      private synchronized void addToDay(String gameID, long units, long day) {
+         long today = LocalDate.now().toEpochDay();
+         if (day <= today - WINDOW_DAYS || day > today) {
+            return;
+         }
+         int slot = (int) Math.floorMod(day, (long) WINDOW_DAYS);
+         if (bucketDay[slot] != day) {
+            // the slot still holds a day that has left the window
+            buckets.get(slot).clear();
+            bucketDay[slot] = day;
+         }
+         buckets.get(slot).merge(gameID, units, Long::sum);
+      }
+
+      synchronized long unitsOf(String gameID) {
+         return allTime.getOrDefault(gameID, 0L);
+      }
+
+      /**
+       * @param days the window, 1 to WINDOW_DAYS, or 0 for all-time
+       * @return up to n (gameID, units) pairs, most rented first
+       */
+      List<Map.Entry<String, Long>> top(int n, int days) {
+         List<Map.Entry<String, Long>> result = new ArrayList<>();
+         if (days <= 0) {
+            synchronized (this) {
+               for (Map.Entry<String, Long> entry : ranking) {
+                  if (result.size() == n) {
+                     break;
+                  }
+                  result.add(entry);
+               }
+            }
+            return result;
+         }
+
+         Map<String, Long> units = new HashMap<>();
+         synchronized (this) {
+            long today = LocalDate.now().toEpochDay();
+            for (int slot = 0; slot < WINDOW_DAYS; slot++) {
+               if (bucketDay[slot] > today - days && bucketDay[slot] <= today) {
+                  for (Map.Entry<String, Long> game : buckets.get(slot).entrySet()) {
+                     units.merge(game.getKey(), game.getValue(), Long::sum);
+                  }
+               }
+            }
+         }
+         // min-heap of the best n so far; its head is the first to drop out
+         PriorityQueue<Map.Entry<String, Long>> best = new PriorityQueue<>(MOST_RENTED.reversed());
+         for (Map.Entry<String, Long> game : units.entrySet()) {
+            if (game.getValue() <= 0) {
+               continue;
+            }
+            best.offer(game);
+            if (best.size() > n) {
+               best.poll();
+            }
+         }
+         while (!best.isEmpty()) {
+            result.add(best.poll());
+         }
+         Collections.reverse(result);
+         return result;
+      }
+
+      void close() {
+         reseeder.shutdownNow();
+      }
+   }
+
+   /**
+    * Method to get the shipment dashboard, seeding it from CurrentTracking the
+    * first time.
+    *
+    * @return the dashboard
+    * @throws java.sql.SQLException when the counts could not be seeded
+    */
+   public ShipmentDashboard shipmentDashboard() throws SQLException {
+      if (this._dashboard == null) {
+         this._dashboard = new ShipmentDashboard(this);
+      }
+      return this._dashboard;
+   }
+
+   /**
+    * Method to count shipments in or out of the dashboard after a committed
+    * change. Does nothing until the dashboard has been seeded, since the seed
+    * already includes every committed change.
+    */
+   public void countShipment(String status, String courier, String location, int delta) {
+      if (this._dashboard != null) {
+         this._dashboard.add(status, courier, location, delta);
+      }
+   }
+
+   /**
+    * Method to move one shipment on the dashboard after a committed change of
+    * one column of its tracking row.
+    *
+    * @param trackingRow the row as read before the change, in CurrentTracking's column order
+    * @param column the changed column: 2 status, 3 currentLocation or 4 courierName
+    * @param value the new value
+    */
+   public void shipmentChanged(List<String> trackingRow, int column, String value) {
+      List<String> after = new ArrayList<>(trackingRow);
+      after.set(column, value);
+      countShipment(trackingRow.get(2), trackingRow.get(4), trackingRow.get(3), -1);
+      countShipment(after.get(2), after.get(4), after.get(3), 1);
+   }
+
+   /**
+    * Method to append one change to a shipment's history and move the
+    * shipment on the dashboard, with no dashboard reconcile in between.
+    *
+    * @param column the changed column of the tracking row, as for shipmentChanged
+    * @return the tracking row as read before the change, or null if there is no such shipment
+    */
+   public List<String> changeShipment(long trackingNo, String field, int column, String value, String changedBy) throws SQLException {
+      _countsLock.readLock().lock();
+      try {
+         List<String> before = _tracking.appendEvent(trackingNo, field, value, changedBy);
+         if (before != null) {
+            shipmentChanged(before, column, value);
+         }
+         return before;
+      } finally {
+         _countsLock.readLock().unlock();
+      }
+   }
+
+   /**
+    * Shipment counts by status, courier and location, kept in memory. They
+    * are seeded with one GROUP BY over CurrentTracking, then moved by every
+    * tracking change, order and cancellation this process commits. A
+    * background job repeats the GROUP BY every DASHBOARD_RECONCILE_MS to
+    * correct drift from other processes and archived years. Each count is a
+    * LongAdder, so concurrent updates land on separate cells instead of
+    * contending on one value. A change holds the app's counts lock
+    * shared from before it commits until it is counted, and reconciling
+    * holds it exclusively from before its query until the counts are
+    * replaced. So the query sees every change this process counted and none
+    * it has yet to count, and no update is wiped or counted twice. The price
+    * is that shipment changes wait for the query, once every
+    * DASHBOARD_RECONCILE_MS.
+    */
+   static class ShipmentDashboard {
+      // (status, courierName, currentLocation) -> shipments
+      private final ConcurrentHashMap<List<String>, LongAdder> counts = new ConcurrentHashMap<>();
+      private final ReadWriteLock lock;
+      private final GameRental esql;
+      private final ScheduledExecutorService reconciler;
+      private volatile String reconciledAt = "never";
+      private volatile long lastDrift = 0;
+
+      ShipmentDashboard(GameRental esql) throws SQLException {
+         this.esql = esql;
+         this.lock = esql._countsLock;
+         reconcile();
+         this.reconciler = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "dashboard-reconciler");
+            thread.setDaemon(true);
+            return thread;
+         });
+         this.reconciler.scheduleWithFixedDelay(this::reconcileInBackground,
+            DASHBOARD_RECONCILE_MS, DASHBOARD_RECONCILE_MS, TimeUnit.MILLISECONDS);
+      }
+
+      void add(String status, String courier, String location, int delta) {
+         lock.readLock().lock();
+         try {
+            counts.computeIfAbsent(Arrays.asList(status, courier, location), key -> new LongAdder()).add(delta);
+         } finally {
+            lock.readLock().unlock();
+         }
+      }
+
+      /**
+       * Replaces every count with the store's.
+       *
+       * @return how far the counts were off in total
+       */
+      long reconcile() throws SQLException {
+         long drift = 0;
+         // updates wait from before the query until the swap, so none is counted in neither or both
+         lock.writeLock().lock();
+         try {
+            // a sharded store returns one partial count per shard, summed here
+            List<List<String>> rows = esql._tracking.shipmentCounts();
+            Map<List<String>, Long> actual = new HashMap<>();
+            for (List<String> row : rows) {
+               actual.merge(row.subList(0, 3), Long.parseLong(row.get(3)), Long::sum);
+            }
+            for (Map.Entry<List<String>, LongAdder> entry : counts.entrySet()) {
+               drift += Math.abs(entry.getValue().sum() - actual.getOrDefault(entry.getKey(), 0L));
+            }
+            for (Map.Entry<List<String>, Long> entry : actual.entrySet()) {
+               if (!counts.containsKey(entry.getKey())) {
+                  drift += Math.abs(entry.getValue());
+               }
+            }
+            counts.clear();
+            for (Map.Entry<List<String>, Long> entry : actual.entrySet()) {
+               if (entry.getValue() != 0) {
+                  LongAdder count = new LongAdder();
+                  count.add(entry.getValue());
+                  counts.put(entry.getKey(), count);
+               }
+            }
+         } finally {
+            lock.writeLock().unlock();
+         }
+         lastDrift = drift;
+         reconciledAt = new Timestamp(System.currentTimeMillis()).toString().substring(0, 19);
+         return drift;
+      }
+
+      private void reconcileInBackground() {
+         try {
+            reconcile();
+         } catch (SQLException e) {
+            // the counts keep moving with local changes; the next run tries again
+         }
+      }
+
+      /**
+       * @param dimensions which of status (0), courier (1) and location (2) to group by
+       * @return the grouped counts, largest first, each row the dimension values and the count
+       */
+      List<List<String>> totals(int... dimensions) {
+         Map<List<String>, Long> grouped = new HashMap<>();
+         for (Map.Entry<List<String>, LongAdder> entry : counts.entrySet()) {
+            List<String> key = new ArrayList<>();
+            for (int dimension : dimensions) {
+               key.add(entry.getKey().get(dimension));
+            }
+            grouped.merge(key, entry.getValue().sum(), Long::sum);
+         }
+         List<List<String>> rows = new ArrayList<>();
+         grouped.entrySet().stream()
+            .filter(entry -> entry.getValue() != 0)
+            .sorted(Map.Entry.<List<String>, Long>comparingByValue().reversed())
+            .forEach(entry -> {
+               List<String> row = new ArrayList<>(entry.getKey());
+               row.add(Long.toString(entry.getValue()));
+               rows.add(row);
+            });
+         return rows;
+      }
+
+      void close() {
+         reconciler.shutdownNow();
+      }
+   }
+
+   /**
+    * Method to close the physical connection if it is open.
+    */
+   public void cleanup(){
+      if (this._shards != null){
+         for (GameRental shard : this._shards) {
+            if (shard != this) {
+               shard.cleanup();
+            }
+         }
+      }//end if
+      if (this._dashboard != null){
+         this._dashboard.close();
+      }//end if
+      if (this._leaderboard != null){
+         this._leaderboard.close();
+      }//end if
+      // flush the audit trail while the database is still reachable
+      if (this._audit != null){
+         this._audit.close();
+      }//end if
+      // undelivered notifications stay in the Outbox for the next run
+      if (this._dispatcher != null){
+         this._dispatcher.close();
+      }//end if
+      try{
+         if (this._readConnection != null){
+            this._readConnection.close ();
+         }//end if
+         if (this._connection != null){
+            this._connection.close ();
+         }//end if
+      }catch (SQLException e){
+         // ignored.
+      }//end try
+   }//end cleanup
+
+   /**
+    * The main execution method
+    *
+    * @param args the command line arguments this inclues the <mysql|pgsql> <login file>
+    */
+   public static void main (String[] args) {
+      boolean inMemory = args.length == 2 && args[0].equals("--memory");
+      boolean sharded = args.length == 3 && args[0].equals("--shards");
+      boolean reshard = args.length == 4 && args[0].equals("--reshard");
+      boolean migrateKeys = args.length == 3 && args[0].equals("--migrate-keys");
+      boolean checkOrders = args.length == 4 && args[0].equals("--check-orders");
+      boolean snapshot = args.length == 4 && args[0].equals("--snapshot");
+      boolean restore = args.length == 4 && args[0].equals("--restore");
+      boolean shardTest = args.length == 3 && args[0].equals("--shard-test");
+      boolean selfTest = args.length == 2 && args[0].equals("--self-test");
+      boolean benchmark = (args.length == 2 || args.length == 4) && args[0].equals("--benchmark");
+      if (args.length != 3 && args.length != 4 && !inMemory && !selfTest && !benchmark
+          || args[0].startsWith("--") && !inMemory && !sharded && !reshard && !migrateKeys && !checkOrders && !snapshot && !restore
+             && !shardTest && !selfTest && !benchmark) {
+         String command = "java [-classpath <classpath>] " + GameRental.class.getName ();
+         System.err.println (
+            "Usage: " + command + " <dbname> <port> <user> [<read replica port>]\n" +
+            "   or: " + command + " --memory <data directory>\n" +
+            "   or: " + command + " --shards <user> <port>/<dbname>,<port>/<dbname>,...\n" +
+            "   or: " + command + " --reshard <user> <old shard list> <new shard list>\n" +
+            "   or: " + command + " --migrate-keys <user> <port>/<dbname>\n" +
+            "   or: " + command + " --check-orders <user> <port>/<dbname> <repair script>\n" +
+            "   or: " + command + " --snapshot <user> <port>/<dbname> <directory>\n" +
+            "   or: " + command + " --restore <user> <port>/<dbname> <directory>\n" +
+            "   or: " + command + " --shard-test <user> <port>/<dbname>,<port>/<dbname>,...\n" +
+            "   or: " + command + " --self-test <data directory>\n" +
+            "   or: " + command + " --benchmark <data directory> [<user> <port>/<dbname>]");
+         return;
+      }//end if
+      if (selfTest) {
+         int failed;
+         try {
+            failed = selfTest(args[1]);
+         } catch (Exception e) {
+            System.err.println ("Self-test stopped: " + e);
+            failed = 1;
+         }
+         System.out.println (failed == 0 ? "All checks passed." : failed + " check(s) failed.");
+         if (failed != 0) {
+            System.exit(1);
+         }
+         return;
+      }//end if
+      if (!inMemory && !(benchmark && args.length == 2)) {
+         // use postgres JDBC driver.
+         try {
+            Class.forName ("org.postgresql.Driver");
+         } catch (ClassNotFoundException e) {
+            System.err.println ("The Postgres JDBC driver is not on the classpath.");
+            return;
+         }
+      }//end if
+      if (benchmark) {
+         try {
+            benchmark(args[1], args.length == 4 ? args[2] : null, args.length == 4 ? args[3] : null);
+         } catch (Exception e) {
+            System.err.println ("Benchmark stopped: " + e.getMessage ());
+         }
+         return;
+      }//end if
+      if (shardTest) {
+         int failed;
+         try {
+            failed = shardTest(args[1], args[2]);
+         } catch (Exception e) {
+            System.err.println ("Shard test stopped: " + e.getMessage ());
+            failed = 1;
+         }
+         System.out.println (failed == 0 ? "All checks passed." : failed + " check(s) failed.");
+         if (failed != 0) {
+            System.exit(1);
+         }
+         return;
+      }//end if
+      if (snapshot || restore) {
+         try {
+            if (snapshot) {
+               snapshot(args[1], args[2], args[3]);
+            } else {
+               restore(args[1], args[2], args[3]);
+            }
+         } catch (Exception e) {
+            System.err.println ((snapshot ? "Snapshot" : "Restore") + " failed: " + e.getMessage ());
+         }
+         return;
+      }//end if
+      if (checkOrders) {
+         try {
+            checkOrders(args[1], args[2], args[3]);
+         } catch (Exception e) {
+            System.err.println ("Integrity check stopped: " + e.getMessage ());
+         }
+         return;
+      }//end if
+      if (migrateKeys) {
+         try {
+            migrateKeys(args[1], args[2]);
+         } catch (Exception e) {
+            System.err.println ("Key migration stopped, run it again to continue: " + e.getMessage ());
+         }
+         return;
+      }//end if
+      if (reshard) {
+         try {
+            reshard(args[1], args[2].split(","), args[3].split(","));
+         } catch (Exception e) {
+            System.err.println ("Resharding stopped: " + e.getMessage ());
+         }
+         return;
+      }//end if
+
+      Greeting();
+      if (System.getProperty("gamerental.trace") != null) {
+         Tracer.start(System.getProperty("gamerental.trace"));
+      }
+      GameRental esql = null;
+      try{
+         if (inMemory) {
+            // everything is loaded from the CSV files and nothing is written back
+            esql = new GameRental (MemoryStore.load(args[1]));
+         } else if (sharded) {
+            esql = openShards(args[1], args[2]);
+         } else {
+            // instantiate the GameRental object and creates a physical
+            // connection.
+            String dbname = args[0];
+            String dbport = args[1];
+            String user = args[2];
+            String replicaPort = args.length == 4 ? args[3] : null;
+            esql = new GameRental (dbname, dbport, user, "", replicaPort);
+            try {
+               esql.ensureOrderPartitions();
+            } catch (SQLException e) {
+               System.err.println("Warning - Unable to create order partitions: " + e.getMessage());
+            }
+         }
+         // the shards above run none of their own, this instance serves them all
+         esql.startBackgroundServices();
+
+         boolean keepon = true;
+         while(keepon) {
+            // These are sample SQL statements
+            System.out.println("MAIN MENU");
+            System.out.println("---------");
+            System.out.println("1. Create user");
+            System.out.println("2. Log in");
+            System.out.println("9. < EXIT");
+            String authorisedUser = null;
+            int startChoice = readChoice();
+            if (startChoice == 1 || startChoice == 2) {
+               Tracer.begin(startChoice == 1 ? "CreateUser" : "LogIn", null);
+            }
+            try {
+               switch (startChoice){
+                  case 1: CreateUser(esql); break;
+                  case 2: authorisedUser = LogIn(esql); break;
+                  case 9: keepon = false; break;
+                  default : System.out.println("Unrecognized choice!"); break;
+               }//end switch
+            } finally {
+               Tracer.end();
+            }
+            if (authorisedUser != null) {
+              boolean usermenu = true;
+              while(usermenu) {
+                System.out.println("MAIN MENU");
+                System.out.println("---------");
+                System.out.println("1. View Profile");
+                System.out.println("2. Update Profile");
+                System.out.println("3. View Catalog");
+                System.out.println("4. Place Rental Order");
+                System.out.println("5. View Full Rental Order History");
+                System.out.println("6. View Past 5 Rental Orders");
+                System.out.println("7. View Rental Order Information");
+                System.out.println("8. View Tracking Information");
+
+                //the following functionalities basically used by employees & managers
+                System.out.println("9. Update Tracking Information");
+
+                //the following functionalities basically used by managers
+                System.out.println("10. Update Catalog");
+                System.out.println("11. Update User");
+                System.out.println("12. Export Order History");
+                System.out.println("13. Sales Reports");
+                System.out.println("14. Archive Old Orders");
+
+                //available to every user for their own orders
+                System.out.println("15. Cancel Rental Order");
+
+                //bulk catalog changes for managers
+                System.out.println("16. Bulk Update Catalog");
+
+                //live shipment counts for employees & managers
+                System.out.println("17. Shipment Dashboard");
+
+                //available to every user
+                System.out.println("18. Most Rented Games");
+
+                System.out.println(".........................");
+                System.out.println("20. Log out");
+                int choice = readChoice();
+                if (!esql.supportsMenuChoice(choice)) {
+                   System.out.println("Not available on this deployment.\n");
+                   continue;
+                }
+                // one trace span per operation; a no-op unless tracing is on
+                if (choice > 0 && choice < MENU_OPERATIONS.length && MENU_OPERATIONS[choice] != null) {
+                   Tracer.begin(MENU_OPERATIONS[choice], authorisedUser);
+                }
+                try {
+                   switch (choice){
+                      case 1: viewProfile(esql, authorisedUser); break;
+                      case 2: authorisedUser = updateProfile(esql, authorisedUser); break;
+                      case 3: viewCatalog(esql); break;
+                      case 4: placeOrder(esql, authorisedUser); break;
+                      case 5: viewAllOrders(esql, authorisedUser); break;
+                      case 6: viewRecentOrders(esql, authorisedUser); break;
+                      case 7: viewOrderInfo(esql, authorisedUser); break;
+                      case 8: viewTrackingInfo(esql, authorisedUser); break;
+                      case 9: updateTrackingInfo(esql, authorisedUser); break;
+                      case 10: updateCatalog(esql, authorisedUser); esql.catalogChanged(); break;
+                      case 11: updateUser(esql, authorisedUser); break;
+                      case 12: exportOrderHistory(esql, authorisedUser); break;
+                      case 13: salesReports(esql, authorisedUser); break;
+                      case 14: archiveOldOrders(esql, authorisedUser); break;
+                      case 15: cancelOrder(esql, authorisedUser); break;
+                      case 16: bulkUpdateCatalog(esql, authorisedUser); esql.catalogChanged(); break;
+                      case 17: shipmentDashboard(esql, authorisedUser); break;
+                      case 18: viewMostRented(esql); break;
+
+
+
+                      case 20: usermenu = false; break;
+                      default : System.out.println("Unrecognized choice!"); break;
+                   }
+                } finally {
+                   Tracer.end();
+                }
+              }
+            }
+         }//end while
+      }catch(Exception e) {
+         System.err.println (e.getMessage ());
+      }finally{
+         // make sure to cleanup the created table and close the connection.
+         try{
+            if(esql != null) {
+               System.out.print("Disconnecting from database...");
+               esql.cleanup ();
+               System.out.println("Done\n\nBye !");
+            }//end if
+            Tracer.close();
+         }catch (Exception e) {
+            // ignored.
+         }//end try
+      }//end try
+   }//end main
+
+   // trace span names of the user menu entries, by menu number
+   private static final String[] MENU_OPERATIONS = {
+      null, "viewProfile", "updateProfile", "viewCatalog", "placeOrder", "viewAllOrders", "viewRecentOrders",
+      "viewOrderInfo", "viewTrackingInfo", "updateTrackingInfo", "updateCatalog", "updateUser", "exportOrderHistory",
+      "salesReports", "archiveOldOrders", "cancelOrder", "bulkUpdateCatalog", "shipmentDashboard", "viewMostRented"
+   };
+
+   public static void Greeting(){
+      System.out.println(
+         "\n\n*******************************************************\n" +
+         "              User Interface      	               \n" +
+         "*******************************************************\n");
+   }//end Greeting
+
+   /*
+    * Reads the users choice given from the keyboard
+    * @int
+    **/
+   public static int readChoice() {
+      int input;
+      // returns only if a correct value is given.
+      do {
+         System.out.print("Please make your choice: ");
+         try { // read the integer, parse it and break.
+            input = Integer.parseInt(in.readLine());
+            break;
+         }catch (Exception e) {
+            System.out.println("Your input is invalid!");
+            continue;
+         }//end try
+      }while (true);
+      return input;
+   }//end readChoice
+
+
+   public static void CreateUser(GameRental esql){
+      String login = ""; 
+      String password = "";
+      String phoneNum = ""; 
+      // prompts user for necessary information
+      try {
+         System.out.print("Enter username: ");
+         login = in.readLine();
+         
+         System.out.print("Enter password: ");
+         password = in.readLine();
+         
+         System.out.print("Enter phone number: ");
+         phoneNum = in.readLine();
+      } catch (IOException e) {
+            System.err.println("Error reading input: " + e.getMessage());
+        }
+      try { 
+         // new accounts start as customers with no favorite or overdue games
+         if (!esql._users.create(login, password, phoneNum)) {
+            // username must already exist! -- prints special error statement
+            System.err.println("Username unavailable. Please try again.\n");
+            return;
+         }
+      } catch ( SQLException e ) { 
+         // for other types of errors, default error message printed
+         System.err.println("Error building query: " + e.getMessage());
+         return;
+      }
+      // if no errors, print a success message
+      System.out.println("User created successfully! Returning to menu...");
+   }
+
+
+   public static String LogIn(GameRental esql){
+      try {
+            // prompt user for username + password
+            System.out.print("Enter username: ");
+            String login = in.readLine();
+
+            System.out.print("Enter password: ");
+            String password = in.readLine();
+
+            // check if a user with matching username + password exists
+            if (esql._users.authenticate(login, password)) {
+                // user found, return login
+                System.out.println("\nWelcome, " + login + "!\n");
+                return login;
+            } else {
+                // user not found
+                System.out.println("Invalid username or password.");
+                return null;
+            }
+
+        } catch (IOException e) {
+            System.err.println("Error reading input: " + e.getMessage());
+        } catch (SQLException e) {
+            System.err.println("Error executing query: " + e.getMessage());
+        }
+        return null;
+   }
+
+   public static void viewProfile(GameRental esql, String authorisedUser) {
+      List<List<String>> result = new ArrayList<>();
+      // retrieve entire instance information for the user currently logged in
+      try {
+         result.add(esql._users.profile(authorisedUser));
+      } catch (SQLException e) {
+            // print the exception message if an SQL error occurs
+            System.err.println("Error executing query: " + e.getMessage());
+      }
+      // output all information, preceded by the type of information (i.e. Username) 
+      System.out.println("\nProfile Information:");
+      List<String> row = result.get(0);
+      List<String> info = Arrays.asList("Username", "Password", "role", "Favorite Games", "Phone Number", "# of Overdue Games",
+                                        "Total Orders", "Total Spent", "Games Rented", "Last Order");
+      for (int i = 0; i < row.size(); i++) {
+         if ( i != 2 ) {
+            System.out.println(info.get(i) + ": " + row.get(i));
+         }
+      }
+      System.out.println();
+   }
+
+   public static String updateProfile(GameRental esql, String authorisedUser) {
+      List<List<String>> result = new ArrayList<>();
+      // retrieve entire instance information for the user currently logged in, from whichever shard holds them
+      try {
+         result.add(esql._users.profile(authorisedUser));
+      } catch (SQLException e) {
+            System.err.println("Error executing query: " + e.getMessage());
+      }
+      String role = result.get(0).get(2); 
+      System.out.println("\n1. Change Password");
+      System.out.println("2. Update Phone Number");
+      // more actions if they are a manager
+      if (role.contains("manager")) {
+         System.out.println("3. Change Login (Manager only)");
+         System.out.println("4. Update Role (Manager only)");
+         System.out.println("5. Update Number of Overdue Games (Manager only)");
+      }
+
+      try {
+         System.out.print("Enter your choice: ");
+         int choice = Integer.parseInt(in.readLine()); 
+         String currentPassword = result.get(0).get(1);
+         String oldPassword = ""; 
+         System.out.print("\n");
+         // perform update based on user choice
+         switch (choice) {
+            case 1:
+               System.out.print("Enter your old password: ");
+               oldPassword = in.readLine();
+               if (currentPassword.equals(oldPassword)){ 
+                  System.out.print("Enter your new password: ");
+                  String newPassword = in.readLine();
+                  // updates user's password in the database
+                  esql._users.updateUser(authorisedUser, Collections.singletonMap("password", newPassword), null);
+                  esql.audit(authorisedUser, "users", authorisedUser, "password", AUDIT_MASK, AUDIT_MASK);
+
+                  System.out.println("Password updated successfully.\n");
+               }
+               else { 
+                  System.out.println("Incorrect password... returning to menu.\n");
+               }
+               break;
+            case 2:
+               System.out.print("Enter your old password: ");
+               oldPassword = in.readLine();
+               if (currentPassword.equals(oldPassword)){ 
+                  System.out.print("Enter your new phone number: ");
+                  String newPhoneNum = in.readLine();
+                  // updates user's phone number in the database
+                  esql._users.updateUser(authorisedUser, Collections.singletonMap("phoneNum", newPhoneNum), null);
+                  esql.audit(authorisedUser, "users", authorisedUser, "phoneNum", result.get(0).get(4), newPhoneNum);
+
+                  System.out.println("Phone number updated successfully.\n");
+               }
+               else { 
+                  System.out.println("Incorrect password... returning to menu.\n");
+               }
+               break;
+            case 3: 
+               // makes sure to check manager status in each case as well 
+               if (role.contains("manager")) {
+                  System.out.print("Enter your new login: ");
+                  String newLogin = in.readLine();
+                  // updates user's login in the database, moving them to the shard the new login belongs on
+                  esql._users.renameUser(authorisedUser, newLogin);
+                  esql.audit(authorisedUser, "users", authorisedUser, "login", authorisedUser, newLogin);
+                  authorisedUser = newLogin; 
+
+                  System.out.println("Username updated successfully.\n");
+               } else {
+                     System.out.println("Invalid choice.\n");
+               }
+               break;
+            case 4:  
+               if (role.contains("manager")) {
+                  // extra warning since it will remove permissions
+                  System.out.print("WARNING: Changing your role to non-manager is irreversable without another manager's authority!\n");
+                  System.out.print("Enter your new role (manager, employee, customer): ");
+                  String newRole = in.readLine();
+                  if ( newRole.equals("customer") || newRole.equals("employee") || newRole.equals("manager") ) {
+                     // updates user's role in the database
+                     esql._users.updateUser(authorisedUser, Collections.singletonMap("role", newRole), null);
+                     esql.audit(authorisedUser, "users", authorisedUser, "role", role.trim(), newRole);
+                     System.out.println("Role updated successfully.\n");
+                  }
+                  else { 
+                     System.out.print("Invalid role type provided.");
+                  }
+               } else {
+                     System.out.println("Invalid choice.\n");
+               }
+               break;
+            case 5:  
+               if (role.contains("manager")) {
+                  System.out.print("Enter new # of overdue games (>= 0): ");
+                  int newOverdue = Integer.parseInt(in.readLine()); 
+                  // updates user's overdue games in the database
+                  esql._users.updateUser(authorisedUser, Collections.singletonMap("numOverDueGames", Integer.toString(newOverdue)), null);
+                  esql.audit(authorisedUser, "users", authorisedUser, "numOverDueGames", result.get(0).get(5), Integer.toString(newOverdue));
+                  System.out.println("Overdue games updated successfully.\n");
+               } else {
+                     System.out.println("Invalid choice.\n");
+               }
+               break;
+            default:
+               System.out.println("Invalid choice.\n");
+               break;
+         }
+      } catch (IOException e) {
+         System.err.println("Error reading input: " + e.getMessage());
+      } catch (SQLException e) {
+         System.err.println("Error executing query: " + e.getMessage());
+      }
+      return authorisedUser; 
+   }
+
+   public static void viewCatalog(GameRental esql) {
+      try {
+            // prompt user for filter options
+            System.out.println("Choose filter option:");
+            System.out.println("1. No Filter");
+            System.out.println("2. Filter by Genre");
+            System.out.println("3. Filter by Price");
+            System.out.print("Enter choice: ");
+            int filterChoice = Integer.parseInt(in.readLine());
+
+            String genreFilter = "";
+            double priceFilter = -1.0;
+
+            // read in filter info based on user choice
+            if (filterChoice == 2) {
+                  System.out.print("Enter genre: ");
+                  genreFilter = in.readLine();
+            } else if (filterChoice == 3) {
+                  System.out.print("Enter maximum price: ");
+                  priceFilter = Double.parseDouble(in.readLine());
+            }
+
+            // prompt the user for price sorting options
+            System.out.println("Choose sorting option:");
+            System.out.println("1. Price: Lowest to Highest");
+            System.out.println("2. Price: Highest to Lowest");
+            System.out.println("3. Most Popular");
+            System.out.print("Enter choice: ");
+            int sortChoice = Integer.parseInt(in.readLine());
+
+            // filtering and sorting by price are left to the catalog storage
+            List<List<String>> result = esql._catalog.browse(filterChoice == 2 ? genreFilter : null,
+                                                             filterChoice == 3 ? priceFilter : Double.POSITIVE_INFINITY,
+                                                             sortChoice != 2);
+            if (sortChoice == 3) {
+               // most units rented first from the in-memory counts, cheapest first among equals
+               Leaderboard leaderboard = esql.leaderboard();
+               result.sort(Comparator.comparingLong((List<String> game) -> leaderboard.unitsOf(game.get(0))).reversed());
+            }
+            // calls helper function
+            displayCatalog(result);
+
+         } catch (IOException e) {
+            System.err.println("Error reading input: " + e.getMessage());
+         } catch (SQLException e) {
+            System.err.println("SQL Error: " + e.getMessage());
+         }
+   }
+
+   public static void viewMostRented(GameRental esql) {
+      try {
+         System.out.println("\n1. All Time");
+         System.out.println("2. Last 7 Days");
+         System.out.println("3. Last 30 Days");
+         System.out.print("Enter choice: ");
+         int choice = Integer.parseInt(in.readLine().trim());
+         int days = choice == 2 ? 7 : choice == 3 ? 30 : 0;
+         System.out.print("How many games? ");
+         int limit = Integer.parseInt(in.readLine().trim());
+
+         // ranks come from the in-memory leaderboard, names from one catalog lookup
+         List<Map.Entry<String, Long>> top = esql.leaderboard().top(limit, days);
+         List<String> ids = new ArrayList<>();
+         for (Map.Entry<String, Long> game : top) {
+            ids.add(game.getKey());
+         }
+         Map<String, List<String>> games = esql._catalog.lookup(ids);
+         List<List<String>> rows = new ArrayList<>();
+         for (Map.Entry<String, Long> game : top) {
+            List<String> info = games.get(game.getKey());
+            rows.add(Arrays.asList(Integer.toString(rows.size() + 1), game.getKey(),
+                                   info == null ? "" : info.get(0), Long.toString(game.getValue())));
+         }
+         if (rows.isEmpty()) {
+            System.out.println("No rentals in this period.\n");
+         } else {
+            printReport(Arrays.asList("Rank", "Game ID", "Name", "Units Rented"), rows);
+         }
+      } catch (IOException e) {
+         System.err.println("Error reading input: " + e.getMessage());
+      } catch (SQLException e) {
+         System.err.println("SQL Error: " + e.getMessage());
+      } catch (NumberFormatException e) {
+         System.err.println("Invalid input: " + e.getMessage());
+      }
+   }
+
+   private static void displayCatalog(List<List<String>> result) {
+      // define column widths as the longest title in each column 
+      int[] columnWidths = {longestIn(result,0), longestIn(result,1), 
+                            longestIn(result,2), longestIn(result,3),
+                            longestIn(result,4)};
+
+      // print header
+      System.out.printf("%-" + columnWidths[0] + "s %-"+ columnWidths[1] + "s %-"+ columnWidths[2] + "s %-"+ columnWidths[3] + "s %-"+ columnWidths[4] + "s\n", 
+      "Game ID |", "Name", "| Genre |", "Price |", "Details");
+
+      // print rows
+      for (List<String> row : result) {
+         System.out.printf("%-" + columnWidths[0] + "s %-"+ columnWidths[1] + "s %-"+ columnWidths[2] + "s %-"+ columnWidths[3] + "s %-"+ columnWidths[4] + "s\n",
+               row.get(0), row.get(1), row.get(2), "$" + row.get(3), row.get(4));
+      }
+   }
+
+   private static int longestIn(List<List<String>> result, int index) { 
+      //simple find max algorithm 
+      int maxLength = 0;
+      for (List<String> row : result) {
+         String value = row.get(index);
+         if (value.length() >= maxLength) {
+               maxLength = value.length();
+         }
+      }
+      return maxLength; 
+   }
+
+   /**
+    * A customer's cart. The (gameID, units) lines are collected first and
+    * priced afterwards with a single catalog lookup, however many lines the
+    * cart has.
+    */
+   static class Cart {
+      // game ID -> units, kept sorted so stock is always reserved in the same order
+      final Map<String, Integer> lines = new TreeMap<>();
+      final Map<String, Double> prices = new HashMap<>();
+      final Map<String, String> names = new HashMap<>();
+
+      void add(String gameID, int units) {
+         lines.merge(gameID, units, Integer::sum);
+      }
+
+      boolean isEmpty() {
+         return lines.isEmpty();
+      }
+
+      /**
+       * Prices every line with one query and drops the lines whose game is
+       * not in the catalog.
+       *
+       * @return the game IDs that were not found
+       * @throws java.sql.SQLException when failed to execute the query
+       */
+      List<String> resolve(GameRental esql) throws SQLException {
+         for (Map.Entry<String, List<String>> game : esql._catalog.lookup(lines.keySet()).entrySet()) {
+            names.put(game.getKey(), game.getValue().get(0));
+            prices.put(game.getKey(), Double.parseDouble(game.getValue().get(1)));
+         }
+
+         List<String> missing = new ArrayList<>();
+         for (String gameID : lines.keySet()) {
+            if (!prices.containsKey(gameID)) {
+               missing.add(gameID);
+            }
+         }
+         lines.keySet().removeAll(missing);
+         return missing;
+      }
+
+      int totalGames() {
+         int total = 0;
+         for (int units : lines.values()) {
+            total += units;
+         }
+         return total;
+      }
+
+      double totalPrice() {
+         double total = 0;
+         for (Map.Entry<String, Integer> line : lines.entrySet()) {
+            total += prices.get(line.getKey()) * line.getValue();
+         }
+         return total;
+      }
+   }
+
+   public static void placeOrder(GameRental esql, String authorisedUser) {
+
+      System.out.println("\n---ORDER PLACEMENT---\n");
+      Cart cart = new Cart();
+
+      try { 
+         System.out.println("1. Enter games one by one");
+         System.out.println("2. Load cart from a file (one \"gameID,units\" per line)");
+         System.out.print("Enter your choice: ");
+         int choice = Integer.parseInt(in.readLine().trim());
+
+         if (choice == 2) {
+            System.out.print("Enter the cart file path: ");
+            BufferedReader file = new BufferedReader(new FileReader(in.readLine().trim()));
+            String line;
+            while ((line = file.readLine()) != null) {
+               String[] fields = line.split(",");
+               if (fields.length == 2 && !line.trim().isEmpty()) {
+                  try {
+                     cart.add(fields[0].trim(), Integer.parseInt(fields[1].trim()));
+                  } catch (NumberFormatException e) {
+                     System.out.println("Skipping line with invalid units: " + line);
+                  }
+               }
+            }
+            file.close();
+         } else {
+            // keep prompting for more games to add to order if user wants
+            boolean isOrdering = true; 
+            while (isOrdering) { 
+               System.out.print("Enter the game ID you would like to rent: ");
+               String gameIDToOrder = in.readLine().trim();
+
+               //prompting # of copies, prices are looked up for the whole cart at the end
+               System.out.print("Enter how many copies you would like to order: ");
+               cart.add(gameIDToOrder, Integer.parseInt(in.readLine().trim()));
+
+               System.out.print("Would you like to add another game to your cart? (y/n): ");
+               String isContinue = in.readLine();
+
+               isOrdering = (isContinue.equals("y") || isContinue.equals("Y")) ? true : false; 
+            }
+         }
+
+         // lines with zero copies are no order at all
+         cart.lines.values().removeIf(units -> units <= 0);
+         if (cart.isEmpty()) {
+            System.out.println("Your cart is empty, no order placed.\n");
+            return;
+         }
+
+         List<String> missing = cart.resolve(esql);
+         if (!missing.isEmpty()) {
+            System.out.println("These game IDs were not found and were left out of your order: " + String.join(", ", missing));
+         }
+         if (cart.isEmpty()) {
+            System.out.println("Your cart is empty, no order placed.\n");
+            return;
+         }
+
+         System.out.println("\nYour cart:");
+         for (Map.Entry<String, Integer> line : cart.lines.entrySet()) {
+            System.out.println("- " + line.getValue() + " x " + cart.names.get(line.getKey())
+                               + " (" + line.getKey() + ") at $" + String.format("%.2f", cart.prices.get(line.getKey())));
+         }
+         System.out.print("Place this order for $" + String.format("%.2f", cart.totalPrice()) + "? (y/n): ");
+         if (!in.readLine().trim().equalsIgnoreCase("y")) {
+            System.out.println("Order not placed.\n");
+            return;
+         }
+      } catch ( SQLException e ) { 
+         System.err.println("SQL Error Retrieving Game: " + e.getMessage());
+         return;
+      } catch ( IOException e ) { 
+         System.err.println("IO Error Retrieving Input: " + e.getMessage());
+         return;
+      } catch ( NumberFormatException e ) {
+         System.err.println("Invalid input: " + e.getMessage());
+         return;
+      }
+
+      int totalGames = cart.totalGames();
+      double totalPrice = cart.totalPrice();
+
+      // the whole order is one unit of work; a deadlock with a concurrent order is
+      // retried here instead of sending the customer back to re-enter the cart
+      for (int attempt = 0; ; attempt++) {
+         try { 
+            try {
+               long[] ids;
+               // counted on the dashboard and the leaderboard before a reload can see it
+               esql._countsLock.readLock().lock();
+               try {
+                  ids = esql._orders.place(authorisedUser, cart.lines, totalGames, totalPrice);
+                  esql.countShipment("Order Processing", "TBD", "Riverside, CA", 1);
+                  esql.countRentals(cart.lines, LocalDate.now(), 1);
+               } finally {
+                  esql._countsLock.readLock().unlock();
+               }
+               ORDERS_PLACED.incrementAndGet();
+
+               System.out.println("\nRental Order #" + ids[0] + " placed, with Tracking ID #" + ids[1] + " has successfully been placed.");
+               System.out.println("Order total: $" + String.format("%.2f", totalPrice) + " for " + totalGames + " games. \n");
+               if (attempt > 0) {
+                  System.out.println("(placed after " + attempt + " automatic retr" + (attempt == 1 ? "y" : "ies") + ")\n");
+               }
+               return;
+            } catch (SQLException e) {
+               if (isRetryable(e) && attempt + 1 < MAX_ORDER_ATTEMPTS) {
+                  ORDER_RETRIES.incrementAndGet();
+                  // full jitter: a random wait up to an exponentially growing cap keeps retrying orders from colliding again
+                  long cap = ORDER_RETRY_BASE_MS << attempt;
+                  Thread.sleep(ThreadLocalRandom.current().nextLong(cap + 1));
+                  continue;
+               }
+               if (isRetryable(e)) {
+                  ORDERS_ABORTED.incrementAndGet();
+               }
+               System.err.println("\nSQL Error: " + e.getMessage());
+               System.err.println("System rollback, no changes made.");
+               return;
+            }
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.err.println("\nOrder placement interrupted, no changes made.");
+            return;
+         }
+      }
+   }
+
+   // display form of a tracking number, as in the data files and exports
+   static String trackingID(long trackingNo) {
+      return "trackingid" + trackingNo;
+   }
+
+   // the number of an order or tracking key, typed as "1000" or "#1000" or in its display form; -1 when there is none
+   static long keyOf(String key) {
+      if (key == null) {
+         return -1;
+      }
+      try {
+         return Long.parseLong(key.trim().replaceFirst("^(#|gamerentalorder|trackingid)", ""));
+      } catch (NumberFormatException e) {
+         return -1;
+      }
+   }
+
+   // writes one order inside the caller's transaction and returns its {order number, tracking number}
+   private static long[] insertOrder(GameRental esql, String authorisedUser, Map<String, Integer> cartLines,
+                                     int totalGames, double totalPrice) throws SQLException {
+      if (cartLines.isEmpty() || totalGames <= 0) {
+         throw new SQLException("An order needs at least one game.");
+      }
+      // sequences hand out numbers without taking part in the transaction, so concurrent orders never conflict on them
+      List<String> ids = esql._idSource.executeQueryAndReturnResult("SELECT nextval('rentalorder_seq'), nextval('trackinginfo_seq');").get(0);
+      long orderNum = Long.parseLong(ids.get(0));
+      long trackingNum = Long.parseLong(ids.get(1));
+
+      // produces order timestamp in sql syntax
+      String currentTimeStamp = "current_timestamp"; 
+      // assuming due date is 7 days from now 
+      String dueTimeStamp = "current_timestamp + interval '7 days'";
+
+      String newOrder = String.format("INSERT INTO RentalOrder (orderNo, login, noOfGames, totalPrice, orderTimeStamp, dueDate)" + 
+                                       "VALUES (%d, '%s', %d, %.2f, %s, %s); ",
+                                       orderNum, authorisedUser, totalGames, totalPrice, currentTimeStamp, dueTimeStamp);
+      //forming query for each game, concat into list of queries for GamesInOrder; each line keeps the price it was ordered at
+      String queries = "";
+      for (Map.Entry<String, Integer> line : cartLines.entrySet()) {
+         queries += String.format("INSERT INTO GamesInOrder (orderNo, gameID, unitsOrdered, orderTimestamp, unitPrice) " +
+                                  "SELECT %d, gameID, %d, %s, price FROM Catalog WHERE gameID = '%s'; ",
+                                  orderNum, line.getValue(), currentTimeStamp, line.getKey());
+      }
+      // ASSUMING: 
+      // 1) "Order Processing" is a good default status,
+      // 2) all order start in Riverside as default, 
+      // 3) and courier isn't known yet (as order hasn't been placed yet). 
+      String newTrackingInfo = String.format("INSERT INTO TrackingInfo (trackingNo, orderNo, orderTimestamp) VALUES (%d, %d, %s); ",
+                                 trackingNum, orderNum, currentTimeStamp);
+      // the first entry of the shipment's history, which is its state until the next one
+      newTrackingInfo += String.format("INSERT INTO TrackingEvent (trackingNo, orderNo, status, currentLocation, courierName, additionalComments, changedBy, eventTime, orderTimestamp) " +
+                                 "VALUES (%d, %d, '%s', '%s', '%s', '%s', '%s', %s, %s); ",
+                                 trackingNum, orderNum, "Order Processing", "Riverside, CA", "TBD", "", authorisedUser, currentTimeStamp, currentTimeStamp);
+
+      // the customer's confirmation goes out only if this order commits
+      String notification = String.format("INSERT INTO Outbox (login, topic, payload) VALUES ('%s', 'order_placed', '%s'); ",
+                                          authorisedUser, String.format("Rental order #%d placed: %d games for $%.2f, tracking ID #%d.",
+                                                                        orderNum, totalGames, totalPrice, trackingNum));
+
+      // stock is taken first so a short title aborts the order before anything is written
+      for (Map.Entry<String, Integer> line : cartLines.entrySet()) {
+         if (!reserveStock(esql, line.getKey(), line.getValue())) {
+            throw new SQLException("Not enough copies of " + line.getKey() + " in stock.");
+         }
+      }
+
+      // executing all queries
+      esql.executeUpdate(newOrder);
+      if (!queries.isEmpty()) {
+         esql.executeUpdate(queries);
+      }
+      esql.executeUpdate(newTrackingInfo);
+      esql.executeUpdate(notification);
+      return new long[] { orderNum, trackingNum };
+   }
+
+   // serialization failures (40001) and deadlocks (40P01) leave nothing behind and are safe to run again;
+   // older drivers don't report SQLSTATE, so the server's message is checked as well
+   private static boolean isRetryable(SQLException e) {
+      for (SQLException cause = e; cause != null; cause = cause.getNextException()) {
+         String state = cause.getSQLState();
+         String message = String.valueOf(cause.getMessage());
+         if ("40001".equals(state) || "40P01".equals(state)
+             || message.contains("could not serialize access") || message.contains("deadlock detected")) {
+            return true;
+         }
+      }
+      return false;
+   }
+
+   public static void viewAllOrders(GameRental esql, String authorisedUser) {
+      try {
+        // rental order numbers for the authorised user, newest first
+        List<Long> orderNos = esql._orders.recent(authorisedUser, 0);
+        
+        if (!orderNos.isEmpty()) {
+            System.out.println("Your order history:");
+            for (long orderNo : orderNos) {
+               System.out.println("- #" + orderNo);
+            }
+        } else {
+            System.out.println("You have no order history.");
+        }
+      } catch (SQLException e) {
+        System.err.println("Error: " + e.getMessage());
+      }
+      System.out.print("\n");
+   }
+   
+   public static void viewRecentOrders(GameRental esql, String authorisedUser) {
+      try {
+         // 5 most recent rental order numbers for the authorised user
+         List<Long> orderNos = esql._orders.recent(authorisedUser, 5);
+         
+         if (!orderNos.isEmpty()) {
+            System.out.println("Your 5 most recent orders:");
+            for (long orderNo : orderNos) {
+                  System.out.println("- #" + orderNo);
+            }
+         } else {
+            System.out.println("You have no order history.");
+         }
+      } catch (SQLException e) {
+         System.err.println("Error: " + e.getMessage());
+      }
+      System.out.print("\n");
+   }
+
+   public static void viewOrderInfo(GameRental esql, String authorisedUser) {
+      try {
+         System.out.print("Enter the ID # of the order you'd like to view: ");
+         long orderNo = keyOf(in.readLine());
+         // details of the specific rental order, with its tracking number
+         List<String> details = esql._orders.find(authorisedUser, orderNo);
+         
+         // print the order details if found
+         if (details != null) {
+               System.out.println("Order details:");
+               System.out.println("- Order Timestamp: " + details.get(0));
+               System.out.println("- Due Date: " + details.get(1));
+               System.out.println("- Total Price: $" + details.get(2));
+               System.out.println("- Tracking ID: " + (details.get(3) == null ? "none" : details.get(3)));
+               
+               // retrieve and print the list of games associated with the order
+               printGamesInOrder(esql, orderNo);
+         } else {
+               System.out.println("Order not found or does not belong to you.");
+         }
+      } catch (SQLException e) {
+         System.err.println("Error: " + e.getMessage());
+      }
+      catch (IOException e) {
+         System.err.println("Error: " + e.getMessage());
+      }
+   }
+
+   private static void printGamesInOrder(GameRental esql, long orderNo) {
+      try {
+         // the list of games associated with the given order
+         List<List<String>> gamesInOrder = esql._orders.games(orderNo);
+         
+         if (!gamesInOrder.isEmpty()) {
+               System.out.println("Games in this order:");
+               for (List<String> game : gamesInOrder) {
+                  System.out.println("- Game ID: " + game.get(0) + ", Units Ordered: " + game.get(1));
+               }
+         } else {
+               System.out.println("No games found for this order.");
+         }
+      } catch (SQLException e) {
+         System.err.println("Error: " + e.getMessage());
+      }
+   }
+
+   public static void viewTrackingInfo(GameRental esql, String authorisedUser) {
+      try {
+         System.out.print("Enter the tracking ID # of the order you'd like to view: ");
+         long trackingNo = keyOf(in.readLine());
+         // details of the specific tracking info, if the order is the user's
+         List<String> details = esql._tracking.findShipment(authorisedUser, trackingNo);
+         
+         // print the order details if found
+         if (details != null) {
+
+               System.out.println("Tracking Info details:");
+               System.out.println("- Tracking ID: #" + details.get(0));
+               System.out.println("- Rental Order ID: #" + details.get(1));
+               System.out.println("- Status: " + details.get(2));
+               System.out.println("- Current Location: " + details.get(3));
+               System.out.println("- Courier: " + details.get(4));
+               System.out.println("- Last Updated Date: " + details.get(5));
+               System.out.println("- Additional Comments: " + details.get(6));
+               
+         } else {
+               System.out.println("Tracking info not found or does not belong to you.");
+         }
+      } catch (SQLException e) {
+         System.err.println("Error: " + e.getMessage());
+      }
+      catch (IOException e) {
+         System.err.println("Error: " + e.getMessage());
+      }
+   }
+   public static void updateTrackingInfo(GameRental esql, String authorisedUser) {
+      long trackingNo;
+
+      try {
+         String role = roleOf(esql, authorisedUser);
+
+         if (role.contains("manager") || role.contains("employee")) {
+               System.out.println("\nEnter trackingID to update: ");
+
+               try {
+                  trackingNo = keyOf(in.readLine());
+               } catch (Exception e) {
+                  System.out.println("Error reading input: " + e.getMessage());
+                  return; // exit function if theres an input error
+               }
+
+               // only tells whether the shipment exists; each change below reads the state again under a lock
+               if (esql._tracking.hasShipment(trackingNo)) {
+
+                  System.out.println("\n1. Update Status");
+                  System.out.println("2. Update Location");
+                  System.out.println("3. Update Courier");
+                  System.out.println("4. Update Additional Comments");
+                  System.out.println("5. View Status History");
+                  System.out.print("Enter your choice: ");
+                  int choice = Integer.parseInt(in.readLine());
+                  
+                  // every change is appended to TrackingEvent; the shipment's latest event is its current state
+                  List<String> before;
+                  switch (choice) {
+                     case 1:
+                        System.out.print("Enter the updated status: ");
+                        String update = in.readLine();
+                        // records the new tracking status in the database
+                        before = esql.changeShipment(trackingNo, "status", 2, update, authorisedUser);
+                        if (before != null) {
+                           esql.audit(authorisedUser, "trackinginfo", trackingID(trackingNo), "status", before.get(2), update);
+                        }
+                        break;
+
+                     case 2:
+                           System.out.print("Enter the updated location: ");
+                           update = in.readLine();
+                           // records the new tracking location in the database
+                           before = esql.changeShipment(trackingNo, "currentLocation", 3, update, authorisedUser);
+                           if (before != null) {
+                              esql.audit(authorisedUser, "trackinginfo", trackingID(trackingNo), "currentLocation", before.get(3), update);
+                           }
+                        break;
+                  
+                     case 3:
+                           System.out.print("Enter the updated courier: ");
+                           update = in.readLine();
+                           // records the new tracking courier in the database
+                           before = esql.changeShipment(trackingNo, "courierName", 4, update, authorisedUser);
+                           if (before != null) {
+                              esql.audit(authorisedUser, "trackinginfo", trackingID(trackingNo), "courierName", before.get(4), update);
+                           }
+                        break;
+
+                     case 4:
+                           System.out.print("Enter the updated additional comments: ");
+                           update = in.readLine();
+                           // records the new tracking comments in the database
+                           before = esql._tracking.appendEvent(trackingNo, "additionalComments", update, authorisedUser);
+                           if (before != null) {
+                              esql.audit(authorisedUser, "trackinginfo", trackingID(trackingNo), "additionalComments", before.get(6), update);
+                           }
+                        break;
+
+                     case 5:
+                           printReport(Arrays.asList("Time", "Status", "Location", "Courier", "Comments", "Changed By"),
+                                       esql._tracking.history(trackingNo));
+                        break;
+               }
+            } else {
+               System.out.println("Tracking info not found.");
+            }
+         } else { //user isn't faculty 
+               System.out.println("You are not authorized to update tracking information.");
+         }
+      } catch (IOException e) {
+            System.err.println("Error reading input: " + e.getMessage());
+      } catch (SQLException e) {
+         System.err.println("Error executing query: " + e.getMessage());
+      }
+   }
+
+   public static void updateCatalog(GameRental esql, String authorisedUser) {
+      String gameId = "";
+
+      try {
+         String role = roleOf(esql, authorisedUser);
+
+         if (role.contains("manager")) {
+            System.out.println("\nEnter gameID to update: ");
+
+            try {
+               gameId = in.readLine();
+            } catch (Exception e) {
+               System.out.println("Error reading input: " + e.getMessage());
+               return; // Exit if there's an input error
+            }
+
+            List<String> columns = Arrays.asList("gamename", "genre", "price", "description", "imageURL", "version");
+            List<String> gameInfo = esql._catalog.game("game" + gameId);
+
+            if (gameInfo != null) {
+               // the version read here guards every update below against concurrent edits,
+               // the values are what the audit trail records as old
+               Map<String, String> current = rowMap(columns, gameInfo);
+
+               System.out.println("\n1. Update Game Name");
+               System.out.println("2. Update Genre");
+               System.out.println("3. Update Price");
+               System.out.println("4. Update Description");
+               System.out.println("5. Update Image URL");
+               System.out.println("6. Restock Units");
+               System.out.println("7. Update Several Fields at Once");
+               System.out.print("Enter your choice: ");
+		         int choice = Integer.parseInt(in.readLine());
+                
+		         switch (choice) {
+                  case 1:
+               		System.out.print("Enter the updated game name: ");
+               		String update = in.readLine();
+                  	// Update the game name in the database
+                     if (updateIfUnchanged(esql, authorisedUser, "catalog", "game" + gameId, current, Collections.singletonMap("gamename", update)))
+                        System.out.println("Game name successfully updated.\n");
+			            break;
+
+		            case 2:
+                        System.out.print("Enter the updated game genre: ");
+                        update = in.readLine();
+                        // Update the game genre in the database
+                        if (updateIfUnchanged(esql, authorisedUser, "catalog", "game" + gameId, current, Collections.singletonMap("genre", update)))
+                           System.out.println("Game genre successfully updated.\n");
+                        break;
+		  
+		            case 3:
+                        System.out.print("Enter the updated game price: ");
+                        update = in.readLine();
+                        // Update the game price in the database
+                        if (updateIfUnchanged(esql, authorisedUser, "catalog", "game" + gameId, current, Collections.singletonMap("price", update)))
+                           System.out.println("Game price successfully updated.\n");
+                        break;
+		            case 4:
+                        System.out.print("Enter the updated game description: ");
+                        update = in.readLine();
+                        // Update the game description in the database
+                        if (updateIfUnchanged(esql, authorisedUser, "catalog", "game" + gameId, current, Collections.singletonMap("description", update)))
+                           System.out.println("Game description successfully updated.\n");
+                        break;
+		            case 5:
+                        System.out.print("Enter the game's updated image URL: ");
+                        update = in.readLine();
+                        // Update the image URL in the database
+                        if (updateIfUnchanged(esql, authorisedUser, "catalog", "game" + gameId, current, Collections.singletonMap("imageURL", update)))
+                           System.out.println("Game image URL successfully updated.\n");
+                        break;
+		            case 6:
+                        System.out.print("Enter the number of units to add: ");
+                        int units = Integer.parseInt(in.readLine());
+                        if (units < 0) {
+                           System.out.println("The number of units cannot be negative.\n");
+                           break;
+                        }
+                        // spread the new units evenly over the stock buckets, of every shard when there are several
+                        esql._catalog.restock("game" + gameId, units);
+                        System.out.println("Game successfully restocked.\n");
+                        break;
+		            case 7:
+                        // collect the edits first, then apply them together in one statement
+                        Map<String, String> changes = readFieldChanges(
+                           Arrays.asList("gamename", "genre", "price", "description", "imageURL"),
+                           Arrays.asList("Game Name", "Genre", "Price", "Description", "Image URL"));
+                        if (!changes.isEmpty() && updateIfUnchanged(esql, authorisedUser, "catalog", "game" + gameId, current, changes))
+                           System.out.println("Game successfully updated.\n");
+                        break;
+               }
+            } else {
+                System.out.println("Game info not found.");
+            }
+         } else {
+            System.out.println("You are not authorized to update the game catalog.");
+         }
+      } catch (IOException e) {
+         System.err.println("Error reading input: " + e.getMessage());
+      } catch (SQLException e) {
+        System.err.println("Error executing query: " + e.getMessage());
+      }
+   }
+
+   public static void updateUser(GameRental esql,String authorisedUser) {
+      String userLogin = "";
+
+      try {
+         String role = roleOf(esql, authorisedUser);
+
+         if (role.contains("manager")) {
+            System.out.println("\nEnter user login to update: ");
+
+            try {
+               userLogin = in.readLine();
+            } catch (Exception e) {
+               System.out.println("Error reading input: " + e.getMessage());
+               return; // exit if there's an input error
+            }
+
+            List<String> columns = Arrays.asList("password", "role", "favgames", "phonenum", "numoverduegames", "version");
+            List<String> userInfo = esql._users.account(userLogin);
+
+            if (userInfo != null) {
+               // the version read here guards every update below against concurrent edits,
+               // the values are what the audit trail records as old
+               Map<String, String> current = rowMap(columns, userInfo);
+
+               System.out.println("\n1. Update User Password");
+               System.out.println("2. Update User Role");
+               System.out.println("3. Update User Favorite Games");
+               System.out.println("4. Update User Phone Number");
+	            System.out.println("5. Update User Number of Overdue Games");
+               System.out.println("6. Update Several Fields at Once");
+               System.out.print("Enter your choice: ");
+		         int choice = Integer.parseInt(in.readLine());
+                
+		         switch (choice) {
+                  case 1:
+               		System.out.print("Enter the updated user password: ");
+               		String update = in.readLine();
+                  	// update the user's password in the database
+                     if (updateIfUnchanged(esql, authorisedUser, "users", userLogin, current, Collections.singletonMap("password", update)))
+                        System.out.println("User's password successfully updated.\n");
+			            break;
+
+		            case 2:
+                     System.out.print("Enter the updated user role: ");
+                     update = in.readLine();
+                     // update the user's role in the database
+                     if (updateIfUnchanged(esql, authorisedUser, "users", userLogin, current, Collections.singletonMap("role", update)))
+                        System.out.println("User's role successfully updated.\n");
+                     break;
+				    
+                  case 3:
+                     System.out.print("Enter the updated user's favorite games: ");
+                     update = in.readLine();
+                     // update the user's favorite games in the database
+                     if (updateIfUnchanged(esql, authorisedUser, "users", userLogin, current, Collections.singletonMap("favgames", update)))
+                        System.out.println("User's favorite games successfully updated.\n");
+                     break;
+
+                  case 4:
+                     System.out.print("Enter the updated user's phone number: ");
+                     update = in.readLine();
+                     // update the user's phone number in the database
+                     if (updateIfUnchanged(esql, authorisedUser, "users", userLogin, current, Collections.singletonMap("phonenum", update)))
+                        System.out.println("User's phone number successfully updated.\n");
+                     break;
+
+		            case 5:
+                     System.out.print("Enter the updated user's number of overdue games (>= 0): ");
+                     update = in.readLine();
+                     // update the user's overdue games in the database
+                     if (updateIfUnchanged(esql, authorisedUser, "users", userLogin, current, Collections.singletonMap("numoverduegames", update)))
+                        System.out.println("User's overdue games successfully updated.\n");
+                     break;
+
+                  case 6:
+                     // collect the edits first, then apply them together in one statement
+                     Map<String, String> changes = readFieldChanges(
+                        Arrays.asList("password", "role", "favgames", "phonenum", "numoverduegames"),
+                        Arrays.asList("Password", "Role", "Favorite Games", "Phone Number", "Number of Overdue Games"));
+                     if (!changes.isEmpty() && updateIfUnchanged(esql, authorisedUser, "users", userLogin, current, changes))
+                        System.out.println("User successfully updated.\n");
+                     break;
+			      }
+            } else {
+                System.out.println("User not found.");
+            }
+         } else {
+            System.out.println("You are not authorized to update user information.");
          }
       } catch (IOException e) {
          System.err.println("Error reading input: " + e.getMessage());
       } catch (SQLException e) {
-         System.err.println("Error executing query: " + e.getMessage());
+        System.err.println("Error executing query: " + e.getMessage());
       }
-      return authorisedUser; 
    }
 
-   public static void viewCatalog(GameRental esql) {
-      try {
-            // prompt user for filter options
-            System.out.println("Choose filter option:");
-            System.out.println("1. No Filter");
-            System.out.println("2. Filter by Genre");
-            System.out.println("3. Filter by Price");
-            System.out.print("Enter choice: ");
-            int filterChoice = Integer.parseInt(in.readLine());
+   // compare-and-set update of one row: all changes go out in a single statement that only matches if the
+   // row still has the version the caller read. Returns false, after telling the user, when someone else got there first
+   private static boolean updateIfUnchanged(GameRental esql, String actor, String table, String key,
+                                            Map<String, String> current, Map<String, String> changes) throws SQLException {
+      boolean updated = table.equals("users") ? esql._users.updateUser(key, changes, current.get("version"))
+                                              : esql._catalog.updateGame(key, changes, current.get("version"));
+      if (updated) {
+         for (Map.Entry<String, String> change : changes.entrySet()) {
+            esql.audit(actor, table, key, change.getKey(), current.get(change.getKey()), change.getValue());
+         }
+         return true;
+      }
+      System.out.println("This record was changed by someone else since you opened it. No changes made, please try again.\n");
+      return false;
+   }
 
-            String genreFilter = "";
-            double priceFilter = -1.0;
+   // one UPDATE of the given columns of a row, which only matches while the row has the given version when there is one
+   private static String compareAndSet(String table, String keyColumn, String key, Map<String, String> changes, String version) {
+      String sets = "";
+      for (Map.Entry<String, String> change : changes.entrySet()) {
+         sets += change.getKey() + " = '" + change.getValue().replace("'", "''") + "', ";
+      }
+      return String.format("UPDATE %s SET %sversion = version + 1 WHERE %s = '%s'%s;",
+                           table, sets, keyColumn, key.replace("'", "''"), version == null ? "" : " AND version = " + version);
+   }
 
-            // read in filter info based on user choice
-            if (filterChoice == 2) {
-                  System.out.print("Enter genre: ");
-                  genreFilter = in.readLine();
-            } else if (filterChoice == 3) {
-                  System.out.print("Enter maximum price: ");
-                  priceFilter = Double.parseDouble(in.readLine());
-            }
+   // one result row as a column -> value map; column names are matched case-insensitively like in SQL
+   private static Map<String, String> rowMap(List<String> columns, List<String> row) {
+      Map<String, String> map = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+      for (int i = 0; i < columns.size(); i++) {
+         map.put(columns.get(i), row.get(i));
+      }
+      return map;
+   }
 
-            // prompt the user for price sorting options
-            System.out.println("Choose sorting option:");
-            System.out.println("1. Price: Lowest to Highest");
-            System.out.println("2. Price: Highest to Lowest");
-            System.out.print("Enter choice: ");
-            int sortChoice = Integer.parseInt(in.readLine());
+   // prompts for any number of (field, new value) edits until a blank choice; keys are the column names
+   private static Map<String, String> readFieldChanges(List<String> columns, List<String> labels) throws IOException {
+      Map<String, String> changes = new TreeMap<>();
+      while (true) {
+         System.out.println();
+         for (int i = 0; i < labels.size(); i++) {
+            System.out.println((i + 1) + ". " + labels.get(i) + (changes.containsKey(columns.get(i)) ? " (changed)" : ""));
+         }
+         System.out.print("Choose a field to change (blank to apply): ");
+         String choice = in.readLine().trim();
+         if (choice.isEmpty()) {
+            return changes;
+         }
+         try {
+            int field = Integer.parseInt(choice) - 1;
+            System.out.print("Enter the new " + labels.get(field) + ": ");
+            changes.put(columns.get(field), in.readLine());
+         } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            System.out.println("Invalid choice.");
+         }
+      }
+   }
+
+   // returns the role of the given user, padded as stored in Users.role
+   private static String roleOf(GameRental esql, String login) throws SQLException {
+      // through the user repository, so it finds the user on whichever shard holds them
+      List<String> profile = esql._users.profile(login);
+      return profile == null ? "" : profile.get(2);
+   }
+
+   public static void exportOrderHistory(GameRental esql, String authorisedUser) {
+      try {
+         if (!roleOf(esql, authorisedUser).contains("manager")) {
+            System.out.println("You are not authorized to export order history.");
+            return;
+         }
 
-            String sortOrder = (sortChoice == 1) ? "ASC" : "DESC";
+         System.out.println("\n1. Export RentalOrder");
+         System.out.println("2. Export GamesInOrder");
+         System.out.println("3. Export TrackingInfo");
+         System.out.println("4. Export all three");
+         System.out.print("Enter your choice: ");
+         int choice = Integer.parseInt(in.readLine());
+         List<String> tables = new ArrayList<>();
+         if (choice == 1 || choice == 4) tables.add("RentalOrder");
+         if (choice == 2 || choice == 4) tables.add("GamesInOrder");
+         if (choice == 3 || choice == 4) tables.add("TrackingInfo");
+         if (tables.isEmpty()) {
+            System.out.println("Invalid choice.\n");
+            return;
+         }
 
-            // constructing SELECT query, adding additional filtering information if chosen 
-            String query = "SELECT * FROM Catalog";
-            boolean hasFilter = false;
+         System.out.print("Enter output file prefix (e.g. /tmp/orders): ");
+         String prefix = in.readLine().trim();
+         System.out.print("Compress with gzip? (y/n): ");
+         boolean gzip = in.readLine().trim().equalsIgnoreCase("y");
+         System.out.print("Orders placed on or after (YYYY-MM-DD, blank for no limit): ");
+         String fromDate = readDateOrBlank();
+         System.out.print("Orders placed before (YYYY-MM-DD, blank for no limit): ");
+         String toDate = readDateOrBlank();
+         System.out.print("Only orders of login (blank for all users): ");
+         String login = in.readLine().trim().replace("'", "''");
+         System.out.print("Number of parallel streams (1-8): ");
+         int streams = Math.max(1, Math.min(8, Integer.parseInt(in.readLine().trim())));
 
-            if (filterChoice == 2) {
-                  query += String.format(" WHERE genre = '%s'", genreFilter);
-                  hasFilter = true;
-            } else if (filterChoice == 3) {
-                  query += String.format(" WHERE price <= %.2f", priceFilter);
-                  hasFilter = true;
-            }
+         // split the requested time range into disjoint slices, one stream each
+         List<String[]> slices = new ArrayList<>();
+         if (streams == 1) {
+            slices.add(new String[] { fromDate.isEmpty() ? null : fromDate, toDate.isEmpty() ? null : toDate });
+         } else {
+            slices = splitOrderTimeRange(esql, fromDate, toDate, login, streams);
+         }
 
-            // adds sorting order to the query
-            query += " ORDER BY price " + sortOrder + ";";
-            List<List<String>> result = esql.executeQueryAndReturnResult(query);
-            // calls helper function
-            displayCatalog(result);
+         // with sharding every shard writes files of its own, told apart by the shard number
+         List<GameRental> databases = esql.databases();
+         long start = System.currentTimeMillis();
+         ExecutorService pool = Executors.newFixedThreadPool(Math.min(databases.size() * slices.size() * tables.size(), 8));
+         List<Future<Long>> results = new ArrayList<>();
+         for (int d = 0; d < databases.size(); d++) {
+            GameRental database = databases.get(d);
+            for (String table : tables) {
+               for (int i = 0; i < slices.size(); i++) {
+                  String file = prefix + "_" + table.toLowerCase() + (databases.size() > 1 ? ".shard" + d : "")
+                              + (slices.size() > 1 ? ".part" + i : "") + ".csv" + (gzip ? ".gz" : "");
+                  String query = exportQuery(table, slices.get(i)[0], slices.get(i)[1], login);
+                  results.add(pool.submit(() -> exportToFile(database, query, file, gzip)));
+               }
+            }
+         }
+         pool.shutdown();
 
-         } catch (IOException e) {
-            System.err.println("Error reading input: " + e.getMessage());
-         } catch (SQLException e) {
-            System.err.println("SQL Error: " + e.getMessage());
+         long rows = 0;
+         try {
+            for (Future<Long> result : results) {
+               rows += result.get();
+            }
+         } catch (Exception e) {
+            pool.shutdownNow();
+            System.err.println("Export failed: " + e.getMessage());
+            return;
          }
+         System.out.println("Exported " + rows + " rows to " + results.size() + " file(s) in "
+                            + (System.currentTimeMillis() - start) + " ms.\n");
+      } catch (IOException e) {
+         System.err.println("Error reading input: " + e.getMessage());
+      } catch (SQLException e) {
+         System.err.println("Error executing query: " + e.getMessage());
+      } catch (IllegalArgumentException e) {
+         System.err.println("Invalid input: " + e.getMessage());
+      }
    }
 
-   private static void displayCatalog(List<List<String>> result) {
-      // define column widths as the longest title in each column 
-      int[] columnWidths = {longestIn(result,0), longestIn(result,1), 
-                            longestIn(result,2), longestIn(result,3),
-                            longestIn(result,4)};
+   // a date typed as YYYY-MM-DD, normalised so it can go into a query as is; blank stays blank
+   private static String readDateOrBlank() throws IOException {
+      String date = in.readLine().trim();
+      if (date.isEmpty()) {
+         return date;
+      }
+      try {
+         return LocalDate.parse(date).toString();
+      } catch (java.time.format.DateTimeParseException e) {
+         throw new IllegalArgumentException("not a date: " + date);
+      }
+   }
 
-      // print header
-      System.out.printf("%-" + columnWidths[0] + "s %-"+ columnWidths[1] + "s %-"+ columnWidths[2] + "s %-"+ columnWidths[3] + "s %-"+ columnWidths[4] + "s\n", 
-      "Game ID |", "Name", "| Genre |", "Price |", "Details");
+   // WHERE clause over RentalOrder r for the export filters; null or empty means no limit
+   private static String orderFilter(String from, String to, String login) {
+      String where = " WHERE true";
+      if (from != null && !from.isEmpty()) where += " AND r.orderTimestamp >= '" + from + "'";
+      if (to != null && !to.isEmpty()) where += " AND r.orderTimestamp < '" + to + "'";
+      if (!login.isEmpty()) where += " AND r.login = '" + login + "'";
+      return where;
+   }
 
-      // print rows
-      for (List<String> row : result) {
-         System.out.printf("%-" + columnWidths[0] + "s %-"+ columnWidths[1] + "s %-"+ columnWidths[2] + "s %-"+ columnWidths[3] + "s %-"+ columnWidths[4] + "s\n",
-               row.get(0), row.get(1), row.get(2), "$" + row.get(3), row.get(4));
+   // builds the export query for one table, archived orders included; the order filters always apply to the owning order.
+   // Keys are written in their display form, so the files have the layout of the ones in data/
+   private static String exportQuery(String table, String from, String to, String login) {
+      String where = orderFilter(from, to, login);
+      if (table.equals("RentalOrder")) {
+         return "SELECT rental_order_id(r.orderNo) AS rentalOrderID, r.login, r.noOfGames, r.totalPrice, r.orderTimestamp, r.dueDate " +
+                "FROM AllRentalOrders r" + where;
+      }
+      if (table.equals("GamesInOrder")) {
+         return "SELECT rental_order_id(g.orderNo) AS rentalOrderID, g.gameID, g.unitsOrdered FROM AllGamesInOrder g" +
+                " JOIN AllRentalOrders r ON r.orderNo = g.orderNo AND r.orderTimestamp = g.orderTimestamp" + where;
       }
+      return "SELECT tracking_id(t.trackingNo) AS trackingID, rental_order_id(t.orderNo) AS rentalOrderID, t.status, t.currentLocation, " +
+             "t.courierName, t.lastUpdateDate, t.additionalComments, t.orderTimestamp FROM AllTrackingInfo t" +
+             " JOIN AllRentalOrders r ON r.orderNo = t.orderNo" + where;
    }
 
-   private static int longestIn(List<List<String>> result, int index) { 
-      //simple find max algorithm 
-      int maxLength = 0;
-      for (List<String> row : result) {
-         String value = row.get(index);
-         if (value.length() >= maxLength) {
-               maxLength = value.length();
+   // splits [from, to) into equally sized time slices; open ends are taken from the data itself, of every shard
+   private static List<String[]> splitOrderTimeRange(GameRental esql, String from, String to, String login, int parts) throws SQLException {
+      String query = "SELECT min(r.orderTimestamp), max(r.orderTimestamp) FROM AllRentalOrders r" + orderFilter(from, to, login);
+      List<String> bounds = Arrays.asList(null, null);
+      for (List<String> shard : esql.scatterQuery(query)) {
+         if (shard.get(0) != null) {
+            // the timestamps come back in one format, so they compare as text
+            bounds.set(0, bounds.get(0) == null || shard.get(0).compareTo(bounds.get(0)) < 0 ? shard.get(0) : bounds.get(0));
+            bounds.set(1, bounds.get(1) == null || shard.get(1).compareTo(bounds.get(1)) > 0 ? shard.get(1) : bounds.get(1));
          }
       }
-      return maxLength; 
+      List<String[]> slices = new ArrayList<>();
+      if (bounds.get(0) == null) {
+         // nothing matches; a single empty slice still produces the (empty) files
+         slices.add(new String[] { from.isEmpty() ? null : from, to.isEmpty() ? null : to });
+         return slices;
+      }
+
+      long lo = from.isEmpty() ? Timestamp.valueOf(bounds.get(0)).getTime() : Timestamp.valueOf(from + " 00:00:00").getTime();
+      // the upper bound is exclusive, so step past the newest order when it comes from the data
+      long hi = to.isEmpty() ? Timestamp.valueOf(bounds.get(1)).getTime() + 1000 : Timestamp.valueOf(to + " 00:00:00").getTime();
+      long step = Math.max(1, (hi - lo + parts - 1) / parts);
+      for (long s = lo; s < hi; s += step) {
+         slices.add(new String[] { new Timestamp(s).toString(), new Timestamp(Math.min(s + step, hi)).toString() });
+      }
+      return slices;
    }
 
-   public static void placeOrder(GameRental esql, String authorisedUser) {
+   // streams one query into a CSV file on a dedicated connection
+   private static long exportToFile(GameRental esql, String query, String file, boolean gzip) throws SQLException, IOException {
+      Connection conn = esql.openConnection();
+      OutputStream out = new FileOutputStream(file);
+      if (gzip) {
+         out = new GZIPOutputStream(out, 1 << 16);
+      }
+      BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"), 1 << 16);
+      try {
+         boolean[] header = { true };
+         long rows = streamQuery(conn, query, rs -> {
+            ResultSetMetaData rsmd = rs.getMetaData();
+            int numCol = rsmd.getColumnCount();
+            if (header[0]) {
+               writeCsvHeader(writer, rsmd);
+               header[0] = false;
+            }
+            for (int i = 1; i <= numCol; i++) {
+               if (i > 1) writer.write(',');
+               writer.write(csvField(rs.getString(i)));
+            }
+            writer.newLine();
+         });
+         if (header[0]) {
+            // no rows to take the columns from, so they come from an empty run of the query
+            String empty = "SELECT * FROM (" + query + ") q LIMIT 0;";
+            Statement stmt = conn.createStatement();
+            long start = System.nanoTime();
+            ResultSet rs = stmt.executeQuery(empty);
+            Tracer.record(empty, start, 0);
+            writeCsvHeader(writer, rs.getMetaData());
+            stmt.close();
+         }
+         return rows;
+      } finally {
+         writer.close();
+         conn.close();
+      }
+   }
 
-      System.out.println("\n---ORDER PLACEMENT---\n");
-      String queries = ""; 
-      int totalGames = 0; 
-      double totalPrice = 0;
-      String newId = ""; 
-      String newTrackingId = ""; 
-      int lastNum = 0; 
-      int lastNumTrackingId = 0; 
+   private static void writeCsvHeader(BufferedWriter writer, ResultSetMetaData rsmd) throws SQLException, IOException {
+      for (int i = 1; i <= rsmd.getColumnCount(); i++) {
+         writer.write((i > 1 ? "," : "") + rsmd.getColumnName(i));
+      }
+      writer.newLine();
+   }
 
-      try { 
+   // quotes a value for CSV output in the same form the data/ files use; NULL is left empty
+   private static String csvField(String value) {
+      if (value == null) {
+         return "";
+      }
+      return "\"" + value.replace("\"", "\"\"") + "\"";
+   }
 
-         // finding new uniqueID for the new rentalOrder
-         String query = "SELECT rentalorderid FROM RentalOrder ORDER BY rentalorderid DESC LIMIT 1";
-         List<List<String>> result = esql.executeQueryAndReturnResult(query);
-         String lastId = result.get(0).get(0);
-         lastNum = Integer.parseInt(lastId.replaceAll("[^0-9]", ""));
-         newId = "gamerentalorder" + (lastNum + 1);
-
-         // finding new uniqueID for the new TrackingInfo
-         String trackingQuery = "SELECT trackingid FROM TrackingInfo ORDER BY TrackingID DESC LIMIT 1";
-         List<List<String>> trackingResult = esql.executeQueryAndReturnResult(trackingQuery);
-         String lastTrackingId = trackingResult.get(0).get(0);
-         lastNumTrackingId = Integer.parseInt(lastTrackingId.replaceAll("[^0-9]", ""));
-         newTrackingId = "trackingid" + (lastNumTrackingId + 1);
-
-         // keep prompting for more games to add to order if user wants
-         boolean isOrdering = true; 
-         while (isOrdering) { 
-            System.out.print("Enter the game ID you would like to rent: ");
-            String gameIDToOrder = in.readLine();
-
-            //finding current game to extract price -> sum to totalPrice 
-            String currQuery = "SELECT price, gameName FROM Catalog WHERE gameID = \'" + gameIDToOrder + "\';"; 
-            List<List<String>> currentGame = esql.executeQueryAndReturnResult(currQuery);
-            if (!currentGame.isEmpty() && !currentGame.get(0).isEmpty()) {
-               //prompting # of copies 
-               System.out.print("Enter how many copies of " + currentGame.get(0).get(1) + " you would like to order: ");
-               int numOrders = Integer.parseInt(in.readLine());
-               totalGames += numOrders;
-
-               double price = Double.parseDouble(currentGame.get(0).get(0)); 
-               totalPrice += (price*numOrders); 
-               //forming query for current game, concat into list of queries for GamesInOrder
-               if ( numOrders > 0 ) { 
-                  queries += String.format("INSERT INTO GamesInOrder (rentalorderID, gameID, unitsOrdered) VALUES ('%s', '%s', '%d'); ",
-                                          newId, gameIDToOrder, numOrders);
-               }
-            } 
-            else { 
-               System.out.println("Game not found or no price available.");
-            }
+   public static void salesReports(GameRental esql, String authorisedUser) {
+      try {
+         if (!roleOf(esql, authorisedUser).contains("manager")) {
+            System.out.println("You are not authorized to view sales reports.");
+            return;
+         }
 
-            System.out.print("Would you like to add another game to your cart? (y/n): ");
-            String isContinue = in.readLine();
+         System.out.println("\n1. Revenue by Genre and Month");
+         System.out.println("2. Top Titles by Units Rented");
+         System.out.println("3. Orders per Courier");
+         System.out.println("4. Refresh Summary Tables");
+         System.out.println("5. Recompute Reports from Raw Orders (parallel scan)");
+         System.out.println("6. Order Placement Metrics");
+         System.out.println("7. Verify User Statistics");
+         System.out.print("Enter your choice: ");
+         int choice = Integer.parseInt(in.readLine());
 
-            isOrdering = (isContinue.equals("y") || isContinue.equals("Y")) ? true : false; 
+         switch (choice) {
+            case 1:
+               System.out.print("Enter genre (blank for all): ");
+               String genre = in.readLine().trim().replace("'", "''");
+               refreshSalesSummaries(esql);
+               String query = "SELECT genre, to_char(month, 'YYYY-MM'), revenue, unitsOrdered FROM GenreMonthRevenue"
+                            + (genre.isEmpty() ? "" : " WHERE genre = '" + genre + "'") + ";";
+               List<List<String>> rows = sumByKey(esql.scatterQuery(query), 2);
+               rows.sort((a, b) -> a.get(1).equals(b.get(1)) ? new java.math.BigDecimal(b.get(2)).compareTo(new java.math.BigDecimal(a.get(2)))
+                                                               : b.get(1).compareTo(a.get(1)));
+               printReport(Arrays.asList("Genre", "Month", "Revenue", "Units"), rows);
+               break;
+            case 2:
+               System.out.print("How many titles? ");
+               int limit = Integer.parseInt(in.readLine().trim());
+               refreshSalesSummaries(esql);
+               // every title, as a shard's own top titles need not be the overall ones
+               query = "SELECT t.gameID, c.gameName, t.unitsOrdered FROM TitleUnits t JOIN Catalog c ON c.gameID = t.gameID;";
+               rows = largestFirst(sumByKey(esql.scatterQuery(query), 2));
+               printReport(Arrays.asList("Game ID", "Name", "Units"), rows.subList(0, Math.min(Math.max(limit, 0), rows.size())));
+               break;
+            case 3:
+               refreshSalesSummaries(esql);
+               query = "SELECT courierName, orderCount FROM CourierOrders WHERE orderCount > 0;";
+               printReport(Arrays.asList("Courier", "Orders"), largestFirst(sumByKey(esql.scatterQuery(query), 1)));
+               break;
+            case 4:
+               int changes = refreshSalesSummaries(esql);
+               System.out.println("Folded " + changes + " change(s) into the summary tables.\n");
+               break;
+            case 5:
+               System.out.print("Number of parallel streams (1-8): ");
+               int streams = Math.max(1, Math.min(8, Integer.parseInt(in.readLine().trim())));
+               recomputeSalesReports(esql, streams);
+               break;
+            case 6:
+               printReport(Arrays.asList("Orders Placed", "Conflict Retries", "Aborted After Retries"),
+                           Collections.singletonList(Arrays.asList(Long.toString(ORDERS_PLACED.get()),
+                                                                   Long.toString(ORDER_RETRIES.get()),
+                                                                   Long.toString(ORDERS_ABORTED.get()))));
+               break;
+            case 7:
+               for (int d = 0; d < esql.databases().size(); d++) {
+                  if (esql.databases().size() > 1) {
+                     System.out.println("\nShard " + d + ":");
+                  }
+                  verifyUserStats(esql.databases().get(d));
+               }
+               break;
+            default:
+               System.out.println("Invalid choice.\n");
+               break;
          }
-      } catch ( SQLException e ) { 
-         System.err.println("SQL Error Retrieving Game: " + e.getMessage());
-      } catch ( IOException e ) { 
-         System.err.println("IO Error Retrieving Input: " + e.getMessage());
+      } catch (IOException e) {
+         System.err.println("Error reading input: " + e.getMessage());
+      } catch (SQLException e) {
+         System.err.println("Error executing query: " + e.getMessage());
+      } catch (NumberFormatException e) {
+         System.err.println("Invalid input: " + e.getMessage());
       }
+   }
 
-      // only run this part if they chose to add any games to their order 
-      // i.e. entering game ID but selecting 0 copies -> no order 
-      if ( totalGames >= 0 ) { 
+   // folds the changes recorded since the last refresh into the summary tables of every shard and deletes them, all in
+   // one statement per shard, so each is counted exactly once even with refreshes running side by side; returns the
+   // number of changes
+   private static int refreshSalesSummaries(GameRental esql) throws SQLException {
+      int changes = 0;
+      for (GameRental database : esql.databases()) {
+         List<List<String>> folded = database.executeQueryAndReturnResult(
+            "WITH d AS (DELETE FROM SalesDelta RETURNING *), " +
+            "g AS (INSERT INTO GenreMonthRevenue (genre, month, revenue, unitsOrdered) " +
+            "      SELECT genre, month, sum(revenue), sum(units) FROM d WHERE genre IS NOT NULL GROUP BY 1, 2 " +
+            "      ON CONFLICT (genre, month) DO UPDATE SET revenue = GenreMonthRevenue.revenue + EXCLUDED.revenue, " +
+            "      unitsOrdered = GenreMonthRevenue.unitsOrdered + EXCLUDED.unitsOrdered), " +
+            // titles deleted from the catalog since have no row left to add to
+            "t AS (INSERT INTO TitleUnits (gameID, unitsOrdered) " +
+            "      SELECT d.gameID, sum(d.units) FROM d JOIN Catalog c ON c.gameID = d.gameID GROUP BY 1 " +
+            "      ON CONFLICT (gameID) DO UPDATE SET unitsOrdered = TitleUnits.unitsOrdered + EXCLUDED.unitsOrdered), " +
+            "o AS (INSERT INTO CourierOrders (courierName, orderCount) " +
+            "      SELECT courierName, sum(orders) FROM d WHERE courierName IS NOT NULL GROUP BY 1 " +
+            "      ON CONFLICT (courierName) DO UPDATE SET orderCount = CourierOrders.orderCount + EXCLUDED.orderCount) " +
+            "SELECT count(*) FROM d;");
+         changes += Integer.parseInt(folded.get(0).get(0));
+      }
+      return changes;
+   }
 
-         // produces order timestamp in sql syntax
-         String currentTimeStamp = "current_timestamp"; 
-         // assuming due date is 7 days from now 
-         String dueTimeStamp = "current_timestamp + interval '7 days'";
+   // adds up rows with the same key, which are their first keyColumns values; the other values are summed
+   private static List<List<String>> sumByKey(List<List<String>> rows, int keyColumns) {
+      Map<List<String>, java.math.BigDecimal[]> sums = new LinkedHashMap<>();
+      for (List<String> row : rows) {
+         java.math.BigDecimal[] sum = sums.computeIfAbsent(row.subList(0, keyColumns), key -> {
+            java.math.BigDecimal[] zeros = new java.math.BigDecimal[row.size() - keyColumns];
+            Arrays.fill(zeros, java.math.BigDecimal.ZERO);
+            return zeros;
+         });
+         for (int i = keyColumns; i < row.size(); i++) {
+            sum[i - keyColumns] = sum[i - keyColumns].add(new java.math.BigDecimal(row.get(i)));
+         }
+      }
+      List<List<String>> merged = new ArrayList<>();
+      for (Map.Entry<List<String>, java.math.BigDecimal[]> sum : sums.entrySet()) {
+         List<String> row = new ArrayList<>(sum.getKey());
+         for (java.math.BigDecimal value : sum.getValue()) {
+            row.add(value.toPlainString());
+         }
+         merged.add(row);
+      }
+      return merged;
+   }
 
+   // sorts report rows by their last value, a number, highest first
+   private static List<List<String>> largestFirst(List<List<String>> rows) {
+      rows.sort((a, b) -> new java.math.BigDecimal(b.get(b.size() - 1)).compareTo(new java.math.BigDecimal(a.get(a.size() - 1))));
+      return rows;
+   }
 
-         String newOrder = String.format("INSERT INTO RentalOrder (rentalorderID, login, noOfGames, totalPrice, orderTimeStamp, dueDate)" + 
-                                          "VALUES ('%s', '%s', %d, %.2f, %s, %s); ",
-                                          newId, authorisedUser, totalGames, totalPrice, currentTimeStamp, dueTimeStamp);
-         // ASSUMING: 
-         // 1) "Order Processing" is a good default status,
-         // 2) all order start in Riverside as default, 
-         // 3) and courier isn't known yet (as order hasn't been placed yet). 
-         String newTrackingInfo = String.format("INSERT INTO TrackingInfo (trackingID, rentalorderID, status, currentLocation, courierName, lastUpdateDate, additionalComments) " + 
-                                    "VALUES ('%s', '%s', '%s', '%s', '%s', %s, '%s'); ",
-                                    newTrackingId, newId, "Order Processing", "Riverside, CA", "TBD", currentTimeStamp, "");
-         
-         // turning OFF autocommit to allow all 3 queries to be ran simultaneously, if one fails, 
-         // rolling back entire transation
-         try { 
-            try {
-               // disable auto-commit
-               esql._connection.setAutoCommit(false);
-               
-               // executing all queries
-               esql.executeUpdate(newOrder);
-               esql.executeUpdate(queries);
-               esql.executeUpdate(newTrackingInfo);
-               
-               // commiting transaction as a whole
-               esql._connection.commit();
-               
-               System.out.println("\nRental Order #" + lastNum + " placed, with Tracking ID #" + lastNumTrackingId + " has successfully been placed.");
-               System.out.println("Order total: $" + String.format("%.2f", totalPrice) + " for " + totalGames + " games. \n");
-            } catch (SQLException e) {
+   // per-worker partial aggregates of the parallel report scan, merged once all workers finish
+   static class SalesTotals {
+      // "genre|YYYY-MM" -> {revenue in cents, units}
+      final Map<String, long[]> genreMonth = new HashMap<>();
+      final Map<String, Long> titleUnits = new HashMap<>();
+      final Map<String, Long> courierOrders = new HashMap<>();
 
-               // rollback the transaction if any statement fails in the commit
-               esql._connection.rollback();
-               
-               System.err.println("\nSQL Error: " + e.getMessage());
-               System.err.println("System rollback, no changes made.");
-            } finally {
-               // reset auto-commit mode to true
-               esql._connection.setAutoCommit(true);
-            }
-         } catch (SQLException e) {
-            System.err.println("\nSQL Error Rollbacking/Committing: " + e.getMessage());
+      void addLine(String genre, String month, String gameID, long units, long priceCents) {
+         long[] totals = genreMonth.computeIfAbsent(genre + "|" + month, k -> new long[2]);
+         totals[0] += units * priceCents;
+         totals[1] += units;
+         titleUnits.merge(gameID, units, Long::sum);
+      }
+
+      void merge(SalesTotals other) {
+         for (Map.Entry<String, long[]> e : other.genreMonth.entrySet()) {
+            long[] totals = genreMonth.computeIfAbsent(e.getKey(), k -> new long[2]);
+            totals[0] += e.getValue()[0];
+            totals[1] += e.getValue()[1];
          }
+         other.titleUnits.forEach((k, v) -> titleUnits.merge(k, v, Long::sum));
+         other.courierOrders.forEach((k, v) -> courierOrders.merge(k, v, Long::sum));
       }
    }
 
-   public static void viewAllOrders(GameRental esql, String authorisedUser) {
-      try {
-        // constructing SELECT query to get rental order IDs for the authorised user
-        String query = "SELECT rentalOrderID FROM RentalOrder WHERE login = '" + authorisedUser + "' ORDER BY orderTimeStamp DESC;";
-
-        List<List<String>> orderIDs = esql.executeQueryAndReturnResult(query);
-        
-        // print list of IDs with only numbers
-        if (!orderIDs.isEmpty()) {
-            System.out.println("Your order history:");
-            for (List<String> row : orderIDs) {
-               String orderID = row.get(0);
-               int orderNum = Integer.parseInt(orderID.replaceAll("[^0-9]", ""));
-               System.out.println("- #" + orderNum);
-            }
-        } else {
-            System.out.println("You have no order history.");
-        }
-      } catch (SQLException e) {
-        System.err.println("Error: " + e.getMessage());
+   // recomputes all three reports straight from the order tables, each time slice streamed and reduced on its own core
+   private static void recomputeSalesReports(GameRental esql, int streams) throws SQLException {
+      long start = System.currentTimeMillis();
+      List<String[]> slices = splitOrderTimeRange(esql, "", "", "", streams);
+      // every shard scans each slice of its own orders
+      List<GameRental> databases = esql.databases();
+      ExecutorService pool = Executors.newFixedThreadPool(Math.min(slices.size() * databases.size(), 8));
+      List<Future<SalesTotals>> partials = new ArrayList<>();
+      for (GameRental database : databases) {
+         for (String[] slice : slices) {
+            partials.add(pool.submit(() -> {
+               SalesTotals totals = new SalesTotals();
+               String where = orderFilter(slice[0], slice[1], "");
+               Connection conn = database.openConnection();
+               try {
+                  streamQuery(conn,
+                     "SELECT c.genre, to_char(r.orderTimestamp, 'YYYY-MM'), g.gameID, g.unitsOrdered, g.unitPrice " +
+                     "FROM AllRentalOrders r JOIN AllGamesInOrder g ON g.orderNo = r.orderNo AND g.orderTimestamp = r.orderTimestamp " +
+                     "JOIN Catalog c ON c.gameID = g.gameID" + where,
+                     rs -> totals.addLine(rs.getString(1), rs.getString(2), rs.getString(3),
+                                          rs.getLong(4), Math.round(rs.getDouble(5) * 100)));
+                  streamQuery(conn,
+                     "SELECT t.courierName FROM AllRentalOrders r JOIN AllTrackingInfo t ON t.orderNo = r.orderNo" + where,
+                     rs -> totals.courierOrders.merge(rs.getString(1), 1L, Long::sum));
+               } finally {
+                  conn.close();
+               }
+               return totals;
+            }));
+         }
       }
-      System.out.print("\n");
-   }
-   
-   public static void viewRecentOrders(GameRental esql, String authorisedUser) {
+      pool.shutdown();
+
+      SalesTotals totals = new SalesTotals();
       try {
-         // constructing SELECT query to get 5 most recent rental order IDs for the authorised user
-         String query = "SELECT rentalOrderID FROM RentalOrder WHERE login = '" + authorisedUser + "' " +
-                        "ORDER BY orderTimeStamp DESC LIMIT 5;";
-         
-         List<List<String>> orderIDs = esql.executeQueryAndReturnResult(query);
-         
-         // print list of IDs with only numbers
-         if (!orderIDs.isEmpty()) {
-            System.out.println("Your 5 most recent orders:");
-            for (List<String> row : orderIDs) {
-                  String orderID = row.get(0);
-                  int orderNum = Integer.parseInt(orderID.replaceAll("[^0-9]", ""));
-                  System.out.println("- #" + orderNum);
-            }
-         } else {
-            System.out.println("You have no order history.");
+         for (Future<SalesTotals> partial : partials) {
+            totals.merge(partial.get());
          }
-      } catch (SQLException e) {
-         System.err.println("Error: " + e.getMessage());
+      } catch (Exception e) {
+         pool.shutdownNow();
+         System.err.println("Recompute failed: " + e.getMessage());
+         return;
       }
-      System.out.print("\n");
-   }
 
-   public static void viewOrderInfo(GameRental esql, String authorisedUser) {
-      try {
-         System.out.print("Enter the ID # of the order you'd like to view: ");
-         String orderID = in.readLine();
-         // constructing SELECT query to retrieve details of the specific rental order
-         String query = "SELECT orderTimeStamp, dueDate, totalPrice " +
-                        "FROM RentalOrder " +
-                        "WHERE login = '" + authorisedUser + "' AND rentalOrderID = 'gamerentalorder" + orderID + "';";
-        
-         List<List<String>> orderDetails = esql.executeQueryAndReturnResult(query);
-         
-         // print the order details if found
-         if (!orderDetails.isEmpty()) {
-               List<String> details = orderDetails.get(0);
+      List<List<String>> rows = new ArrayList<>();
+      for (Map.Entry<String, long[]> e : totals.genreMonth.entrySet()) {
+         String[] key = e.getKey().split("\\|", 2);
+         rows.add(Arrays.asList(key[0], key[1], String.format("%.2f", e.getValue()[0] / 100.0), Long.toString(e.getValue()[1])));
+      }
+      rows.sort((a, b) -> a.get(1).equals(b.get(1)) ? a.get(0).compareTo(b.get(0)) : b.get(1).compareTo(a.get(1)));
+      printReport(Arrays.asList("Genre", "Month", "Revenue", "Units"), rows);
 
-               String trackingIDQuery = "SELECT trackingID FROM TrackingInfo WHERE rentalorderID = 'gamerentalorder" + orderID + "';";
-               List<List<String>> TrackingInfoID = esql.executeQueryAndReturnResult(trackingIDQuery);
+      printReport(Arrays.asList("Game ID", "Units"), sortedCounts(totals.titleUnits, 10));
+      printReport(Arrays.asList("Courier", "Orders"), sortedCounts(totals.courierOrders, Integer.MAX_VALUE));
+      System.out.println("Scanned " + slices.size() + " slice(s) in " + (System.currentTimeMillis() - start) + " ms.\n");
+   }
 
-               System.out.println("Order details:");
-               System.out.println("- Order Timestamp: " + details.get(0));
-               System.out.println("- Due Date: " + details.get(1));
-               System.out.println("- Total Price: $" + details.get(2));
-               System.out.println("- Tracking ID: " + (TrackingInfoID.get(0).get(0).replaceAll("[^0-9]", "")));
-               
-               // retrieve and print the list of games associated with the order
-               printGamesInOrder(esql, "gamerentalorder" + orderID);
-         } else {
-               System.out.println("Order not found or does not belong to you.");
+   // the top entries of a count map as report rows, highest count first
+   private static List<List<String>> sortedCounts(Map<String, Long> counts, int limit) {
+      List<Map.Entry<String, Long>> entries = new ArrayList<>(counts.entrySet());
+      entries.sort(Collections.reverseOrder(Map.Entry.comparingByValue()));
+      List<List<String>> rows = new ArrayList<>();
+      for (Map.Entry<String, Long> e : entries.subList(0, Math.min(limit, entries.size()))) {
+         rows.add(Arrays.asList(e.getKey(), Long.toString(e.getValue())));
+      }
+      return rows;
+   }
+
+   private static void printReport(List<String> header, List<List<String>> rows) {
+      // column widths fit the longest value, header included
+      int[] widths = new int[header.size()];
+      for (int i = 0; i < widths.length; i++) {
+         widths[i] = header.get(i).length();
+         for (List<String> row : rows) {
+            widths[i] = Math.max(widths[i], String.valueOf(row.get(i)).length());
          }
-      } catch (SQLException e) {
-         System.err.println("Error: " + e.getMessage());
       }
-      catch (IOException e) {
-         System.err.println("Error: " + e.getMessage());
+      StringBuilder format = new StringBuilder();
+      for (int width : widths) {
+         format.append("%-").append(width).append("s | ");
+      }
+      format.setLength(format.length() - 3);
+      format.append("\n");
+
+      System.out.println();
+      System.out.printf(format.toString(), header.toArray());
+      for (List<String> row : rows) {
+         System.out.printf(format.toString(), row.toArray());
       }
+      System.out.println();
    }
 
-   private static void printGamesInOrder(GameRental esql, String orderID) {
+   public static void archiveOldOrders(GameRental esql, String authorisedUser) {
       try {
-         // constructing SELECT query to retrieve the list of games associated with the given order
-         String query = "SELECT gameID, unitsOrdered " +
-                        "FROM GamesInOrder " +
-                        "WHERE rentalOrderID = '" + orderID + "';";
+         if (!roleOf(esql, authorisedUser).contains("manager")) {
+            System.out.println("You are not authorized to archive orders.");
+            return;
+         }
 
-         List<List<String>> gamesInOrder = esql.executeQueryAndReturnResult(query);
-         
-         if (!gamesInOrder.isEmpty()) {
-               System.out.println("Games in this order:");
-               for (List<String> game : gamesInOrder) {
-                  System.out.println("- Game ID: " + game.get(0) + ", Units Ordered: " + game.get(1));
+         System.out.print("Archive all orders placed before January 1st of year: ");
+         int cutoffYear = Integer.parseInt(in.readLine().trim());
+
+         // yearly partitions still attached to RentalOrder, oldest first
+         String query = "SELECT c.relname FROM pg_inherits i JOIN pg_class c ON c.oid = i.inhrelid " +
+                        "WHERE i.inhparent = 'rentalorder'::regclass AND c.relname ~ '^rentalorder_y[0-9]{4}$' ORDER BY c.relname;";
+
+         // every shard has partitions of its own, each archived on its own
+         List<GameRental> databases = esql.databases();
+         int archived = 0;
+         for (int d = 0; d < databases.size(); d++) {
+            String shard = databases.size() > 1 ? " on shard " + d : "";
+            for (List<String> partition : databases.get(d).executeQueryAndReturnResult(query)) {
+               int year = Integer.parseInt(partition.get(0).substring("rentalorder_y".length()));
+               if (year >= cutoffYear) {
+                  break;
                }
-         } else {
-               System.out.println("No games found for this order.");
+               archiveOrderYear(databases.get(d), year);
+               System.out.println("Archived orders of " + year + shard + ".");
+               archived++;
+            }
          }
+         System.out.println(archived == 0 ? "Nothing to archive.\n" : "Archived " + archived + " year(s) of orders.\n");
+      } catch (IOException e) {
+         System.err.println("Error reading input: " + e.getMessage());
       } catch (SQLException e) {
-         System.err.println("Error: " + e.getMessage());
+         System.err.println("Error executing query: " + e.getMessage());
+      } catch (NumberFormatException e) {
+         System.err.println("Invalid input: " + e.getMessage());
       }
    }
 
-   public static void viewTrackingInfo(GameRental esql, String authorisedUser) {
-      try {
-         System.out.print("Enter the tracking ID # of the order you'd like to view: ");
-         String trackingId = in.readLine();
-         // construct the SQL query to retrieve details of the specific tracking info 
-         String query = "SELECT t.trackingid, t.rentalorderid, t.status, t.currentLocation, t.couriername, t.lastupdatedate, t.additionalcomments " +
-                        "FROM trackinginfo t JOIN rentalorder r ON t.rentalorderid = r.rentalorderid " +
-                        "WHERE t.trackingid = 'trackingid" + trackingId + "' AND r.login = '" + authorisedUser + "';";
-
-         List<List<String>> trackingDetails = esql.executeQueryAndReturnResult(query);
-         
-         // print the order details if found
-         if (!trackingDetails.isEmpty()) {
-               List<String> details = trackingDetails.get(0);
+   // each table with its yearly partitions and the foreign key they hold on the previous one, children first
+   private static final String[][] ORDER_YEAR_TABLES = {
+      { "TrackingEvent", "trackingevent_y", "trackingevent_tracking_fkey" },
+      { "TrackingInfo", "trackinginfo_y", "trackinginfo_order_fkey" },
+      { "GamesInOrder", "gamesinorder_y", "gamesinorder_order_fkey" },
+      { "RentalOrder", "rentalorder_y", null }
+   };
 
-               System.out.println("Tracking Info details:");
-               System.out.println("- Tracking ID: #" + details.get(0).replaceAll("[^0-9]", ""));
-               System.out.println("- Rental Order ID: #" + details.get(1).replaceAll("[^0-9]", ""));
-               System.out.println("- Status: " + details.get(2));
-               System.out.println("- Current Location: " + details.get(3));
-               System.out.println("- Courier: " + details.get(4));
-               System.out.println("- Last Updated Date: " + details.get(5));
-               System.out.println("- Additional Comments: " + details.get(6));
-               
-         } else {
-               System.out.println("Tracking info not found or does not belong to you.");
+   // moves one year of orders, their games, shipments and tracking events into the archive tables; only
+   // catalog entries change, the partitions themselves are reattached without copying any rows
+   private static void archiveOrderYear(GameRental esql, int year) throws SQLException {
+      String bounds = String.format("FOR VALUES FROM ('%d-01-01') TO ('%d-01-01')", year, year + 1);
+      try {
+         esql._connection.setAutoCommit(false);
+         // a partition can only leave while nothing still attached references it, so the children go first
+         // and drop the foreign key they keep from their old parent
+         for (String[] table : ORDER_YEAR_TABLES) {
+            esql.executeUpdate("ALTER TABLE " + table[0] + " DETACH PARTITION " + table[1] + year + ";");
+            if (table[2] != null) {
+               esql.executeUpdate("ALTER TABLE " + table[1] + year + " DROP CONSTRAINT IF EXISTS " + table[2] + ";");
+            }
          }
+         // and come back after their parent, picking up the archive's foreign keys
+         for (int i = ORDER_YEAR_TABLES.length - 1; i >= 0; i--) {
+            esql.executeUpdate("ALTER TABLE " + ORDER_YEAR_TABLES[i][0] + "Archive ATTACH PARTITION " + ORDER_YEAR_TABLES[i][1] + year + " " + bounds + ";");
+         }
+         esql._connection.commit();
       } catch (SQLException e) {
-         System.err.println("Error: " + e.getMessage());
-      }
-      catch (IOException e) {
-         System.err.println("Error: " + e.getMessage());
+         esql._connection.rollback();
+         throw e;
+      } finally {
+         esql._connection.setAutoCommit(true);
       }
    }
-   public static void updateTrackingInfo(GameRental esql, String authorisedUser) {
-      List<List<String>> result = new ArrayList<>();
-      String query;
-      String trackingId = "";
 
+   // appends a tracking event carrying the shipment's latest state with one field changed, in a transaction of its own.
+   // The shipment row is locked first, so one shipment's events are numbered in the order they are written, each
+   // starts from the state the one before left and stock is released at most once. Returns that state in
+   // CurrentTracking's column order, or null
+   private static List<String> appendTrackingEvent(GameRental esql, long trackingNo, String column, String value, String actor)
+         throws SQLException {
+      List<String> columns = Arrays.asList("trackingNo", "orderNo", "status", "currentLocation", "courierName",
+                                           "lastUpdateDate", "additionalComments", "orderTimestamp");
       try {
-         query = String.format("SELECT * FROM Users WHERE login = '%s';", authorisedUser); 
-         result = esql.executeQueryAndReturnResult(query);
-         String role = result.get(0).get(2);
-
-         if (role.contains("manager") || role.contains("employee")) {
-               System.out.println("\nEnter trackingID to update: ");
-
-               try {
-                  trackingId = in.readLine();
-               } catch (Exception e) {
-                  System.out.println("Error reading input: " + e.getMessage());
-                  return; // exit function if theres an input error
-               }
-
-               query = "SELECT * FROM trackinginfo WHERE trackingid = 'trackingid" + trackingId + "';";
-               List<List<String>> trackingInfo = new ArrayList<>();
-               trackingInfo = esql.executeQueryAndReturnResult(query);
+         esql._connection.setAutoCommit(false);
+         List<List<String>> shipment = esql.executeQueryAndReturnResult(
+            "SELECT stockReleased FROM TrackingInfo WHERE trackingNo = " + trackingNo + " FOR UPDATE;");
+         if (shipment.isEmpty()) {
+            esql._connection.rollback();
+            return null;
+         }
+         List<String> before = esql.executeQueryAndReturnResult(
+            "SELECT " + String.join(", ", columns) + " FROM CurrentTracking WHERE trackingNo = " + trackingNo + ";").get(0);
+         Map<String, String> after = rowMap(columns, before);
+         after.put(column, value);
+         String values = "";
+         for (String field : Arrays.asList("status", "currentLocation", "courierName", "additionalComments")) {
+            values += "'" + after.get(field).replace("'", "''") + "', ";
+         }
+         esql.executeUpdate("INSERT INTO TrackingEvent (trackingNo, orderNo, status, currentLocation, courierName, additionalComments, " +
+                            "changedBy, orderTimestamp) VALUES (" + trackingNo + ", " + before.get(1) + ", " + values +
+                            "'" + actor + "', '" + before.get(7) + "');");
+         if (column.equals("status") && !value.equals(before.get(2))) {
+            // the customer hears of the new status only if it commits
+            String payload = String.format("Shipment #%d of order #%s is now %s, at %s.", trackingNo, before.get(1), value, after.get("currentLocation"));
+            esql.executeUpdate("INSERT INTO Outbox (login, topic, payload) SELECT login, 'tracking_status', '" + payload.replace("'", "''") + "' " +
+                               "FROM RentalOrder WHERE orderNo = " + before.get(1) + ";");
+            // the first time a shipment comes back its units return to stock, together with the status change;
+            // the flag is read under the lock, so neither a concurrent nor a later Returned releases them again
+            if (value.startsWith("Returned") && !shipment.get(0).get(0).startsWith("t")) {
+               releaseStock(esql, Long.parseLong(before.get(1)));
+               esql.executeUpdate("UPDATE TrackingInfo SET stockReleased = true WHERE trackingNo = " + trackingNo + ";");
+            }
+         }
+         esql._connection.commit();
+         return before;
+      } catch (SQLException e) {
+         esql._connection.rollback();
+         throw e;
+      } finally {
+         esql._connection.setAutoCommit(true);
+      }
+   }
 
-               if (!trackingInfo.isEmpty()) {
+   // takes units of one title out of stock inside the caller's transaction; returns false when there are not enough
+   private static boolean reserveStock(GameRental esql, String gameID, int units) throws SQLException {
+      // fast path: one bucket that covers the whole line, starting at a random bucket and skipping
+      // any bucket another order holds, so launch-day orders for the same title don't queue up
+      int start = ThreadLocalRandom.current().nextInt(STOCK_BUCKETS);
+      String query = String.format(
+         "UPDATE CatalogStock SET available = available - %d WHERE (gameID, bucket) = " +
+         "(SELECT gameID, bucket FROM CatalogStock WHERE gameID = '%s' AND available >= %d " +
+         "ORDER BY (bucket + %d) %% %d LIMIT 1 FOR UPDATE SKIP LOCKED);",
+         units, gameID, units, STOCK_BUCKETS - start, STOCK_BUCKETS);
+      if (esql.executeUpdate(query) == 1) {
+         return true;
+      }
 
-                  System.out.println("\n1. Update Status");
-                  System.out.println("2. Update Location");
-                  System.out.println("3. Update Courier");
-                  System.out.println("4. Update Additional Comments");
-                  System.out.print("Enter your choice: ");
-                  int choice = Integer.parseInt(in.readLine());
-                  
-                  switch (choice) {
-                     case 1:
-                        System.out.print("Enter the updated status: ");
-                        String update = in.readLine();
-                        // updates the tracking status in the database
-                        String updateQuery = String.format("UPDATE trackinginfo SET status = '%s' WHERE trackingid = 'trackingid" + trackingId + "';", update);
-                        esql.executeUpdate(updateQuery);
-                        break;
+      // slow path: no single free bucket is big enough, so lock all of them in bucket order and drain across them
+      query = String.format("SELECT bucket, available FROM CatalogStock WHERE gameID = '%s' ORDER BY bucket FOR UPDATE;", gameID);
+      List<List<String>> buckets = esql.executeQueryAndReturnResult(query);
+      String takes = "";
+      int remaining = units;
+      for (List<String> bucket : buckets) {
+         int take = Math.min(remaining, Integer.parseInt(bucket.get(1)));
+         if (take > 0) {
+            takes += " WHEN " + bucket.get(0) + " THEN " + take;
+            remaining -= take;
+         }
+      }
+      if (remaining > 0) {
+         return false;
+      }
+      query = String.format("UPDATE CatalogStock SET available = available - CASE bucket%s ELSE 0 END WHERE gameID = '%s';", takes, gameID);
+      esql.executeUpdate(query);
+      return true;
+   }
 
-                     case 2:
-                           System.out.print("Enter the updated location: ");
-                           update = in.readLine();
-                           // updates the tracking location in the database
-                           updateQuery = String.format("UPDATE trackinginfo SET currentlocation = '%s' WHERE trackingid = 'trackingid" + trackingId + "';", update);
-                           esql.executeUpdate(updateQuery);
-                        break;
-                  
-                     case 3:
-                           System.out.print("Enter the updated courier: ");
-                           update = in.readLine();
-                           // updates the tracking courier in the database
-                           updateQuery = String.format("UPDATE trackinginfo SET couriername = '%s' WHERE trackingid = 'trackingid" + trackingId + "';", update);
-                           esql.executeUpdate(updateQuery);
-                        break;
+   // puts every unit of an order back into stock inside the caller's transaction
+   private static void releaseStock(GameRental esql, long orderNo) throws SQLException {
+      int bucket = ThreadLocalRandom.current().nextInt(STOCK_BUCKETS);
+      String query = String.format(
+         "UPDATE CatalogStock s SET available = s.available + g.unitsOrdered FROM GamesInOrder g " +
+         "WHERE g.orderNo = %d AND s.gameID = g.gameID AND s.bucket = %d;", orderNo, bucket);
+      esql.executeUpdate(query);
+   }
 
-                     case 4:
-                           System.out.print("Enter the updated additional comments: ");
-                           update = in.readLine();
-                           // updates the tracking comments in the database
-                           updateQuery = String.format("UPDATE trackinginfo SET additionalcomments = '%s' WHERE trackingid = 'trackingid" + trackingId + "';", update);
-                           esql.executeUpdate(updateQuery);
-                        break;
+   public static void cancelOrder(GameRental esql, String authorisedUser) {
+      try {
+         System.out.print("Enter the ID # of the order you'd like to cancel: ");
+         long orderNo = keyOf(in.readLine());
+         try {
+            Map<String, Integer> lines = new HashMap<>();
+            List<String> status;
+            esql._countsLock.readLock().lock();
+            try {
+               status = esql._orders.cancel(authorisedUser, orderNo, lines);
+               if (status != null && status.get(0).equals("Order Processing")) {
+                  esql.countShipment(status.get(0), status.get(1), status.get(2), -1);
+                  esql.countRentals(lines, LocalDate.parse(status.get(3)), -1);
                }
-               String updateQuery = String.format("UPDATE trackinginfo SET lastupdatedate = CURRENT_TIMESTAMP WHERE trackingid = 'trackingid" + trackingId + "';");
-               esql.executeUpdate(updateQuery);
+            } finally {
+               esql._countsLock.readLock().unlock();
+            }
+            if (status == null) {
+               System.out.println("Order not found or does not belong to you.\n");
+            } else if (!status.get(0).equals("Order Processing")) {
+               System.out.println("Order has already shipped (" + status.get(0) + ") and can no longer be cancelled.\n");
             } else {
-               System.out.println("Tracking info not found.");
+               System.out.println("Order cancelled.\n");
             }
-         } else { //user isn't faculty 
-               System.out.println("You are not authorized to update tracking information.");
+         } catch (SQLException e) {
+            System.err.println("\nSQL Error: " + e.getMessage());
+            System.err.println("System rollback, no changes made.");
          }
       } catch (IOException e) {
-            System.err.println("Error reading input: " + e.getMessage());
-      } catch (SQLException e) {
-         System.err.println("Error executing query: " + e.getMessage());
+         System.err.println("Error reading input: " + e.getMessage());
       }
    }
 
-   public static void updateCatalog(GameRental esql, String authorisedUser) {
-      List<List<String>> result = new ArrayList<>();
-      String query;
-      String gameId = "";
+   // lifetime per-user totals computed straight from the orders, in the same shape as UserStats
+   private static final String USER_STATS_FROM_ORDERS =
+      "SELECT login, count(*) AS totalOrders, sum(totalPrice) AS totalSpend, sum(noOfGames) AS gamesRented, " +
+      "max(orderTimestamp) AS lastOrder FROM AllRentalOrders GROUP BY login";
 
+   // compares the trigger-maintained UserStats against a full recount and offers to rebuild it
+   private static void verifyUserStats(GameRental esql) throws IOException, SQLException {
+      // a user whose orders were all cancelled keeps a zeroed row, which matches having no orders at all
+      String query = "SELECT coalesce(s.login, a.login), s.totalOrders, a.totalOrders, s.totalSpend, a.totalSpend, " +
+                     "s.gamesRented, a.gamesRented, s.lastOrder, a.lastOrder " +
+                     "FROM (SELECT * FROM UserStats WHERE totalOrders > 0) s FULL JOIN (" + USER_STATS_FROM_ORDERS + ") a " +
+                     "ON a.login = s.login " +
+                     "WHERE (s.totalOrders, s.totalSpend, s.gamesRented, s.lastOrder) " +
+                     "IS DISTINCT FROM (a.totalOrders, a.totalSpend, a.gamesRented, a.lastOrder) ORDER BY 1;";
+      List<List<String>> mismatches = esql.executeQueryAndReturnResult(query);
+      if (mismatches.isEmpty()) {
+         System.out.println("User statistics match the orders.\n");
+         return;
+      }
+      printReport(Arrays.asList("Login", "Orders", "Expected", "Spent", "Expected", "Games", "Expected", "Last Order", "Expected"),
+                  mismatches);
+      System.out.print(mismatches.size() + " user(s) out of date. Rebuild the statistics? (y/n): ");
+      if (!in.readLine().trim().equalsIgnoreCase("y")) {
+         return;
+      }
       try {
-         query = String.format("SELECT * FROM Users WHERE login = '%s';", authorisedUser); 
-         result = esql.executeQueryAndReturnResult(query);
-         String role = result.get(0).get(2); // Assuming role is the third column in your users table
+         esql._connection.setAutoCommit(false);
+         // holds off concurrent orders' trigger updates until the recount is in place
+         esql.executeUpdate("LOCK TABLE UserStats IN EXCLUSIVE MODE;");
+         esql.executeUpdate("DELETE FROM UserStats;");
+         int rebuilt = esql.executeUpdate("INSERT INTO UserStats (login, totalOrders, totalSpend, gamesRented, lastOrder) " +
+                                          USER_STATS_FROM_ORDERS + ";");
+         esql._connection.commit();
+         System.out.println("Statistics rebuilt for " + rebuilt + " user(s).\n");
+      } catch (SQLException e) {
+         esql._connection.rollback();
+         throw e;
+      } finally {
+         esql._connection.setAutoCommit(true);
+      }
+   }
 
-         if (role.contains("manager")) {
-            System.out.println("\nEnter gameID to update: ");
+   public static void shipmentDashboard(GameRental esql, String authorisedUser) {
+      try {
+         String role = roleOf(esql, authorisedUser);
+         if (!role.contains("manager") && !role.contains("employee")) {
+            System.out.println("You are not authorized to view the shipment dashboard.");
+            return;
+         }
+         ShipmentDashboard dashboard = esql.shipmentDashboard();
 
-            try {
-               gameId = in.readLine();
-            } catch (Exception e) {
-               System.out.println("Error reading input: " + e.getMessage());
-               return; // Exit if there's an input error
-            }
+         System.out.println("\n1. Shipments by Status");
+         System.out.println("2. Shipments by Courier");
+         System.out.println("3. Shipments by Location");
+         System.out.println("4. Shipments by Status and Location");
+         System.out.println("5. Reconcile with the Database Now");
+         System.out.print("Enter your choice: ");
+         int choice = Integer.parseInt(in.readLine().trim());
 
-            query = "SELECT * FROM catalog WHERE gameid = 'game" + gameId + "';";
-            List<List<String>> gameInfo = new ArrayList<>();
-            gameInfo = esql.executeQueryAndReturnResult(query);
+         // every view is computed from the in-memory counts, never from TrackingInfo
+         switch (choice) {
+            case 1:
+               printReport(Arrays.asList("Status", "Shipments"), dashboard.totals(0));
+               break;
+            case 2:
+               printReport(Arrays.asList("Courier", "Shipments"), dashboard.totals(1));
+               break;
+            case 3:
+               printReport(Arrays.asList("Location", "Shipments"), dashboard.totals(2));
+               break;
+            case 4:
+               printReport(Arrays.asList("Status", "Location", "Shipments"), dashboard.totals(0, 2));
+               break;
+            case 5:
+               System.out.println("Counts were off by " + dashboard.reconcile() + " shipment(s), now corrected.\n");
+               return;
+            default:
+               System.out.println("Invalid choice.\n");
+               return;
+         }
+         System.out.println("Last reconciled: " + dashboard.reconciledAt + " (off by " + dashboard.lastDrift + ")\n");
+      } catch (IOException e) {
+         System.err.println("Error reading input: " + e.getMessage());
+      } catch (SQLException e) {
+         System.err.println("Error executing query: " + e.getMessage());
+      } catch (NumberFormatException e) {
+         System.err.println("Invalid input: " + e.getMessage());
+      }
+   }
 
-            if (!gameInfo.isEmpty()) {
+   public static void bulkUpdateCatalog(GameRental esql, String authorisedUser) {
+      try {
+         if (!roleOf(esql, authorisedUser).contains("manager")) {
+            System.out.println("You are not authorized to update the game catalog.");
+            return;
+         }
 
-               System.out.println("\n1. Update Game Name");
-               System.out.println("2. Update Genre");
-               System.out.println("3. Update Price");
-               System.out.println("4. Update Description");
-               System.out.println("5. Update Image URL");
-               System.out.print("Enter your choice: ");
-		         int choice = Integer.parseInt(in.readLine());
-                
-		         switch (choice) {
-                  case 1:
-               		System.out.print("Enter the updated game name: ");
-               		String update = in.readLine();
-                  	// Update the game name in the database
-                  	String updateQuery = String.format("UPDATE catalog SET gamename = '%s' WHERE gameid = 'game" + gameId + "';", update);
-                  	esql.executeUpdate(updateQuery);
-                     System.out.println("Game name successfully updated.\n");
-			            break;
+         System.out.println("\n1. Change Prices by Percentage");
+         System.out.println("2. Change Prices by Amount");
+         System.out.println("3. Rename a Genre");
+         System.out.println("4. Apply a CSV File of Edits (gameID,field,value)");
+         System.out.print("Enter your choice: ");
+         int choice = Integer.parseInt(in.readLine().trim());
 
-		            case 2:
-                        System.out.print("Enter the updated game genre: ");
-                        update = in.readLine();
-                        // Update the game genre in the database
-                        updateQuery = String.format("UPDATE catalog SET genre = '%s' WHERE gameid = 'game" + gameId + "';", update);
-                        esql.executeUpdate(updateQuery);
-                        System.out.println("Game genre successfully updated.\n");
-                        break;
-		  
-		            case 3:
-                        System.out.print("Enter the updated game price: ");
-                        update = in.readLine();
-                        // Update the game price in the database
-                        updateQuery = String.format("UPDATE catalog SET price = '%s' WHERE gameid = 'game" + gameId + "';", update);
-                        esql.executeUpdate(updateQuery);
-                        System.out.println("Game price successfully updated.\n");
-                        break;
-		            case 4:
-                        System.out.print("Enter the updated game description: ");
-                        update = in.readLine();
-                        // Update the game description in the database
-                        updateQuery = String.format("UPDATE catalog SET description = '%s' WHERE gameid = 'game" + gameId + "';", update);
-                        esql.executeUpdate(updateQuery);
-                        System.out.println("Game description successfully updated.\n");
-                        break;
-		            case 5:
-                        System.out.print("Enter the game's updated image URL: ");
-                        update = in.readLine();
-                        // Update the image URL in the database
-                        updateQuery = String.format("UPDATE catalog SET imageURL = '%s' WHERE gameid = 'game" + gameId + "';", update);
-                        esql.executeUpdate(updateQuery);
-                        System.out.println("Game image URL successfully updated.\n");
-                        break;
+         // every option is one set-based statement (or one staged merge) in one transaction
+         long start = System.currentTimeMillis();
+         int updated;
+         switch (choice) {
+            case 1:
+            case 2:
+               String scope = readCatalogScope();
+               if (scope == null) {
+                  return;
                }
-            } else {
-                System.out.println("Game info not found.");
-            }
-         } else {
-            System.out.println("You are not authorized to update the game catalog.");
+               String newPrice;
+               if (choice == 1) {
+                  System.out.print("Enter the percentage change (e.g. -15 for 15% off): ");
+                  newPrice = "round(price * (1 + " + Double.parseDouble(in.readLine().trim()) + " / 100), 2)";
+               } else {
+                  System.out.print("Enter the amount to add (negative to lower prices): ");
+                  newPrice = "price + " + Double.parseDouble(in.readLine().trim());
+               }
+               // the old prices are locked and read in the same statement, so every game gets its own audit entry
+               List<List<String>> changed = esql.executeQueryAndReturnResult(
+                  "WITH old AS (SELECT gameID AS oldID, price AS oldPrice FROM Catalog" + scope + " FOR UPDATE), " +
+                  "u AS (UPDATE Catalog SET price = GREATEST(" + newPrice + ", 0), version = version + 1 FROM old " +
+                  "WHERE gameID = oldID RETURNING gameID, oldPrice, price) SELECT * FROM u;");
+               for (List<String> game : changed) {
+                  esql.audit(authorisedUser, "catalog", game.get(0), "price", game.get(1), game.get(2));
+               }
+               updated = changed.size();
+               break;
+            case 3:
+               System.out.print("Enter the genre to rename: ");
+               String oldGenre = in.readLine().trim().replace("'", "''");
+               System.out.print("Enter the new genre name: ");
+               String newGenre = in.readLine().trim().replace("'", "''");
+               List<String> renamed = renameGenre(esql, oldGenre, newGenre);
+               for (String gameID : renamed) {
+                  esql.audit(authorisedUser, "catalog", gameID, "genre", oldGenre.replace("''", "'"), newGenre.replace("''", "'"));
+               }
+               updated = renamed.size();
+               break;
+            case 4:
+               System.out.print("Enter the CSV file path: ");
+               String path = in.readLine().trim();
+               updated = applyCatalogEdits(esql, authorisedUser, path);
+               break;
+            default:
+               System.out.println("Invalid choice.\n");
+               return;
          }
+         System.out.println(updated + " game(s) updated in " + (System.currentTimeMillis() - start) + " ms.\n");
       } catch (IOException e) {
          System.err.println("Error reading input: " + e.getMessage());
       } catch (SQLException e) {
-        System.err.println("Error executing query: " + e.getMessage());
+         System.err.println("Error executing query: " + e.getMessage());
+      } catch (NumberFormatException e) {
+         System.err.println("Invalid input: " + e.getMessage());
       }
    }
 
-   public static void updateUser(GameRental esql,String authorisedUser) {
-      List<List<String>> result = new ArrayList<>();
-      String query;
-      String userLogin = "";
+   // asks which games a price change applies to and returns the matching WHERE clause, or null on a bad choice
+   private static String readCatalogScope() throws IOException {
+      System.out.println("\n1. Whole Catalog");
+      System.out.println("2. One Genre");
+      System.out.println("3. One Platform");
+      System.out.print("Enter your choice: ");
+      switch (in.readLine().trim()) {
+         case "1":
+            return "";
+         case "2":
+            System.out.print("Enter genre: ");
+            return " WHERE genre = '" + in.readLine().trim().replace("'", "''") + "'";
+         case "3":
+            // the platform is the first entry of the description, e.g. "Platform: Wii;  Publisher: Nintendo"
+            System.out.print("Enter platform (e.g. Wii, DS, N64): ");
+            return " WHERE description LIKE 'Platform: " + in.readLine().trim().replace("'", "''") + ";%'";
+         default:
+            System.out.println("Invalid choice.\n");
+            return null;
+      }
+   }
 
+   // renames a genre in the catalog and in the revenue summary and its pending changes, merging into the new genre if it
+   // already exists; returns the renamed games
+   private static List<String> renameGenre(GameRental esql, String oldGenre, String newGenre) throws SQLException {
       try {
-         query = String.format("SELECT * FROM Users WHERE login = '%s';", authorisedUser); 
-         result = esql.executeQueryAndReturnResult(query);
-         String role = result.get(0).get(2);
+         esql._connection.setAutoCommit(false);
+         List<String> updated = new ArrayList<>();
+         for (List<String> row : esql.executeQueryAndReturnResult(String.format(
+                 "WITH u AS (UPDATE Catalog SET genre = '%s', version = version + 1 WHERE genre = '%s' RETURNING gameID) SELECT gameID FROM u;",
+                 newGenre, oldGenre))) {
+            updated.add(row.get(0));
+         }
+         esql.executeUpdate(String.format(
+            "INSERT INTO GenreMonthRevenue (genre, month, revenue, unitsOrdered) " +
+            "SELECT '%s', month, revenue, unitsOrdered FROM GenreMonthRevenue WHERE genre = '%s' " +
+            "ON CONFLICT (genre, month) DO UPDATE SET revenue = GenreMonthRevenue.revenue + EXCLUDED.revenue, " +
+            "unitsOrdered = GenreMonthRevenue.unitsOrdered + EXCLUDED.unitsOrdered;", newGenre, oldGenre));
+         esql.executeUpdate(String.format("DELETE FROM GenreMonthRevenue WHERE genre = '%s';", oldGenre));
+         // changes not folded in yet would bring the old genre back
+         esql.executeUpdate(String.format("UPDATE SalesDelta SET genre = '%s' WHERE genre = '%s';", newGenre, oldGenre));
+         esql._connection.commit();
+         return updated;
+      } catch (SQLException e) {
+         esql._connection.rollback();
+         throw e;
+      } finally {
+         esql._connection.setAutoCommit(true);
+      }
+   }
 
-         if (role.contains("manager")) {
-            System.out.println("\nEnter user login to update: ");
+   // loads a CSV of (gameID, field, value) edits into a staging table and merges it into Catalog with one UPDATE,
+   // auditing each edited field of each game with the value it replaced
+   private static int applyCatalogEdits(GameRental esql, String actor, String path) throws SQLException, IOException {
+      List<String> fields = Arrays.asList("gamename", "genre", "price", "description", "imageurl");
 
-            try {
-               userLogin = in.readLine();
-            } catch (Exception e) {
-               System.out.println("Error reading input: " + e.getMessage());
-               return; // exit if there's an input error
+      // the last edit of a field wins, so duplicates are folded before anything is sent
+      Map<String, String[]> edits = new LinkedHashMap<>();
+      BufferedReader file = new BufferedReader(new FileReader(path));
+      String line;
+      int lineNum = 0;
+      while ((line = file.readLine()) != null) {
+         lineNum++;
+         List<String> values = parseCsvLine(line);
+         if (values.size() != 3 || !fields.contains(values.get(1).trim().toLowerCase())) {
+            if (!line.trim().isEmpty() && lineNum > 1) {
+               System.out.println("Skipping line " + lineNum + ": " + line);
             }
+            continue;
+         }
+         String field = values.get(1).trim().toLowerCase();
+         edits.put(values.get(0).trim() + "|" + field, new String[] { values.get(0).trim(), field, values.get(2) });
+      }
+      file.close();
+      if (edits.isEmpty()) {
+         return 0;
+      }
 
-            query = "SELECT * FROM users WHERE login = '" + userLogin + "';";
-            List<List<String>> userInfo = new ArrayList<>();
-            userInfo = esql.executeQueryAndReturnResult(query);
-
-            if (!userInfo.isEmpty()) {
-
-               System.out.println("\n1. Update User Password");
-               System.out.println("2. Update User Role");
-               System.out.println("3. Update User Favorite Games");
-               System.out.println("4. Update User Phone Number");
-	            System.out.println("5. Update User Number of Overdue Games");
-               System.out.print("Enter your choice: ");
-		         int choice = Integer.parseInt(in.readLine());
-                
-		         switch (choice) {
-                  case 1:
-               		System.out.print("Enter the updated user password: ");
-               		String update = in.readLine();
-                  	// update the user's password in the database
-                  	String updateQuery = String.format("UPDATE users SET password = '%s' WHERE login = '" + userLogin + "';", update);
-                  	esql.executeUpdate(updateQuery);
-                     System.out.println("User's password successfully updated.\n");
-			            break;
+      try {
+         esql._connection.setAutoCommit(false);
+         esql.executeUpdate("CREATE TEMP TABLE CatalogEdits ( gameID varchar(50), field varchar(20), value text ) ON COMMIT DROP;");
+         // the bundled driver has no COPY support, batched inserts are the next cheapest way in
+         String insert = "INSERT INTO CatalogEdits VALUES (?, ?, ?)";
+         PreparedStatement stmt = esql._connection.prepareStatement(insert);
+         for (String[] edit : edits.values()) {
+            stmt.setString(1, edit[0]);
+            stmt.setString(2, edit[1]);
+            stmt.setString(3, edit[2]);
+            stmt.addBatch();
+         }
+         long start = System.nanoTime();
+         Tracer.recordBatch(insert, start, stmt.executeBatch());
+         stmt.close();
 
-		            case 2:
-                     System.out.print("Enter the updated user role: ");
-                     update = in.readLine();
-                     // update the user's role in the database
-                     updateQuery = String.format("UPDATE users SET role = '%s' WHERE login = '" + userLogin + "';", update);
-                     esql.executeUpdate(updateQuery);
-                     System.out.println("User's role successfully updated.\n");
-                     break;
-				    
-                  case 3:
-                     System.out.print("Enter the updated user's favorite games: ");
-                     update = in.readLine();
-                     // update the user's favorite games in the database
-                     updateQuery = String.format("UPDATE users SET favgames = '%s' WHERE login = '" + userLogin + "';", update);
-                     esql.executeUpdate(updateQuery);
-                     System.out.println("User's favorite games successfully updated.\n");
-                     break;
+         List<List<String>> unknown = esql.executeQueryAndReturnResult(
+            "SELECT DISTINCT gameID FROM CatalogEdits EXCEPT SELECT gameID FROM Catalog;");
+         if (!unknown.isEmpty()) {
+            List<String> ids = new ArrayList<>();
+            for (List<String> row : unknown) {
+               ids.add(row.get(0));
+            }
+            System.out.println("These game IDs were not found and were skipped: " + String.join(", ", ids));
+         }
 
-                  case 4:
-                     System.out.print("Enter the updated user's phone number: ");
-                     update = in.readLine();
-                     // update the user's phone number in the database
-                     updateQuery = String.format("UPDATE users SET phonenum = '%s' WHERE login = '" + userLogin + "';", update);
-                     esql.executeUpdate(updateQuery);
-                     System.out.println("User's phone number successfully updated.\n");
-                     break;
+         // one row per game with a column per edited field; unedited fields keep their value. The games are locked
+         // and their old values read first, and each comes back with whether a field was edited, its old and its new value
+         String returning = "";
+         for (String field : fields) {
+            returning += ", e." + field + " IS NOT NULL, o." + field + ", c." + field;
+         }
+         List<List<String>> changed = esql.executeQueryAndReturnResult(
+            "WITH e AS (SELECT gameID, max(value) FILTER (WHERE field = 'gamename') AS gameName, " +
+            "max(value) FILTER (WHERE field = 'genre') AS genre, max(value) FILTER (WHERE field = 'price') AS price, " +
+            "max(value) FILTER (WHERE field = 'description') AS description, max(value) FILTER (WHERE field = 'imageurl') AS imageURL " +
+            "FROM CatalogEdits GROUP BY gameID), " +
+            "o AS (SELECT c.* FROM Catalog c JOIN e ON e.gameID = c.gameID FOR UPDATE OF c), " +
+            "u AS (UPDATE Catalog c SET gameName = COALESCE(e.gameName, c.gameName), genre = COALESCE(e.genre, c.genre), " +
+            "price = COALESCE(e.price::decimal(10,2), c.price), description = COALESCE(e.description, c.description), " +
+            "imageURL = COALESCE(e.imageURL, c.imageURL), version = c.version + 1 " +
+            "FROM e JOIN o ON o.gameID = e.gameID WHERE c.gameID = e.gameID RETURNING c.gameID" + returning + ") " +
+            "SELECT * FROM u;");
+         esql._connection.commit();
+         for (List<String> game : changed) {
+            for (int i = 0; i < fields.size(); i++) {
+               if (game.get(1 + 3 * i).startsWith("t")) {
+                  esql.audit(actor, "catalog", game.get(0), fields.get(i), game.get(2 + 3 * i), game.get(3 + 3 * i));
+               }
+            }
+         }
+         return changed.size();
+      } catch (SQLException e) {
+         esql._connection.rollback();
+         throw e;
+      } finally {
+         esql._connection.setAutoCommit(true);
+      }
+   }
 
-		            case 5:
-                     System.out.print("Enter the updated user's number of overdue games (>= 0): ");
-                     update = in.readLine();
-                     // update the user's overdue games in the database
-                     updateQuery = String.format("UPDATE users SET numoverduegames = '%s' WHERE login = '" + userLogin + "';", update);
-                     esql.executeUpdate(updateQuery);
-                     System.out.println("User's overdue games successfully updated.\n");
-                     break;
-			      }
+   // splits one CSV line into its fields, honouring double-quoted fields as written by csvField
+   private static List<String> parseCsvLine(String line) {
+      List<String> values = new ArrayList<>();
+      StringBuilder value = new StringBuilder();
+      boolean quoted = false;
+      for (int i = 0; i < line.length(); i++) {
+         char c = line.charAt(i);
+         if (quoted) {
+            if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+               value.append('"');
+               i++;
+            } else if (c == '"') {
+               quoted = false;
             } else {
-                System.out.println("User not found.");
+               value.append(c);
             }
+         } else if (c == '"') {
+            quoted = true;
+         } else if (c == ',') {
+            values.add(value.toString());
+            value.setLength(0);
          } else {
-            System.out.println("You are not authorized to update user information.");
+            value.append(c);
          }
-      } catch (IOException e) {
-         System.err.println("Error reading input: " + e.getMessage());
-      } catch (SQLException e) {
-        System.err.println("Error executing query: " + e.getMessage());
       }
+      values.add(value.toString());
+      return values;
    }
 }//end GameRental
-
@@ -0,0 +1,10 @@
+#!/bin/bash
+# Rebuilds the database from a directory written by "GameRental --snapshot"
+# instead of from the CSV files: the schema first, then the snapshot, which
+# also rebuilds the indexes.
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+#cs166_createdb $USER"_project_phase_3_DB"
+cs166_psql -p $PGPORT $USER"_project_phase_3_DB" < $DIR/../src/create_tables.sql
+cs166_psql -p $PGPORT $USER"_project_phase_3_DB" < $DIR/../src/create_partitions.sql
+cs166_psql -p $PGPORT $USER"_project_phase_3_DB" < $DIR/../src/create_indexes.sql
+java -cp $DIR/../../java/classes:$DIR/../../java/lib/pg73jdbc3.jar GameRental --restore $USER $PGPORT/$USER"_project_phase_3_DB" $1
@@ -4,6 +4,19 @@ DROP INDEX IF EXISTS idx_catalog_genre;
 DROP INDEX IF EXISTS idx_games_id;
 DROP INDEX IF EXISTS idx_rental_id;
 DROP INDEX IF EXISTS idx_tracking_id;
+DROP INDEX IF EXISTS idx_rental_timestamp;
+DROP INDEX IF EXISTS idx_rental_login;
+DROP INDEX IF EXISTS idx_archive_login;
+DROP INDEX IF EXISTS idx_archive_tracking_id;
+DROP INDEX IF EXISTS idx_event_tracking_id;
+DROP INDEX IF EXISTS idx_title_units;
+DROP INDEX IF EXISTS idx_tracking_order;
+DROP INDEX IF EXISTS idx_event_tracking;
+DROP INDEX IF EXISTS idx_archive_tracking_order;
+DROP INDEX IF EXISTS idx_archive_games_id;
+DROP INDEX IF EXISTS idx_archive_event_tracking;
+DROP INDEX IF EXISTS idx_event_latest;
+DROP INDEX IF EXISTS idx_archive_event_latest;
 -- User Table
 CREATE INDEX idx_user_login ON users USING BTREE (login);
 
@@ -14,8 +27,21 @@ CREATE INDEX idx_catalog_genre ON catalog USING BTREE (genre);
 -- GamesInOrder Table
 CREATE INDEX idx_games_id ON gamesinorder USING BTREE (gameid);
 
--- RentalOrder Table
-CREATE INDEX idx_rental_id ON rentalorder USING BTREE (rentalorderid);
+-- RentalOrder Table (lookups by order number use the primary key)
+CREATE INDEX idx_rental_timestamp ON rentalorder USING BTREE (ordertimestamp);
+CREATE INDEX idx_rental_login ON rentalorder USING BTREE (login, ordertimestamp DESC);
 
 -- TrackingInfo Table
-CREATE INDEX idx_tracking_id ON trackinginfo USING BTREE (rentalorderid);
\ No newline at end of file
+CREATE INDEX idx_tracking_order ON trackinginfo USING BTREE (orderno);
+
+-- TrackingEvent Table (a shipment's history in order; its last entry is the current state)
+CREATE INDEX idx_event_latest ON trackingevent USING BTREE (trackingno, eventid);
+
+-- Archive Tables
+CREATE INDEX idx_archive_login ON rentalorderarchive USING BTREE (login, ordertimestamp DESC);
+CREATE INDEX idx_archive_tracking_order ON trackinginfoarchive USING BTREE (orderno);
+CREATE INDEX idx_archive_games_id ON gamesinorderarchive USING BTREE (gameid);
+CREATE INDEX idx_archive_event_latest ON trackingeventarchive USING BTREE (trackingno, eventid);
+
+-- TitleUnits Table
+CREATE INDEX idx_title_units ON titleunits USING BTREE (unitsordered DESC);
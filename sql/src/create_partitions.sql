@@ -0,0 +1,35 @@
+-- Yearly partitions of RentalOrder, GamesInOrder, TrackingInfo and TrackingEvent. The app calls
+-- create_order_partitions() at startup so the current and next year always
+-- exist; the default partitions only catch timestamps outside that range.
+CREATE OR REPLACE FUNCTION create_order_partitions(from_year integer, to_year integer) RETURNS void AS $$
+DECLARE
+   y integer;
+BEGIN
+   FOR y IN from_year..to_year LOOP
+      -- a year that was already archived keeps its name, so it is never recreated here
+      IF to_regclass('rentalorder_y' || y) IS NULL THEN
+         EXECUTE format('CREATE TABLE rentalorder_y%s PARTITION OF RentalOrder FOR VALUES FROM (%L) TO (%L)',
+                        y, make_date(y, 1, 1), make_date(y + 1, 1, 1));
+      END IF;
+      IF to_regclass('gamesinorder_y' || y) IS NULL THEN
+         EXECUTE format('CREATE TABLE gamesinorder_y%s PARTITION OF GamesInOrder FOR VALUES FROM (%L) TO (%L)',
+                        y, make_date(y, 1, 1), make_date(y + 1, 1, 1));
+      END IF;
+      IF to_regclass('trackinginfo_y' || y) IS NULL THEN
+         EXECUTE format('CREATE TABLE trackinginfo_y%s PARTITION OF TrackingInfo FOR VALUES FROM (%L) TO (%L)',
+                        y, make_date(y, 1, 1), make_date(y + 1, 1, 1));
+      END IF;
+      IF to_regclass('trackingevent_y' || y) IS NULL THEN
+         EXECUTE format('CREATE TABLE trackingevent_y%s PARTITION OF TrackingEvent FOR VALUES FROM (%L) TO (%L)',
+                        y, make_date(y, 1, 1), make_date(y + 1, 1, 1));
+      END IF;
+   END LOOP;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TABLE IF NOT EXISTS rentalorder_default PARTITION OF RentalOrder DEFAULT;
+CREATE TABLE IF NOT EXISTS gamesinorder_default PARTITION OF GamesInOrder DEFAULT;
+CREATE TABLE IF NOT EXISTS trackinginfo_default PARTITION OF TrackingInfo DEFAULT;
+CREATE TABLE IF NOT EXISTS trackingevent_default PARTITION OF TrackingEvent DEFAULT;
+
+SELECT create_order_partitions(2011, extract(year FROM now())::integer + 1);
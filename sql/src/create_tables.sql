@@ -1,8 +1,25 @@
 DROP TABLE IF EXISTS Users CASCADE;
 DROP TABLE IF EXISTS Catalog CASCADE;
+DROP TABLE IF EXISTS CatalogStock CASCADE;
+DROP TABLE IF EXISTS CatalogVersion CASCADE;
 DROP TABLE IF EXISTS RentalOrder CASCADE;
 DROP TABLE IF EXISTS TrackingInfo CASCADE;
+DROP TABLE IF EXISTS RentalOrderArchive CASCADE;
+DROP TABLE IF EXISTS TrackingInfoArchive CASCADE;
+DROP TABLE IF EXISTS TrackingEvent CASCADE;
+DROP TABLE IF EXISTS TrackingEventArchive CASCADE;
 DROP TABLE IF EXISTS GamesInOrder CASCADE;
+DROP TABLE IF EXISTS GamesInOrderArchive CASCADE;
+DROP TABLE IF EXISTS OrderNumbers CASCADE;
+DROP TABLE IF EXISTS GenreMonthRevenue CASCADE;
+DROP TABLE IF EXISTS TitleUnits CASCADE;
+DROP TABLE IF EXISTS CourierOrders CASCADE;
+DROP TABLE IF EXISTS SalesDelta CASCADE;
+DROP TABLE IF EXISTS AuditLog CASCADE;
+DROP TABLE IF EXISTS UserStats CASCADE;
+DROP TABLE IF EXISTS Outbox CASCADE;
+DROP SEQUENCE IF EXISTS rentalorder_seq;
+DROP SEQUENCE IF EXISTS trackinginfo_seq;
 
 CREATE TABLE Users ( login varchar(50) NOT NULL,
                      password varchar(30) NOT NULL,
@@ -10,6 +27,7 @@ CREATE TABLE Users ( login varchar(50) NOT NULL,
                      favGames text,
                      phoneNum varchar(20) NOT NULL,
                      numOverDueGames integer DEFAULT 0,
+                     version integer NOT NULL DEFAULT 0,
                      PRIMARY KEY(login)
 );
 
@@ -19,37 +37,349 @@ CREATE TABLE Catalog ( gameID varchar(50) NOT NULL,
                        price decimal(10,2) NOT NULL,
                        description text,
                        imageURL varchar(20),
+                       version integer NOT NULL DEFAULT 0,
                        PRIMARY KEY(gameID)
 );
 
-CREATE TABLE RentalOrder ( rentalOrderID varchar(50) NOT NULL,
+-- Single-row change counter for Catalog, bumped once per writing statement.
+-- The app stamps its on-disk catalog snapshot with it to know when to refresh.
+CREATE TABLE CatalogVersion ( version bigint NOT NULL );
+
+INSERT INTO CatalogVersion VALUES (0);
+
+CREATE OR REPLACE FUNCTION bump_catalog_version() RETURNS trigger AS $$
+BEGIN
+   UPDATE CatalogVersion SET version = version + 1;
+   RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER catalog_version_bump AFTER INSERT OR UPDATE OR DELETE OR TRUNCATE ON Catalog
+   FOR EACH STATEMENT EXECUTE FUNCTION bump_catalog_version();
+
+-- Stock of each title is split over a fixed number of buckets (the app uses 8)
+-- so concurrent orders for a popular title lock different rows.
+CREATE TABLE CatalogStock ( gameID varchar(50) NOT NULL,
+                            bucket smallint NOT NULL,
+                            available integer NOT NULL CHECK (available >= 0),
+                            PRIMARY KEY(gameID, bucket),
+                            FOREIGN KEY(gameID) REFERENCES Catalog(gameID)
+                            ON DELETE CASCADE
+) WITH (fillfactor = 70);
+
+-- RentalOrder, GamesInOrder, TrackingInfo and TrackingEvent are range
+-- partitioned by year of orderTimestamp (see create_partitions.sql), so the
+-- primary keys carry the partition key and each year's partitions reference
+-- each other. Old years are moved into the *Archive tables by the app's
+-- archival command.
+-- Orders and shipments are keyed by number; the string IDs of the data files
+-- (gamerentalorder1000, trackingid1000) are only derived for display.
+CREATE TABLE RentalOrder ( orderNo bigint NOT NULL,
                            login varchar(50) NOT NULL,
                            noOfGames integer NOT NULL,
                            totalPrice decimal(10,2) NOT NULL,
                            orderTimestamp timestamp NOT NULL,
                            dueDate timestamp NOT NULL,
-                           PRIMARY KEY(rentalOrderID),
+                           PRIMARY KEY(orderNo, orderTimestamp),
                            FOREIGN KEY(login) REFERENCES Users(login)
                            ON DELETE CASCADE
-);
+) PARTITION BY RANGE (orderTimestamp);
 
-CREATE TABLE TrackingInfo ( trackingID varchar(50) NOT NULL,
-                           rentalOrderID varchar(50) NOT NULL,
-                           status varchar(50) NOT NULL,
-                           currentLocation varchar(60) NOT NULL,
-                           courierName varchar(60) NOT NULL,
-                           lastUpdateDate timestamp NOT NULL,
-                           additionalComments text,
-                           PRIMARY KEY(trackingID),
-                           FOREIGN KEY(rentalOrderID) REFERENCES RentalOrder(rentalOrderID)
-                           ON DELETE CASCADE
+-- Order numbers in use, hot or archived. The primary key of RentalOrder has to
+-- carry the partition key, so on its own it only keeps (orderNo, orderTimestamp)
+-- unique; every order also registers its number here through the trigger
+-- below. Archiving moves partitions without firing it, so numbers stay put.
+CREATE TABLE OrderNumbers ( orderNo bigint NOT NULL,
+                            PRIMARY KEY(orderNo)
 );
 
-CREATE TABLE GamesInOrder ( rentalOrderID varchar(50) NOT NULL,
+CREATE OR REPLACE FUNCTION register_order_number() RETURNS trigger AS $$
+BEGIN
+   IF TG_OP = 'DELETE' THEN
+      DELETE FROM OrderNumbers WHERE orderNo = OLD.orderNo;
+   ELSIF TG_OP = 'INSERT' THEN
+      INSERT INTO OrderNumbers VALUES (NEW.orderNo);
+   ELSIF NEW.orderNo <> OLD.orderNo THEN
+      UPDATE OrderNumbers SET orderNo = NEW.orderNo WHERE orderNo = OLD.orderNo;
+   END IF;
+   RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER order_number_register AFTER INSERT OR DELETE OR UPDATE OF orderNo ON RentalOrder
+   FOR EACH ROW EXECUTE FUNCTION register_order_number();
+
+-- numbers of new orders and shipments
+CREATE SEQUENCE rentalorder_seq;
+CREATE SEQUENCE trackinginfo_seq;
+
+CREATE OR REPLACE FUNCTION rental_order_id(orderNo bigint) RETURNS text AS $$
+   SELECT 'gamerentalorder' || orderNo;
+$$ LANGUAGE sql IMMUTABLE;
+
+CREATE OR REPLACE FUNCTION tracking_id(trackingNo bigint) RETURNS text AS $$
+   SELECT 'trackingid' || trackingNo;
+$$ LANGUAGE sql IMMUTABLE;
+
+CREATE TABLE GamesInOrder ( orderNo bigint NOT NULL,
                            gameID varchar(50) NOT NULL,
                            unitsOrdered integer NOT NULL,
-                           PRIMARY KEY(rentalOrderID, gameID),
-                           FOREIGN KEY(rentalOrderID) REFERENCES RentalOrder(rentalOrderID) ON DELETE CASCADE,
+                           orderTimestamp timestamp NOT NULL,
+                           unitPrice decimal(10,2) NOT NULL,
+                           PRIMARY KEY(orderNo, gameID, orderTimestamp),
+                           CONSTRAINT gamesinorder_order_fkey
+                           FOREIGN KEY(orderNo, orderTimestamp) REFERENCES RentalOrder(orderNo, orderTimestamp)
+                           ON DELETE CASCADE,
                            FOREIGN KEY(gameID) REFERENCES Catalog(gameID)
                            ON DELETE CASCADE
+) PARTITION BY RANGE (orderTimestamp);
+
+-- One row per shipment. Its state lives in TrackingEvent; writers lock this
+-- row before appending an event, so the events of one shipment are numbered
+-- in the order they happened. stockReleased is set, under the same lock, by
+-- the first Returned event, which puts the units back into stock; a
+-- shipment returned again later does not release them twice.
+CREATE TABLE TrackingInfo ( trackingNo bigint NOT NULL,
+                           orderNo bigint NOT NULL,
+                           orderTimestamp timestamp NOT NULL,
+                           stockReleased boolean NOT NULL DEFAULT false,
+                           PRIMARY KEY(trackingNo, orderTimestamp),
+                           CONSTRAINT trackinginfo_order_fkey
+                           FOREIGN KEY(orderNo, orderTimestamp) REFERENCES RentalOrder(orderNo, orderTimestamp)
+                           ON DELETE CASCADE
+) PARTITION BY RANGE (orderTimestamp);
+
+-- Append-only shipment history, partitioned like its shipment so a year's
+-- events are archived with it. Changes are only ever inserted here, and the
+-- current state of a shipment is its event with the highest eventID, found
+-- through idx_event_latest (see CurrentTracking below).
+CREATE TABLE TrackingEvent ( eventID bigserial,
+                             trackingNo bigint NOT NULL,
+                             orderNo bigint NOT NULL,
+                             status varchar(50) NOT NULL,
+                             currentLocation varchar(60) NOT NULL,
+                             courierName varchar(60) NOT NULL,
+                             additionalComments text,
+                             changedBy varchar(50),
+                             eventTime timestamp NOT NULL DEFAULT clock_timestamp(),
+                             orderTimestamp timestamp NOT NULL,
+                             PRIMARY KEY(eventID, orderTimestamp),
+                             CONSTRAINT trackingevent_tracking_fkey
+                             FOREIGN KEY(trackingNo, orderTimestamp) REFERENCES TrackingInfo(trackingNo, orderTimestamp)
+                             ON DELETE CASCADE
+) PARTITION BY RANGE (orderTimestamp);
+
+CREATE TABLE RentalOrderArchive (LIKE RentalOrder,
+                                 PRIMARY KEY(orderNo, orderTimestamp)
+) PARTITION BY RANGE (orderTimestamp);
+
+CREATE TRIGGER order_number_register AFTER INSERT OR DELETE OR UPDATE OF orderNo ON RentalOrderArchive
+   FOR EACH ROW EXECUTE FUNCTION register_order_number();
+
+CREATE TABLE GamesInOrderArchive (LIKE GamesInOrder,
+                                  PRIMARY KEY(orderNo, gameID, orderTimestamp),
+                                  FOREIGN KEY(orderNo, orderTimestamp) REFERENCES RentalOrderArchive(orderNo, orderTimestamp)
+                                  ON DELETE CASCADE,
+                                  FOREIGN KEY(gameID) REFERENCES Catalog(gameID)
+                                  ON DELETE CASCADE
+) PARTITION BY RANGE (orderTimestamp);
+
+CREATE TABLE TrackingInfoArchive (LIKE TrackingInfo,
+                                  PRIMARY KEY(trackingNo, orderTimestamp),
+                                  FOREIGN KEY(orderNo, orderTimestamp) REFERENCES RentalOrderArchive(orderNo, orderTimestamp)
+                                  ON DELETE CASCADE
+) PARTITION BY RANGE (orderTimestamp);
+
+-- shares TrackingEvent's sequence, so event IDs stay unique across both
+CREATE TABLE TrackingEventArchive (LIKE TrackingEvent INCLUDING DEFAULTS,
+                                   PRIMARY KEY(eventID, orderTimestamp),
+                                   FOREIGN KEY(trackingNo, orderTimestamp) REFERENCES TrackingInfoArchive(trackingNo, orderTimestamp)
+                                   ON DELETE CASCADE
+) PARTITION BY RANGE (orderTimestamp);
+
+-- order lookups that must also see archived history go through these
+CREATE VIEW AllRentalOrders AS
+   SELECT * FROM RentalOrder UNION ALL SELECT * FROM RentalOrderArchive;
+
+CREATE VIEW AllGamesInOrder AS
+   SELECT * FROM GamesInOrder UNION ALL SELECT * FROM GamesInOrderArchive;
+
+-- each shipment with the state of its latest event, in the column layout of the data files
+CREATE VIEW CurrentTracking AS
+   SELECT t.trackingNo, t.orderNo, e.status, e.currentLocation, e.courierName, e.eventTime AS lastUpdateDate,
+          e.additionalComments, t.orderTimestamp
+   FROM TrackingInfo t CROSS JOIN LATERAL
+        (SELECT status, currentLocation, courierName, eventTime, additionalComments FROM TrackingEvent
+         WHERE trackingNo = t.trackingNo AND orderTimestamp = t.orderTimestamp ORDER BY eventID DESC LIMIT 1) e;
+
+CREATE VIEW AllTrackingInfo AS
+   SELECT * FROM CurrentTracking
+   UNION ALL
+   SELECT t.trackingNo, t.orderNo, e.status, e.currentLocation, e.courierName, e.eventTime,
+          e.additionalComments, t.orderTimestamp
+   FROM TrackingInfoArchive t CROSS JOIN LATERAL
+        (SELECT status, currentLocation, courierName, eventTime, additionalComments FROM TrackingEventArchive
+         WHERE trackingNo = t.trackingNo AND orderTimestamp = t.orderTimestamp ORDER BY eventID DESC LIMIT 1) e;
+
+CREATE VIEW AllTrackingEvents AS
+   SELECT * FROM TrackingEvent UNION ALL SELECT * FROM TrackingEventArchive;
+
+-- Lifetime rental statistics per user, kept current by the trigger below in
+-- the same transaction as the order change so a profile needs one key lookup.
+-- Archiving detaches partitions without firing it, so archived orders still
+-- count. The app's Verify User Statistics option checks and rebuilds it.
+CREATE TABLE UserStats ( login varchar(50) NOT NULL,
+                         totalOrders integer NOT NULL DEFAULT 0,
+                         totalSpend decimal(14,2) NOT NULL DEFAULT 0,
+                         gamesRented integer NOT NULL DEFAULT 0,
+                         lastOrder timestamp,
+                         PRIMARY KEY(login),
+                         FOREIGN KEY(login) REFERENCES Users(login)
+                         ON UPDATE CASCADE ON DELETE CASCADE
+);
+
+CREATE OR REPLACE FUNCTION apply_order_stats() RETURNS trigger AS $$
+BEGIN
+   IF TG_OP IN ('DELETE', 'UPDATE') THEN
+      UPDATE UserStats SET totalOrders = totalOrders - 1,
+                           totalSpend = totalSpend - OLD.totalPrice,
+                           gamesRented = gamesRented - OLD.noOfGames
+      WHERE login = OLD.login;
+   END IF;
+   IF TG_OP IN ('INSERT', 'UPDATE') THEN
+      INSERT INTO UserStats VALUES (NEW.login, 1, NEW.totalPrice, NEW.noOfGames, NEW.orderTimestamp)
+      ON CONFLICT (login) DO UPDATE SET totalOrders = UserStats.totalOrders + 1,
+                                        totalSpend = UserStats.totalSpend + EXCLUDED.totalSpend,
+                                        gamesRented = UserStats.gamesRented + EXCLUDED.gamesRented,
+                                        lastOrder = GREATEST(UserStats.lastOrder, EXCLUDED.lastOrder);
+   END IF;
+   IF TG_OP = 'DELETE' THEN
+      -- only removing a user's latest order moves lastOrder back; the lookup uses idx_rental_login
+      UPDATE UserStats SET lastOrder = (SELECT max(orderTimestamp) FROM AllRentalOrders WHERE login = OLD.login)
+      WHERE login = OLD.login AND lastOrder = OLD.orderTimestamp;
+   END IF;
+   RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER rental_order_stats AFTER INSERT OR DELETE OR UPDATE OF login, noOfGames, totalPrice, orderTimestamp ON RentalOrder
+   FOR EACH ROW EXECUTE FUNCTION apply_order_stats();
+
+-- Sales summaries. Every change to what they count adds a row to SalesDelta
+-- through the triggers below, in the same transaction as the change, so an
+-- order counts as soon as it commits however long its transaction was open,
+-- and a cancelled one is taken back out. The app folds the deltas into the
+-- summaries and deletes them in one statement.
+CREATE TABLE GenreMonthRevenue ( genre varchar(30) NOT NULL,
+                                 month date NOT NULL,
+                                 revenue decimal(14,2) NOT NULL DEFAULT 0,
+                                 unitsOrdered bigint NOT NULL DEFAULT 0,
+                                 PRIMARY KEY(genre, month)
+);
+
+CREATE TABLE TitleUnits ( gameID varchar(50) NOT NULL,
+                          unitsOrdered bigint NOT NULL DEFAULT 0,
+                          PRIMARY KEY(gameID),
+                          FOREIGN KEY(gameID) REFERENCES Catalog(gameID)
+                          ON DELETE CASCADE
+);
+
+CREATE TABLE CourierOrders ( courierName varchar(60) NOT NULL,
+                             orderCount bigint NOT NULL DEFAULT 0,
+                             PRIMARY KEY(courierName)
+);
+
+-- either a change to an order line (genre, month and gameID set) or to the
+-- courier a shipment counts for (courierName set)
+CREATE TABLE SalesDelta ( deltaID bigserial NOT NULL,
+                          genre varchar(30),
+                          month date,
+                          gameID varchar(50),
+                          units integer NOT NULL DEFAULT 0,
+                          revenue decimal(14,2) NOT NULL DEFAULT 0,
+                          courierName varchar(60),
+                          orders integer NOT NULL DEFAULT 0,
+                          PRIMARY KEY(deltaID)
+);
+
+-- lines count at the price they were ordered at, and come back out when their order is cancelled
+CREATE OR REPLACE FUNCTION record_line_sales() RETURNS trigger AS $$
+BEGIN
+   IF TG_OP = 'INSERT' THEN
+      INSERT INTO SalesDelta (genre, month, gameID, units, revenue)
+      SELECT c.genre, date_trunc('month', NEW.orderTimestamp)::date, NEW.gameID, NEW.unitsOrdered, NEW.unitsOrdered * NEW.unitPrice
+      FROM Catalog c WHERE c.gameID = NEW.gameID;
+   ELSE
+      INSERT INTO SalesDelta (genre, month, gameID, units, revenue)
+      SELECT c.genre, date_trunc('month', OLD.orderTimestamp)::date, OLD.gameID, -OLD.unitsOrdered, -OLD.unitsOrdered * OLD.unitPrice
+      FROM Catalog c WHERE c.gameID = OLD.gameID;
+   END IF;
+   RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER games_in_order_sales AFTER INSERT OR DELETE ON GamesInOrder
+   FOR EACH ROW EXECUTE FUNCTION record_line_sales();
+
+-- a shipment counts for the courier of its latest event, so an event naming
+-- another courier than the one before moves the shipment over
+CREATE OR REPLACE FUNCTION record_courier_change() RETURNS trigger AS $$
+DECLARE
+   previous varchar(60);
+BEGIN
+   SELECT courierName INTO previous FROM TrackingEvent
+   WHERE trackingNo = NEW.trackingNo AND orderTimestamp = NEW.orderTimestamp AND eventID < NEW.eventID
+   ORDER BY eventID DESC LIMIT 1;
+   IF FOUND AND previous = NEW.courierName THEN
+      RETURN NULL;
+   END IF;
+   IF FOUND THEN
+      INSERT INTO SalesDelta (courierName, orders) VALUES (previous, -1);
+   END IF;
+   INSERT INTO SalesDelta (courierName, orders) VALUES (NEW.courierName, 1);
+   RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER tracking_event_courier AFTER INSERT ON TrackingEvent
+   FOR EACH ROW EXECUTE FUNCTION record_courier_change();
+
+-- a shipment whose history is deleted (its order cancelled or moved to
+-- another shard, all in one cascaded statement) stops counting for the
+-- courier of its latest event
+CREATE OR REPLACE FUNCTION record_shipment_removal() RETURNS trigger AS $$
+BEGIN
+   INSERT INTO SalesDelta (courierName, orders)
+   SELECT DISTINCT ON (o.trackingNo) o.courierName, -1 FROM removed o
+   WHERE NOT EXISTS (SELECT 1 FROM TrackingEvent e WHERE e.trackingNo = o.trackingNo AND e.orderTimestamp = o.orderTimestamp)
+   ORDER BY o.trackingNo, o.eventID DESC;
+   RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER tracking_event_removal AFTER DELETE ON TrackingEvent
+   REFERENCING OLD TABLE AS removed
+   FOR EACH STATEMENT EXECUTE FUNCTION record_shipment_removal();
+
+-- Who changed what through the admin menus, written in batches by the app.
+CREATE TABLE AuditLog ( auditID bigserial NOT NULL,
+                        actor varchar(50) NOT NULL,
+                        tableName varchar(30) NOT NULL,
+                        rowKey varchar(100) NOT NULL,
+                        field varchar(30) NOT NULL,
+                        oldValue text,
+                        newValue text,
+                        changedAt timestamp NOT NULL,
+                        PRIMARY KEY(auditID)
+);
+
+-- Customer notifications waiting to be delivered. The app writes rows in the
+-- same transaction as the change they announce, and its dispatcher deletes
+-- them once its sink has accepted them.
+CREATE TABLE Outbox ( messageID bigserial NOT NULL,
+                      login varchar(50) NOT NULL,
+                      topic varchar(30) NOT NULL,
+                      payload text NOT NULL,
+                      createdAt timestamp NOT NULL DEFAULT now(),
+                      PRIMARY KEY(messageID)
 );
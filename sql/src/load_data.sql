@@ -1,20 +1,75 @@
 /* Replace the location to where you saved the data files*/
-COPY Users
+COPY Users (login, password, role, favGames, phoneNum, numOverDueGames)
 FROM '/class/classes/alamp009/CS166_Project_Phase3/cs166_project_phase3/data/users.csv'
 WITH DELIMITER ',' CSV HEADER;
 
-COPY Catalog
+COPY Catalog (gameID, gameName, genre, price, description, imageURL)
 FROM '/class/classes/alamp009/CS166_Project_Phase3/cs166_project_phase3/data/catalog.csv'
 WITH DELIMITER ',' CSV HEADER;
 
-COPY RentalOrder
+/* Every title starts with 10 units in each of its 8 stock buckets */
+INSERT INTO CatalogStock
+SELECT gameID, bucket, 10 FROM Catalog, generate_series(0, 7) AS bucket;
+
+/* The files carry string IDs such as gamerentalorder1000; the tables keep
+   only their numbers, so orders and their games go through staging tables */
+CREATE TEMP TABLE RentalOrderLoad ( rentalOrderID varchar(50),
+                                    login varchar(50),
+                                    noOfGames integer,
+                                    totalPrice decimal(10,2),
+                                    orderTimestamp timestamp,
+                                    dueDate timestamp
+);
+
+COPY RentalOrderLoad
 FROM '/class/classes/alamp009/CS166_Project_Phase3/cs166_project_phase3/data/rentalorder.csv'
 WITH DELIMITER ',' CSV HEADER;
 
-COPY TrackingInfo
+INSERT INTO RentalOrder
+SELECT substring(rentalOrderID FROM '[0-9]+')::bigint, login, noOfGames, totalPrice, orderTimestamp, dueDate
+FROM RentalOrderLoad;
+
+/* TrackingInfo carries its order's timestamp as partition key, so it is
+   loaded through a staging table and joined with RentalOrder */
+CREATE TEMP TABLE TrackingInfoLoad ( trackingID varchar(50),
+                                     rentalOrderID varchar(50),
+                                     status varchar(50),
+                                     currentLocation varchar(60),
+                                     courierName varchar(60),
+                                     lastUpdateDate timestamp,
+                                     additionalComments text
+);
+
+COPY TrackingInfoLoad
 FROM '/class/classes/alamp009/CS166_Project_Phase3/cs166_project_phase3/data/trackinginfo.csv'
 WITH DELIMITER ',' CSV HEADER;
 
-COPY GamesInOrder
+/* shipments already back have nothing left to return to stock */
+INSERT INTO TrackingInfo
+SELECT substring(t.trackingID FROM '[0-9]+')::bigint, r.orderNo, r.orderTimestamp, t.status LIKE 'Returned%'
+FROM TrackingInfoLoad t JOIN RentalOrder r ON r.orderNo = substring(t.rentalOrderID FROM '[0-9]+')::bigint;
+
+/* The loaded state becomes the first entry of each shipment's history */
+INSERT INTO TrackingEvent (trackingNo, orderNo, status, currentLocation, courierName, additionalComments, eventTime, orderTimestamp)
+SELECT i.trackingNo, i.orderNo, t.status, t.currentLocation, t.courierName, t.additionalComments, t.lastUpdateDate, i.orderTimestamp
+FROM TrackingInfoLoad t JOIN TrackingInfo i ON i.trackingNo = substring(t.trackingID FROM '[0-9]+')::bigint;
+
+CREATE TEMP TABLE GamesInOrderLoad ( rentalOrderID varchar(50),
+                                     gameID varchar(50),
+                                     unitsOrdered integer
+);
+
+COPY GamesInOrderLoad
 FROM '/class/classes/alamp009/CS166_Project_Phase3/cs166_project_phase3/data/gamesinorder.csv'
 WITH DELIMITER ',' CSV HEADER;
+
+/* the lines are partitioned like their orders, so they take the order's
+   timestamp along; the files have no prices, so today's stand in */
+INSERT INTO GamesInOrder
+SELECT r.orderNo, g.gameID, g.unitsOrdered, r.orderTimestamp, c.price
+FROM GamesInOrderLoad g JOIN RentalOrder r ON r.orderNo = substring(g.rentalOrderID FROM '[0-9]+')::bigint
+JOIN Catalog c ON c.gameID = g.gameID;
+
+/* New orders continue numbering after the loaded ones */
+SELECT setval('rentalorder_seq', (SELECT max(orderNo) FROM RentalOrder));
+SELECT setval('trackinginfo_seq', (SELECT max(trackingNo) FROM TrackingInfo));
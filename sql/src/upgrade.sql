@@ -0,0 +1,350 @@
+/* Moves a database created from the original create_tables.sql, with
+   string order and tracking keys (gamerentalorder1000, trackingid1000) and
+   one plain table each for orders, their games and their shipments, onto
+   the layout in create_tables.sql. It is the only upgrade path; there are
+   three steps, in this order:
+
+   1. While the old app keeps serving, run upgrade_stage.sql with psql from
+      this directory. It creates the new order, line, shipment and event
+      tables next to the old ones, empty and already partitioned and
+      indexed, and triggers that repeat every change the old app makes on
+      them.
+   2. Still while it serves, run "java GameRental --migrate-keys <user>
+      <port>/<dbname>". It copies the existing rows over in short batches,
+      numbered by the digits of their string keys. A run that was
+      interrupted is simply started again.
+   3. Stop the app, run this with psql from this directory and start the new
+      version. It swaps the new tables in for the old ones, adds the foreign
+      keys between them, which checks every copied row once, and builds
+      everything the old layout did not have from the copied rows. It all
+      happens in one transaction, so a failure leaves the database as step 2
+      left it; create_indexes.sql does not need to be run again.
+
+   Order lines carry the price they were ordered at; for the lines of the
+   old layout the only price known is today's. Stock starts over at 10 units
+   in each of the 8 buckets of every title, as in load_data.sql. */
+BEGIN;
+
+DO $$
+BEGIN
+   IF to_regclass('rentalorder_next') IS NULL THEN
+      RAISE EXCEPTION 'run upgrade_stage.sql first';
+   END IF;
+   IF (SELECT count(*) FROM UpgradeCopied) < 3 THEN
+      RAISE EXCEPTION 'the rows are not all copied yet, run java GameRental --migrate-keys first';
+   END IF;
+END;
+$$;
+
+/* the old tables go, and with them the triggers copying from them */
+DROP TABLE TrackingInfo;
+DROP TABLE GamesInOrder;
+DROP TABLE RentalOrder;
+DROP FUNCTION upgrade_copy_order();
+DROP FUNCTION upgrade_copy_line();
+DROP FUNCTION upgrade_copy_shipment();
+DROP FUNCTION upgrade_key(varchar);
+DROP TABLE UpgradeCopied;
+
+ALTER TABLE RentalOrder_next RENAME TO RentalOrder;
+ALTER TABLE RentalOrder RENAME CONSTRAINT rentalorder_next_pkey TO rentalorder_pkey;
+ALTER TABLE GamesInOrder_next RENAME TO GamesInOrder;
+ALTER TABLE GamesInOrder RENAME CONSTRAINT gamesinorder_next_pkey TO gamesinorder_pkey;
+ALTER INDEX idx_games_id_next RENAME TO idx_games_id;
+ALTER TABLE TrackingInfo_next RENAME TO TrackingInfo;
+ALTER TABLE TrackingInfo RENAME CONSTRAINT trackinginfo_next_pkey TO trackinginfo_pkey;
+
+ALTER TABLE GamesInOrder ADD CONSTRAINT gamesinorder_order_fkey
+   FOREIGN KEY(orderNo, orderTimestamp) REFERENCES RentalOrder(orderNo, orderTimestamp) ON DELETE CASCADE;
+ALTER TABLE TrackingInfo ADD CONSTRAINT trackinginfo_order_fkey
+   FOREIGN KEY(orderNo, orderTimestamp) REFERENCES RentalOrder(orderNo, orderTimestamp) ON DELETE CASCADE;
+ALTER TABLE TrackingEvent ADD CONSTRAINT trackingevent_tracking_fkey
+   FOREIGN KEY(trackingNo, orderTimestamp) REFERENCES TrackingInfo(trackingNo, orderTimestamp) ON DELETE CASCADE;
+
+/* compare-and-set versions; a constant default adds them without a rewrite */
+ALTER TABLE Users ADD COLUMN version integer NOT NULL DEFAULT 0;
+ALTER TABLE Catalog ADD COLUMN version integer NOT NULL DEFAULT 0;
+
+CREATE TABLE CatalogVersion ( version bigint NOT NULL );
+
+INSERT INTO CatalogVersion VALUES (0);
+
+CREATE OR REPLACE FUNCTION bump_catalog_version() RETURNS trigger AS $$
+BEGIN
+   UPDATE CatalogVersion SET version = version + 1;
+   RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER catalog_version_bump AFTER INSERT OR UPDATE OR DELETE OR TRUNCATE ON Catalog
+   FOR EACH STATEMENT EXECUTE FUNCTION bump_catalog_version();
+
+CREATE TABLE CatalogStock ( gameID varchar(50) NOT NULL,
+                            bucket smallint NOT NULL,
+                            available integer NOT NULL CHECK (available >= 0),
+                            PRIMARY KEY(gameID, bucket),
+                            FOREIGN KEY(gameID) REFERENCES Catalog(gameID)
+                            ON DELETE CASCADE
+) WITH (fillfactor = 70);
+
+INSERT INTO CatalogStock
+SELECT gameID, bucket, 10 FROM Catalog, generate_series(0, 7) AS bucket;
+
+CREATE TABLE OrderNumbers ( orderNo bigint NOT NULL,
+                            PRIMARY KEY(orderNo)
+);
+
+INSERT INTO OrderNumbers SELECT orderNo FROM RentalOrder;
+
+CREATE OR REPLACE FUNCTION register_order_number() RETURNS trigger AS $$
+BEGIN
+   IF TG_OP = 'DELETE' THEN
+      DELETE FROM OrderNumbers WHERE orderNo = OLD.orderNo;
+   ELSIF TG_OP = 'INSERT' THEN
+      INSERT INTO OrderNumbers VALUES (NEW.orderNo);
+   ELSIF NEW.orderNo <> OLD.orderNo THEN
+      UPDATE OrderNumbers SET orderNo = NEW.orderNo WHERE orderNo = OLD.orderNo;
+   END IF;
+   RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER order_number_register AFTER INSERT OR DELETE OR UPDATE OF orderNo ON RentalOrder
+   FOR EACH ROW EXECUTE FUNCTION register_order_number();
+
+/* new orders and shipments continue numbering after the copied ones */
+CREATE SEQUENCE rentalorder_seq;
+CREATE SEQUENCE trackinginfo_seq;
+
+SELECT setval('rentalorder_seq', (SELECT max(orderNo) FROM RentalOrder));
+SELECT setval('trackinginfo_seq', (SELECT max(trackingNo) FROM TrackingInfo));
+
+CREATE OR REPLACE FUNCTION rental_order_id(orderNo bigint) RETURNS text AS $$
+   SELECT 'gamerentalorder' || orderNo;
+$$ LANGUAGE sql IMMUTABLE;
+
+CREATE OR REPLACE FUNCTION tracking_id(trackingNo bigint) RETURNS text AS $$
+   SELECT 'trackingid' || trackingNo;
+$$ LANGUAGE sql IMMUTABLE;
+
+/* nothing is archived yet; the archive tables start out empty */
+CREATE TABLE RentalOrderArchive (LIKE RentalOrder,
+                                 PRIMARY KEY(orderNo, orderTimestamp)
+) PARTITION BY RANGE (orderTimestamp);
+
+CREATE TRIGGER order_number_register AFTER INSERT OR DELETE OR UPDATE OF orderNo ON RentalOrderArchive
+   FOR EACH ROW EXECUTE FUNCTION register_order_number();
+
+CREATE TABLE GamesInOrderArchive (LIKE GamesInOrder,
+                                  PRIMARY KEY(orderNo, gameID, orderTimestamp),
+                                  FOREIGN KEY(orderNo, orderTimestamp) REFERENCES RentalOrderArchive(orderNo, orderTimestamp)
+                                  ON DELETE CASCADE,
+                                  FOREIGN KEY(gameID) REFERENCES Catalog(gameID)
+                                  ON DELETE CASCADE
+) PARTITION BY RANGE (orderTimestamp);
+
+CREATE TABLE TrackingInfoArchive (LIKE TrackingInfo,
+                                  PRIMARY KEY(trackingNo, orderTimestamp),
+                                  FOREIGN KEY(orderNo, orderTimestamp) REFERENCES RentalOrderArchive(orderNo, orderTimestamp)
+                                  ON DELETE CASCADE
+) PARTITION BY RANGE (orderTimestamp);
+
+CREATE TABLE TrackingEventArchive (LIKE TrackingEvent INCLUDING DEFAULTS,
+                                   PRIMARY KEY(eventID, orderTimestamp),
+                                   FOREIGN KEY(trackingNo, orderTimestamp) REFERENCES TrackingInfoArchive(trackingNo, orderTimestamp)
+                                   ON DELETE CASCADE
+) PARTITION BY RANGE (orderTimestamp);
+
+CREATE INDEX idx_archive_login ON rentalorderarchive USING BTREE (login, ordertimestamp DESC);
+CREATE INDEX idx_archive_tracking_order ON trackinginfoarchive USING BTREE (orderno);
+CREATE INDEX idx_archive_games_id ON gamesinorderarchive USING BTREE (gameid);
+CREATE INDEX idx_archive_event_latest ON trackingeventarchive USING BTREE (trackingno, eventid);
+
+CREATE VIEW AllRentalOrders AS
+   SELECT * FROM RentalOrder UNION ALL SELECT * FROM RentalOrderArchive;
+
+CREATE VIEW AllGamesInOrder AS
+   SELECT * FROM GamesInOrder UNION ALL SELECT * FROM GamesInOrderArchive;
+
+CREATE VIEW CurrentTracking AS
+   SELECT t.trackingNo, t.orderNo, e.status, e.currentLocation, e.courierName, e.eventTime AS lastUpdateDate,
+          e.additionalComments, t.orderTimestamp
+   FROM TrackingInfo t CROSS JOIN LATERAL
+        (SELECT status, currentLocation, courierName, eventTime, additionalComments FROM TrackingEvent
+         WHERE trackingNo = t.trackingNo AND orderTimestamp = t.orderTimestamp ORDER BY eventID DESC LIMIT 1) e;
+
+CREATE VIEW AllTrackingInfo AS
+   SELECT * FROM CurrentTracking
+   UNION ALL
+   SELECT t.trackingNo, t.orderNo, e.status, e.currentLocation, e.courierName, e.eventTime,
+          e.additionalComments, t.orderTimestamp
+   FROM TrackingInfoArchive t CROSS JOIN LATERAL
+        (SELECT status, currentLocation, courierName, eventTime, additionalComments FROM TrackingEventArchive
+         WHERE trackingNo = t.trackingNo AND orderTimestamp = t.orderTimestamp ORDER BY eventID DESC LIMIT 1) e;
+
+CREATE VIEW AllTrackingEvents AS
+   SELECT * FROM TrackingEvent UNION ALL SELECT * FROM TrackingEventArchive;
+
+CREATE TABLE UserStats ( login varchar(50) NOT NULL,
+                         totalOrders integer NOT NULL DEFAULT 0,
+                         totalSpend decimal(14,2) NOT NULL DEFAULT 0,
+                         gamesRented integer NOT NULL DEFAULT 0,
+                         lastOrder timestamp,
+                         PRIMARY KEY(login),
+                         FOREIGN KEY(login) REFERENCES Users(login)
+                         ON UPDATE CASCADE ON DELETE CASCADE
+);
+
+INSERT INTO UserStats (login, totalOrders, totalSpend, gamesRented, lastOrder)
+   SELECT login, count(*), sum(totalPrice), sum(noOfGames), max(orderTimestamp) FROM RentalOrder GROUP BY login;
+
+CREATE OR REPLACE FUNCTION apply_order_stats() RETURNS trigger AS $$
+BEGIN
+   IF TG_OP IN ('DELETE', 'UPDATE') THEN
+      UPDATE UserStats SET totalOrders = totalOrders - 1,
+                           totalSpend = totalSpend - OLD.totalPrice,
+                           gamesRented = gamesRented - OLD.noOfGames
+      WHERE login = OLD.login;
+   END IF;
+   IF TG_OP IN ('INSERT', 'UPDATE') THEN
+      INSERT INTO UserStats VALUES (NEW.login, 1, NEW.totalPrice, NEW.noOfGames, NEW.orderTimestamp)
+      ON CONFLICT (login) DO UPDATE SET totalOrders = UserStats.totalOrders + 1,
+                                        totalSpend = UserStats.totalSpend + EXCLUDED.totalSpend,
+                                        gamesRented = UserStats.gamesRented + EXCLUDED.gamesRented,
+                                        lastOrder = GREATEST(UserStats.lastOrder, EXCLUDED.lastOrder);
+   END IF;
+   IF TG_OP = 'DELETE' THEN
+      -- only removing a user's latest order moves lastOrder back; the lookup uses idx_rental_login
+      UPDATE UserStats SET lastOrder = (SELECT max(orderTimestamp) FROM AllRentalOrders WHERE login = OLD.login)
+      WHERE login = OLD.login AND lastOrder = OLD.orderTimestamp;
+   END IF;
+   RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER rental_order_stats AFTER INSERT OR DELETE OR UPDATE OF login, noOfGames, totalPrice, orderTimestamp ON RentalOrder
+   FOR EACH ROW EXECUTE FUNCTION apply_order_stats();
+
+/* the sales summaries start from the copied orders; later changes reach
+   them through SalesDelta */
+CREATE TABLE GenreMonthRevenue ( genre varchar(30) NOT NULL,
+                                 month date NOT NULL,
+                                 revenue decimal(14,2) NOT NULL DEFAULT 0,
+                                 unitsOrdered bigint NOT NULL DEFAULT 0,
+                                 PRIMARY KEY(genre, month)
+);
+
+CREATE TABLE TitleUnits ( gameID varchar(50) NOT NULL,
+                          unitsOrdered bigint NOT NULL DEFAULT 0,
+                          PRIMARY KEY(gameID),
+                          FOREIGN KEY(gameID) REFERENCES Catalog(gameID)
+                          ON DELETE CASCADE
+);
+
+CREATE TABLE CourierOrders ( courierName varchar(60) NOT NULL,
+                             orderCount bigint NOT NULL DEFAULT 0,
+                             PRIMARY KEY(courierName)
+);
+
+INSERT INTO GenreMonthRevenue (genre, month, revenue, unitsOrdered)
+   SELECT c.genre, date_trunc('month', g.orderTimestamp)::date, sum(g.unitsOrdered * g.unitPrice), sum(g.unitsOrdered)
+   FROM GamesInOrder g JOIN Catalog c ON c.gameID = g.gameID GROUP BY 1, 2;
+
+INSERT INTO TitleUnits (gameID, unitsOrdered)
+   SELECT gameID, sum(unitsOrdered) FROM GamesInOrder GROUP BY 1;
+
+INSERT INTO CourierOrders (courierName, orderCount)
+   SELECT courierName, count(*) FROM CurrentTracking GROUP BY 1;
+
+CREATE INDEX idx_title_units ON titleunits USING BTREE (unitsordered DESC);
+
+CREATE TABLE SalesDelta ( deltaID bigserial NOT NULL,
+                          genre varchar(30),
+                          month date,
+                          gameID varchar(50),
+                          units integer NOT NULL DEFAULT 0,
+                          revenue decimal(14,2) NOT NULL DEFAULT 0,
+                          courierName varchar(60),
+                          orders integer NOT NULL DEFAULT 0,
+                          PRIMARY KEY(deltaID)
+);
+
+CREATE OR REPLACE FUNCTION record_line_sales() RETURNS trigger AS $$
+BEGIN
+   IF TG_OP = 'INSERT' THEN
+      INSERT INTO SalesDelta (genre, month, gameID, units, revenue)
+      SELECT c.genre, date_trunc('month', NEW.orderTimestamp)::date, NEW.gameID, NEW.unitsOrdered, NEW.unitsOrdered * NEW.unitPrice
+      FROM Catalog c WHERE c.gameID = NEW.gameID;
+   ELSE
+      INSERT INTO SalesDelta (genre, month, gameID, units, revenue)
+      SELECT c.genre, date_trunc('month', OLD.orderTimestamp)::date, OLD.gameID, -OLD.unitsOrdered, -OLD.unitsOrdered * OLD.unitPrice
+      FROM Catalog c WHERE c.gameID = OLD.gameID;
+   END IF;
+   RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER games_in_order_sales AFTER INSERT OR DELETE ON GamesInOrder
+   FOR EACH ROW EXECUTE FUNCTION record_line_sales();
+
+CREATE OR REPLACE FUNCTION record_courier_change() RETURNS trigger AS $$
+DECLARE
+   previous varchar(60);
+BEGIN
+   SELECT courierName INTO previous FROM TrackingEvent
+   WHERE trackingNo = NEW.trackingNo AND orderTimestamp = NEW.orderTimestamp AND eventID < NEW.eventID
+   ORDER BY eventID DESC LIMIT 1;
+   IF FOUND AND previous = NEW.courierName THEN
+      RETURN NULL;
+   END IF;
+   IF FOUND THEN
+      INSERT INTO SalesDelta (courierName, orders) VALUES (previous, -1);
+   END IF;
+   INSERT INTO SalesDelta (courierName, orders) VALUES (NEW.courierName, 1);
+   RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER tracking_event_courier AFTER INSERT ON TrackingEvent
+   FOR EACH ROW EXECUTE FUNCTION record_courier_change();
+
+CREATE OR REPLACE FUNCTION record_shipment_removal() RETURNS trigger AS $$
+BEGIN
+   INSERT INTO SalesDelta (courierName, orders)
+   SELECT DISTINCT ON (o.trackingNo) o.courierName, -1 FROM removed o
+   WHERE NOT EXISTS (SELECT 1 FROM TrackingEvent e WHERE e.trackingNo = o.trackingNo AND e.orderTimestamp = o.orderTimestamp)
+   ORDER BY o.trackingNo, o.eventID DESC;
+   RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER tracking_event_removal AFTER DELETE ON TrackingEvent
+   REFERENCING OLD TABLE AS removed
+   FOR EACH STATEMENT EXECUTE FUNCTION record_shipment_removal();
+
+CREATE TABLE AuditLog ( auditID bigserial NOT NULL,
+                        actor varchar(50) NOT NULL,
+                        tableName varchar(30) NOT NULL,
+                        rowKey varchar(100) NOT NULL,
+                        field varchar(30) NOT NULL,
+                        oldValue text,
+                        newValue text,
+                        changedAt timestamp NOT NULL,
+                        PRIMARY KEY(auditID)
+);
+
+CREATE TABLE Outbox ( messageID bigserial NOT NULL,
+                      login varchar(50) NOT NULL,
+                      topic varchar(30) NOT NULL,
+                      payload text NOT NULL,
+                      createdAt timestamp NOT NULL DEFAULT now(),
+                      PRIMARY KEY(messageID)
+);
+
+/* the partitioning function the app calls at startup; the partitions
+   upgrade_stage.sql made already carry its names and are left alone */
+\ir create_partitions.sql
+
+COMMIT;
+
+ANALYZE;
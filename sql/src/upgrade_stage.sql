@@ -0,0 +1,180 @@
+/* Step 1 of moving a database created from the original create_tables.sql
+   onto the current layout; upgrade.sql describes all three steps. Run this
+   with psql from this directory while the old app keeps serving. It creates
+   the new order, line, shipment and event tables next to the old ones, with
+   numeric keys, yearly partitions and their indexes, all still empty, and
+   triggers that copy every change the old app makes into them from then on.
+   Nothing here reads the old rows, so it takes no more than the brief locks
+   the triggers need. */
+BEGIN;
+
+SET LOCAL lock_timeout = '10s';
+
+/* rows already copied to the new tables, one per old table that is done */
+CREATE TABLE UpgradeCopied ( tableName varchar(30) NOT NULL,
+                             PRIMARY KEY(tableName)
+);
+
+/* the new tables take their final names in upgrade.sql; the foreign keys
+   between them are added there too, since the copy fills them in no
+   particular order */
+CREATE TABLE RentalOrder_next ( orderNo bigint NOT NULL,
+                                login varchar(50) NOT NULL,
+                                noOfGames integer NOT NULL,
+                                totalPrice decimal(10,2) NOT NULL,
+                                orderTimestamp timestamp NOT NULL,
+                                dueDate timestamp NOT NULL,
+                                PRIMARY KEY(orderNo, orderTimestamp),
+                                CONSTRAINT rentalorder_login_fkey
+                                FOREIGN KEY(login) REFERENCES Users(login)
+                                ON DELETE CASCADE
+) PARTITION BY RANGE (orderTimestamp);
+
+CREATE TABLE GamesInOrder_next ( orderNo bigint NOT NULL,
+                                 gameID varchar(50) NOT NULL,
+                                 unitsOrdered integer NOT NULL,
+                                 orderTimestamp timestamp NOT NULL,
+                                 unitPrice decimal(10,2) NOT NULL,
+                                 PRIMARY KEY(orderNo, gameID, orderTimestamp),
+                                 CONSTRAINT gamesinorder_gameid_fkey
+                                 FOREIGN KEY(gameID) REFERENCES Catalog(gameID)
+                                 ON DELETE CASCADE
+) PARTITION BY RANGE (orderTimestamp);
+
+CREATE TABLE TrackingInfo_next ( trackingNo bigint NOT NULL,
+                                 orderNo bigint NOT NULL,
+                                 orderTimestamp timestamp NOT NULL,
+                                 stockReleased boolean NOT NULL DEFAULT false,
+                                 PRIMARY KEY(trackingNo, orderTimestamp)
+) PARTITION BY RANGE (orderTimestamp);
+
+CREATE TABLE TrackingEvent ( eventID bigserial,
+                             trackingNo bigint NOT NULL,
+                             orderNo bigint NOT NULL,
+                             status varchar(50) NOT NULL,
+                             currentLocation varchar(60) NOT NULL,
+                             courierName varchar(60) NOT NULL,
+                             additionalComments text,
+                             changedBy varchar(50),
+                             eventTime timestamp NOT NULL DEFAULT clock_timestamp(),
+                             orderTimestamp timestamp NOT NULL,
+                             PRIMARY KEY(eventID, orderTimestamp)
+) PARTITION BY RANGE (orderTimestamp);
+
+/* the partitions get the names create_partitions.sql gives them, for the
+   same years */
+DO $$
+DECLARE
+   y integer;
+BEGIN
+   FOR y IN 2011..extract(year FROM now())::integer + 1 LOOP
+      EXECUTE format('CREATE TABLE rentalorder_y%s PARTITION OF RentalOrder_next FOR VALUES FROM (%L) TO (%L)',
+                     y, make_date(y, 1, 1), make_date(y + 1, 1, 1));
+      EXECUTE format('CREATE TABLE gamesinorder_y%s PARTITION OF GamesInOrder_next FOR VALUES FROM (%L) TO (%L)',
+                     y, make_date(y, 1, 1), make_date(y + 1, 1, 1));
+      EXECUTE format('CREATE TABLE trackinginfo_y%s PARTITION OF TrackingInfo_next FOR VALUES FROM (%L) TO (%L)',
+                     y, make_date(y, 1, 1), make_date(y + 1, 1, 1));
+      EXECUTE format('CREATE TABLE trackingevent_y%s PARTITION OF TrackingEvent FOR VALUES FROM (%L) TO (%L)',
+                     y, make_date(y, 1, 1), make_date(y + 1, 1, 1));
+   END LOOP;
+END;
+$$;
+
+CREATE TABLE rentalorder_default PARTITION OF RentalOrder_next DEFAULT;
+CREATE TABLE gamesinorder_default PARTITION OF GamesInOrder_next DEFAULT;
+CREATE TABLE trackinginfo_default PARTITION OF TrackingInfo_next DEFAULT;
+CREATE TABLE trackingevent_default PARTITION OF TrackingEvent DEFAULT;
+
+/* the indexes of create_indexes.sql, built now while the tables are empty;
+   the old GamesInOrder still holds the name idx_games_id */
+CREATE INDEX idx_rental_timestamp ON rentalorder_next USING BTREE (ordertimestamp);
+CREATE INDEX idx_rental_login ON rentalorder_next USING BTREE (login, ordertimestamp DESC);
+CREATE INDEX idx_games_id_next ON gamesinorder_next USING BTREE (gameid);
+CREATE INDEX idx_tracking_order ON trackinginfo_next USING BTREE (orderno);
+CREATE INDEX idx_event_latest ON trackingevent USING BTREE (trackingno, eventid);
+
+CREATE OR REPLACE FUNCTION upgrade_key(id varchar) RETURNS bigint AS $$
+   SELECT substring(id FROM '[0-9]+')::bigint;
+$$ LANGUAGE sql IMMUTABLE;
+
+/* Each change the old app makes is repeated on the new tables. Rows the
+   copy has not reached yet are simply written early; the copy then finds
+   them there and leaves them alone. */
+CREATE OR REPLACE FUNCTION upgrade_copy_order() RETURNS trigger AS $$
+BEGIN
+   IF TG_OP IN ('UPDATE', 'DELETE') THEN
+      DELETE FROM RentalOrder_next WHERE orderNo = upgrade_key(OLD.rentalOrderID) AND orderTimestamp = OLD.orderTimestamp;
+   END IF;
+   IF TG_OP IN ('INSERT', 'UPDATE') THEN
+      INSERT INTO RentalOrder_next
+      VALUES (upgrade_key(NEW.rentalOrderID), NEW.login, NEW.noOfGames, NEW.totalPrice, NEW.orderTimestamp, NEW.dueDate)
+      ON CONFLICT DO NOTHING;
+   END IF;
+   RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+/* lines take their order's timestamp and today's price, as nothing older is known */
+CREATE OR REPLACE FUNCTION upgrade_copy_line() RETURNS trigger AS $$
+BEGIN
+   IF TG_OP IN ('UPDATE', 'DELETE') THEN
+      DELETE FROM GamesInOrder_next WHERE orderNo = upgrade_key(OLD.rentalOrderID) AND gameID = OLD.gameID;
+   END IF;
+   IF TG_OP IN ('INSERT', 'UPDATE') THEN
+      INSERT INTO GamesInOrder_next
+      SELECT upgrade_key(NEW.rentalOrderID), NEW.gameID, NEW.unitsOrdered, r.orderTimestamp, c.price
+      FROM RentalOrder r, Catalog c WHERE r.rentalOrderID = NEW.rentalOrderID AND c.gameID = NEW.gameID
+      ON CONFLICT DO NOTHING;
+   END IF;
+   RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+/* A new shipment starts its history with its current state. The old app
+   changes a shipment in place, which becomes its next event once the
+   shipment has been copied; before that the copy picks up the changed
+   state. A shipment that is Returned has nothing left to put back into the
+   stock the new layout starts with. */
+CREATE OR REPLACE FUNCTION upgrade_copy_shipment() RETURNS trigger AS $$
+BEGIN
+   IF TG_OP = 'UPDATE' AND (NEW.trackingID, NEW.rentalOrderID) IS NOT DISTINCT FROM (OLD.trackingID, OLD.rentalOrderID) THEN
+      IF (NEW.status, NEW.currentLocation, NEW.courierName, NEW.additionalComments)
+         IS DISTINCT FROM (OLD.status, OLD.currentLocation, OLD.courierName, OLD.additionalComments) THEN
+         INSERT INTO TrackingEvent (trackingNo, orderNo, status, currentLocation, courierName, additionalComments, orderTimestamp)
+         SELECT trackingNo, orderNo, NEW.status, NEW.currentLocation, NEW.courierName, NEW.additionalComments, orderTimestamp
+         FROM TrackingInfo_next WHERE trackingNo = upgrade_key(NEW.trackingID);
+         IF NEW.status LIKE 'Returned%' THEN
+            UPDATE TrackingInfo_next SET stockReleased = true WHERE trackingNo = upgrade_key(NEW.trackingID);
+         END IF;
+      END IF;
+      RETURN NULL;
+   END IF;
+   IF TG_OP IN ('UPDATE', 'DELETE') THEN
+      DELETE FROM TrackingEvent WHERE trackingNo = upgrade_key(OLD.trackingID);
+      DELETE FROM TrackingInfo_next WHERE trackingNo = upgrade_key(OLD.trackingID);
+   END IF;
+   IF TG_OP IN ('INSERT', 'UPDATE') THEN
+      WITH copied AS (
+         INSERT INTO TrackingInfo_next
+         SELECT upgrade_key(NEW.trackingID), upgrade_key(NEW.rentalOrderID), r.orderTimestamp, NEW.status LIKE 'Returned%'
+         FROM RentalOrder r WHERE r.rentalOrderID = NEW.rentalOrderID
+         ON CONFLICT DO NOTHING
+         RETURNING trackingNo, orderNo, orderTimestamp)
+      INSERT INTO TrackingEvent (trackingNo, orderNo, status, currentLocation, courierName, additionalComments, eventTime, orderTimestamp)
+      SELECT trackingNo, orderNo, NEW.status, NEW.currentLocation, NEW.courierName, NEW.additionalComments, NEW.lastUpdateDate, orderTimestamp
+      FROM copied;
+   END IF;
+   RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER upgrade_copy AFTER INSERT OR UPDATE OR DELETE ON RentalOrder
+   FOR EACH ROW EXECUTE FUNCTION upgrade_copy_order();
+
+CREATE TRIGGER upgrade_copy AFTER INSERT OR UPDATE OR DELETE ON GamesInOrder
+   FOR EACH ROW EXECUTE FUNCTION upgrade_copy_line();
+
+CREATE TRIGGER upgrade_copy AFTER INSERT OR UPDATE OR DELETE ON TrackingInfo
+   FOR EACH ROW EXECUTE FUNCTION upgrade_copy_shipment();
+
+COMMIT;